@@ -0,0 +1,257 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** ForegroundTracker
+ * Keeps track of which app (and activity) is in the foreground, so callers don't each have to run "dumpsys window"
+ * as root (one of the most expensive commands on the device, and it briefly stalls system_server while it dumps).
+ *
+ * Sources, cheapest first:
+ *  - UsageStatsManager events (a binder call, no fork). After the first reading, only events since the previous
+ *    reading are asked for, and the latest move-to-foreground tells us what's in front. Needs the usage-stats app-op,
+ *    which we grant ourselves (as root) the first time, if we don't already have it.
+ *  - A single "dumpsys window windows" reading (mCurrentFocus), as root. Only used if usage stats aren't available,
+ *    or (once) if they have no record of what's in front yet.
+ *
+ * A reading is shared by every caller until it's older than the max-age, and concurrent callers that find it stale
+ * wait for the one refresh between them, rather than each doing their own.
+ *
+ * A reading's state says how much it knows (see SystemFunctions.specifiedAppIsInForeground for how each is treated):
+ *  STATE_FOREGROUND:   the package (and activity) in front
+ *  STATE_SWITCHING:    nothing has focus right now, but only briefly (mid-way through switching activities)
+ *  STATE_NOTHING:      nothing has been in front for longer than a switch takes (e.g. screen off)
+ *  STATE_UNKNOWN:      the foreground couldn't be read at all
+ *
+ * Usage-stats queries start from the timestamp of the last event seen (not from when we last asked), so an event that
+ * was recorded just before a query but only delivered after it isn't missed. (Events at that timestamp are seen
+ * again, which is harmless, since applying them again leaves the same result.)
+ *
+ * Usage:
+ *  ForegroundTracker.Reading reading = ForegroundTracker.getInstance(appContext).getForeground();
+ *  if (reading.packageName.equals("com.example")) ...
+ */
+
+import android.app.AppOpsManager;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.Context;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.utilities.ShellExecutor;
+import com.messagenetsystems.evolutionupdater.utilities.ShellResult;
+
+public class ForegroundTracker {
+    private static final String TAG = ForegroundTracker.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_AGE_MS = 2000;
+
+    public static final int SOURCE_NONE = 0;
+    public static final int SOURCE_USAGE_STATS = 1;
+    public static final int SOURCE_DUMPSYS = 2;
+
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_FOREGROUND = 1;
+    public static final int STATE_SWITCHING = 2;
+    public static final int STATE_NOTHING = 3;
+
+    private static final long USAGE_STATS_INITIAL_LOOKBACK_MS = 24 * 60 * 60 * 1000;               //our kiosk apps stay in front for a long time
+    private static final long DUMPSYS_TIMEOUT_MS = 10 * 1000;
+    private static final long SWITCHING_MAX_MS = 5 * 1000;                                          //longer than this with nothing in front isn't a switch
+
+    private static ForegroundTracker instance = null;
+
+    private final Context appContext;
+    private volatile Reading reading = null;
+
+    private Boolean usageStatsAvailable = null;                                                     //decided on first refresh
+    private long usageStatsQueriedUntil = 0;                                                        //timestamp of the last event seen (where the next query starts)
+    private String usageStatsPackageName = null;                                                    //foreground as of the last events query (null if unknown, "" if nothing)
+    private String usageStatsClassName = null;
+    private long usageStatsLeftFrontAt = 0;                                                         //timestamp of the event that left nothing in front (if usageStatsPackageName is "")
+
+    /** Return the shared tracker. */
+    public static synchronized ForegroundTracker getInstance(Context context) {
+        if (instance == null) {
+            instance = new ForegroundTracker(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+        }
+        return instance;
+    }
+
+    private ForegroundTracker(Context appContext) {
+        this.appContext = appContext;
+    }
+
+    /** Return what's in the foreground, as of a reading no older than the default max-age. */
+    public Reading getForeground() {
+        return getForeground(DEFAULT_MAX_AGE_MS);
+    }
+
+    /** Return what's in the foreground, as of a reading no older than the specified max-age (0 always takes a new one). */
+    public Reading getForeground(long maxAgeMS) {
+        Reading current = reading;
+        if (current != null && current.getAgeMS() < maxAgeMS) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = reading;
+            if (current != null && current.getAgeMS() < maxAgeMS) {
+                return current;     //(another caller just refreshed it while we waited)
+            }
+            reading = current = refresh();
+            return current;
+        }
+    }
+
+    /** Forget the current reading (e.g. after starting an activity), so the next caller gets a new one. */
+    public void invalidate() {
+        reading = null;
+    }
+
+    private Reading refresh() {
+        final String TAGG = "refresh: ";
+
+        if (usageStatsAvailable == null) {
+            usageStatsAvailable = ensureUsageStatsAccess();
+            Log.d(TAG, TAGG+"Will track foreground via "+(usageStatsAvailable ? "usage stats." : "dumpsys."));
+        }
+
+        Reading ret = null;
+        if (usageStatsAvailable) {
+            ret = readFromUsageStats();
+        }
+        if (ret == null) {
+            ret = readFromDumpsys();
+            if (usageStatsAvailable && usageStatsPackageName == null && ret.state == STATE_FOREGROUND) {
+                // Usage stats had no record of what's in front (started before their history), so carry on from here
+                usageStatsPackageName = ret.packageName;
+                usageStatsClassName = ret.className;
+            }
+        }
+
+        Log.v(TAG, TAGG+"Foreground is "+ret+".");
+        return ret;
+    }
+
+    /** Returns true if we can read usage stats, granting ourselves the app-op (as root) if needed. */
+    private boolean ensureUsageStatsAccess() {
+        final String TAGG = "ensureUsageStatsAccess: ";
+
+        try {
+            if (hasUsageStatsAccess()) {
+                return true;
+            }
+
+            Log.i(TAG, TAGG+"Granting ourselves usage stats access...");
+            ShellResult result = ShellExecutor.runAsRoot("/system/bin/appops set "+appContext.getPackageName()+" GET_USAGE_STATS allow");
+            if (!result.isSuccess()) {
+                Log.w(TAG, TAGG+"Could not grant usage stats access ("+result+").");
+            }
+            return hasUsageStatsAccess();
+        } catch (Exception e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean hasUsageStatsAccess() {
+        AppOpsManager appOpsManager = (AppOpsManager) appContext.getSystemService(Context.APP_OPS_SERVICE);
+        return appOpsManager != null
+                && appOpsManager.checkOpNoThrow(AppOpsManager.OPSTR_GET_USAGE_STATS, android.os.Process.myUid(), appContext.getPackageName()) == AppOpsManager.MODE_ALLOWED;
+    }
+
+    /** Bring our usage-stats view of the foreground up to date with any events since the last query.
+     * Returns null if we still have no idea what's in front (so caller should fall back to dumpsys). */
+    private Reading readFromUsageStats() {
+        final String TAGG = "readFromUsageStats: ";
+
+        try {
+            UsageStatsManager usageStatsManager = (UsageStatsManager) appContext.getSystemService(Context.USAGE_STATS_SERVICE);
+            if (usageStatsManager == null) {
+                return null;
+            }
+
+            final long now = System.currentTimeMillis();
+            final long begin = (usageStatsQueriedUntil > 0 ? usageStatsQueriedUntil : now - USAGE_STATS_INITIAL_LOOKBACK_MS);
+            final UsageEvents usageEvents = usageStatsManager.queryEvents(begin, now);
+
+            final UsageEvents.Event event = new UsageEvents.Event();
+            while (usageEvents != null && usageEvents.hasNextEvent()) {
+                usageEvents.getNextEvent(event);
+                usageStatsQueriedUntil = Math.max(usageStatsQueriedUntil, event.getTimeStamp());
+                if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                    usageStatsPackageName = event.getPackageName();
+                    usageStatsClassName = event.getClassName();
+                } else if (event.getEventType() == UsageEvents.Event.MOVE_TO_BACKGROUND
+                        && event.getPackageName() != null && event.getPackageName().equals(usageStatsPackageName)) {
+                    usageStatsPackageName = "";     //(left the front, and nothing has come in yet)
+                    usageStatsClassName = "";
+                    usageStatsLeftFrontAt = event.getTimeStamp();
+                }
+            }
+            if (usageStatsQueriedUntil == 0) {
+                usageStatsQueriedUntil = now;       //(no events in the whole lookback, so don't look back a whole day every time)
+            }
+
+            if (usageStatsPackageName == null) {
+                return null;
+            } else if (usageStatsPackageName.isEmpty()) {
+                return new Reading("", "", SOURCE_USAGE_STATS, (now - usageStatsLeftFrontAt < SWITCHING_MAX_MS ? STATE_SWITCHING : STATE_NOTHING));
+            }
+            return new Reading(usageStatsPackageName, usageStatsClassName, SOURCE_USAGE_STATS, STATE_FOREGROUND);
+        } catch (Exception e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            return null;
+        }
+    }
+
+    /** Read the focused window from dumpsys, as root.
+     * The line looks like: "mCurrentFocus=Window{41c6f1a0 u0 com.example/com.example.MainActivity}" (or "=null"). */
+    private Reading readFromDumpsys() {
+        final String TAGG = "readFromDumpsys: ";
+
+        ShellResult result = ShellExecutor.runAsRoot("/system/bin/dumpsys window windows | /system/bin/grep -E 'mCurrentFocus'", DUMPSYS_TIMEOUT_MS);
+        if (result.exitCode == ShellResult.EXIT_CODE_FAILED) {
+            Log.w(TAG, TAGG+"Could not read focused window ("+result+").");
+            return new Reading("", "", SOURCE_NONE, STATE_UNKNOWN);
+        }
+
+        final String line = (result.stdout.isEmpty() ? "" : result.stdout.get(0).trim());
+        final String[] fields = line.split(" ");
+        if (fields.length < 3) {
+            return new Reading("", "", SOURCE_DUMPSYS, STATE_SWITCHING);                            //(no focus, which in bench testing is lag while switching activity screens)
+        }
+
+        final String component = fields[2].replace("}", "");
+        final int slash = component.indexOf('/');
+        if (slash < 0) {
+            return new Reading(component, "", SOURCE_DUMPSYS, STATE_FOREGROUND);                    //(a window that isn't an activity, e.g. StatusBar)
+        }
+        final String packageName = component.substring(0, slash);
+        final String className = component.substring(slash + 1);
+        return new Reading(packageName, (className.startsWith(".") ? packageName + className : className), SOURCE_DUMPSYS, STATE_FOREGROUND);
+    }
+
+    /** One reading of the foreground. Immutable. */
+    public static class Reading {
+        public final String packageName;                                                            //"" unless state is STATE_FOREGROUND
+        public final String className;                                                              //fully qualified activity class name ("" if unknown)
+        public final int source;
+        public final int state;                                                                     //one of the STATE constants
+        private final long takenAt = System.nanoTime();
+
+        Reading(String packageName, String className, int source, int state) {
+            this.packageName = (packageName == null ? "" : packageName);
+            this.className = (className == null ? "" : className);
+            this.source = source;
+            this.state = state;
+        }
+
+        public long getAgeMS() {
+            return (System.nanoTime() - takenAt) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return "\"" + packageName + "/" + className + "\" (source " + source + ", state " + state + ")";
+        }
+    }
+}
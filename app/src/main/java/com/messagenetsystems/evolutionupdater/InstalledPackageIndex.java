@@ -0,0 +1,345 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** InstalledPackageIndex
+ * In-memory index of what's currently installed for each of the packages we manage (APK path, versionCode,
+ * lastUpdateTime, and checksum of the installed APK).
+ *
+ * It gets filled once when the service starts (from PackageManager, which is just a binder call, not a shell fork),
+ * and after that, it's only updated when Android tells us one of our packages was added, replaced or removed
+ * (see PackageChangedReceiver). That way, checking whether a downloaded package matches what's installed no longer
+ * requires running "pm path" and hashing the installed APK on every InstallUpdatesThread cycle.
+ *
+ * Each package's details (APK path, versionCode, versionName, lastUpdateTime and signing certificates) come from a
+ * single PackageManager call, and are available together as an InstalledPackage. Packages we don't manage can be
+ * looked up too; once looked up, they're cached (including that they're not installed, so asking again is just a
+ * lookup) and kept current the same way. "pm path" (as root) is only a fallback for when PackageManager doesn't
+ * provide a path.
+ *
+ * The installed APK's checksum and fingerprint are calculated the first time they're needed, and kept until the
+ * package changes again. The fingerprint (see ApkFingerprint) only reads the APK's tail, so it's preferred for the
+ * equality check, with the full checksum as fallback for anything that can't be fingerprinted.
+ */
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class InstalledPackageIndex {
+    private static final String TAG = InstalledPackageIndex.class.getSimpleName();
+
+    private final Context appContext;
+    private final SystemFunctions systemFunctions;
+    private final Collection<String> managedPackageNames;
+    private final ConcurrentHashMap<String, Entry> entries;                                         //keyed by package name (packages that aren't installed have no entry)
+    private final Set<String> notInstalledPackageNames;                                             //packages we don't manage that were asked about, and aren't installed
+
+    private static final String SIGNING_CERTIFICATE_DIGEST_ALGORITHM = "SHA-256";
+
+    /** Constructor */
+    public InstalledPackageIndex(Context appContext, Collection<String> managedPackageNames) {
+        this.appContext = appContext;
+        this.systemFunctions = new SystemFunctions(appContext);
+        this.managedPackageNames = managedPackageNames;
+        this.entries = new ConcurrentHashMap<>();
+        this.notInstalledPackageNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /** Fill the index for all of our managed packages.
+     * Any paths PackageManager doesn't provide are looked up together, in a single root round trip. */
+    public void refreshAll() {
+        final String TAGG = "refreshAll: ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        final Map<String, PackageInfo> packageInfos = new LinkedHashMap<>();
+        final List<String> packagesMissingPath = new ArrayList<>();
+
+        for (String packageName : managedPackageNames) {
+            PackageInfo packageInfo = readPackageInfo(packageName);
+            if (packageInfo != null) {
+                packageInfos.put(packageName, packageInfo);
+                if (getSourcePath(packageInfo) == null) {
+                    packagesMissingPath.add(packageName);
+                }
+            }
+        }
+
+        Map<String, String> fallbackPaths = Collections.emptyMap();
+        if (!packagesMissingPath.isEmpty()) {
+            Log.d(TAG, TAGG+"PackageManager didn't provide source paths for "+packagesMissingPath+", falling back to shell method.");
+            fallbackPaths = systemFunctions.getPathsForInstalledAPKs_su(packagesMissingPath);
+        }
+
+        for (Map.Entry<String, PackageInfo> entry : packageInfos.entrySet()) {
+            String path = getSourcePath(entry.getValue());
+            put(entry.getKey(), entry.getValue(), (path != null ? path : fallbackPaths.get(entry.getKey())));
+        }
+
+        Log.d(TAG, TAGG+"Indexed "+entries.size()+" of "+managedPackageNames.size()+" managed packages as installed.");
+    }
+
+    /** Re-read what's installed for the specified package (e.g. after it was added, replaced or removed).
+     * Packages we neither manage nor have been asked about are ignored. */
+    public void refresh(String packageName) {
+        final String TAGG = "refresh(\""+packageName+"\"): ";
+
+        if (packageName == null || !(managedPackageNames.contains(packageName) || entries.containsKey(packageName) || notInstalledPackageNames.contains(packageName))) {
+            Log.v(TAG, TAGG+"Not a package we're indexing, ignoring.");
+            return;
+        }
+
+        load(packageName);
+    }
+
+    /** Read the specified package from PackageManager (path from the shell, if need be) into the index.
+     * Returns its entry, or null if it's not installed. */
+    private Entry load(String packageName) {
+        final String TAGG = "load(\""+packageName+"\"): ";
+
+        PackageInfo packageInfo = readPackageInfo(packageName);
+        if (packageInfo == null) {
+            return null;
+        }
+
+        String path = getSourcePath(packageInfo);
+        if (path == null) {
+            Log.d(TAG, TAGG+"PackageManager didn't provide a source path, falling back to shell method.");
+            path = systemFunctions.getPathForInstalledAPK_su(packageName);
+        }
+
+        return put(packageName, packageInfo, path);
+    }
+
+    /** Returns the package's info from PackageManager, or null if it's not installed (in which case it's removed from the index,
+     * and, if it's not one we manage, remembered as not installed). */
+    private PackageInfo readPackageInfo(String packageName) {
+        final String TAGG = "readPackageInfo(\""+packageName+"\"): ";
+
+        try {
+            return appContext.getPackageManager().getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+        } catch (PackageManager.NameNotFoundException e) {
+            entries.remove(packageName);
+            if (!managedPackageNames.contains(packageName)) {
+                notInstalledPackageNames.add(packageName);
+            }
+            Log.i(TAG, TAGG+"Package is not installed.");
+        } catch (Exception e) {
+            entries.remove(packageName);
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+        }
+        return null;
+    }
+
+    private static String getSourcePath(PackageInfo packageInfo) {
+        String path = (packageInfo.applicationInfo == null ? null : packageInfo.applicationInfo.sourceDir);
+        return (path == null || path.isEmpty() ? null : path);
+    }
+
+    private Entry put(String packageName, PackageInfo packageInfo, String path) {
+        InstalledPackage installedPackage = new InstalledPackage(packageName, path, packageInfo.versionCode, packageInfo.versionName,
+                packageInfo.lastUpdateTime, getSigningCertificateDigests(packageInfo.signatures));
+        Entry entry = new Entry(installedPackage, null, null);
+        entries.put(packageName, entry);
+        notInstalledPackageNames.remove(packageName);
+        Log.i(TAG, "put(\""+packageName+"\"): Indexed installed package ("+installedPackage+").");
+        return entry;
+    }
+
+    /** Returns the SHA-256 (hex) of each of the package's signing certificates, in the order PackageManager gave them. */
+    private static List<String> getSigningCertificateDigests(Signature[] signatures) {
+        final List<String> ret = new ArrayList<>();
+        if (signatures == null) {
+            return ret;
+        }
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance(SIGNING_CERTIFICATE_DIGEST_ALGORITHM);
+            for (Signature signature : signatures) {
+                ret.add(ChecksumEngine.toHex(messageDigest.digest(signature.toByteArray())));
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "getSigningCertificateDigests: Exception caught: "+e.getMessage());
+        }
+        return ret;
+    }
+
+    /** Forget the checksum/fingerprint of any installed package whose APK is at the specified path.
+     * Needed when we overwrite an installed APK directly (e.g. system-apps), since Android won't broadcast that until reboot. */
+    public void invalidateChecksumForPath(String path) {
+        for (String packageName : entries.keySet()) {
+            Entry entry = entries.get(packageName);
+            if (entry != null && path.equals(entry.installedPackage.path)) {
+                entries.replace(packageName, entry, new Entry(entry.installedPackage, null, null));
+            }
+        }
+    }
+
+    /** Forget what we know about the specified package (e.g. after it was removed). If it's one we don't manage but
+     * were tracking, remember that it's not installed, so asking about it again doesn't go back to PackageManager. */
+    public void remove(String packageName) {
+        if (entries.remove(packageName) != null && !managedPackageNames.contains(packageName)) {
+            notInstalledPackageNames.add(packageName);
+        }
+    }
+
+    /** Returns true if the specified package is installed. */
+    public boolean isInstalled(String packageName) {
+        return entries.containsKey(packageName);
+    }
+
+    /** Returns everything we know about the specified installed package (path, versions, signing), or null if it's not installed.
+     * Packages we don't manage are read from PackageManager the first time, and cached from then on (whether or not
+     * they're installed; PackageChangedReceiver keeps that current). */
+    public InstalledPackage getInstalledPackage(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry == null && !managedPackageNames.contains(packageName) && !notInstalledPackageNames.contains(packageName)) {
+            entry = load(packageName);
+        }
+        return (entry == null ? null : entry.installedPackage);
+    }
+
+    /** Returns the path to the installed APK for the specified package, or null if it's not installed. */
+    public String getInstalledPath(String packageName) {
+        InstalledPackage installedPackage = getInstalledPackage(packageName);
+        return (installedPackage == null ? null : installedPackage.path);
+    }
+
+    /** Returns the versionCode of the installed package, or -1 if it's not installed. */
+    public int getInstalledVersionCode(String packageName) {
+        InstalledPackage installedPackage = getInstalledPackage(packageName);
+        return (installedPackage == null ? -1 : installedPackage.versionCode);
+    }
+
+    /** Returns the checksum of the installed APK for the specified package, or null if it's not installed (or can't be read).
+     * It's only actually calculated the first time, after that (until the package changes) it's just a lookup. */
+    public String getInstalledChecksum(String packageName) {
+        final String TAGG = "getInstalledChecksum(\""+packageName+"\"): ";
+
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.checksum != null) {
+            return entry.checksum;
+        }
+
+        String checksum = systemFunctions.calculateChecksumForLocalFile(entry.installedPackage.path);
+        if (checksum != null) {
+            //only save it if the package hasn't changed while we were calculating
+            Entry updated = new Entry(entry.installedPackage, checksum, entry.fingerprint);
+            if (entries.replace(packageName, entry, updated)) {
+                Log.d(TAG, TAGG+"Indexed installed package checksum ("+checksum+").");
+            }
+        }
+
+        return checksum;
+    }
+
+    /** Returns the fingerprint of the installed APK for the specified package, or null if it's not installed (or can't be fingerprinted).
+     * It's only actually calculated the first time, after that (until the package changes) it's just a lookup. */
+    public String getInstalledFingerprint(String packageName) {
+        final String TAGG = "getInstalledFingerprint(\""+packageName+"\"): ";
+
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.fingerprint != null) {
+            return entry.fingerprint;
+        }
+
+        String fingerprint = systemFunctions.calculateApkFingerprintForLocalFile(entry.installedPackage.path);
+        if (fingerprint != null) {
+            //only save it if the package hasn't changed while we were calculating
+            Entry updated = new Entry(entry.installedPackage, entry.checksum, fingerprint);
+            if (entries.replace(packageName, entry, updated)) {
+                Log.d(TAG, TAGG+"Indexed installed package fingerprint ("+fingerprint+").");
+            }
+        }
+
+        return fingerprint;
+    }
+
+    public static final int COMPARISON_UNDETERMINABLE = 0;                                          //one side's checksum couldn't be had (e.g. unreadable), so we can't say
+    public static final int COMPARISON_SAME = 1;
+    public static final int COMPARISON_DIFFERENT = 2;
+
+    /** Compares the installed APK for the specified package with the specified checksum (one of the COMPARISON_* values).
+     * A null checksum, on either side, means it couldn't be determined, not that it's different. */
+    public int compareInstalledPackage(String packageName, String checksum) {
+        final String checksumInstalled = (checksum == null ? null : getInstalledChecksum(packageName));
+        if (checksum == null || checksumInstalled == null) {
+            return COMPARISON_UNDETERMINABLE;
+        }
+        return (checksum.equals(checksumInstalled) ? COMPARISON_SAME : COMPARISON_DIFFERENT);
+    }
+
+    /** Compares the specified APK file with what's installed for the specified package (one of the COMPARISON_* values;
+     * a package that isn't installed is different). Compares fingerprints if both can be had (cheap), otherwise full checksums. */
+    public int compareInstalledPackageToFile(String packageName, String apkFile) {
+        final String TAGG = "compareInstalledPackageToFile(\""+packageName+"\"): ";
+
+        if (!isInstalled(packageName)) {
+            return COMPARISON_DIFFERENT;
+        }
+
+        String fingerprintFile = systemFunctions.calculateApkFingerprintForLocalFile(apkFile);
+        String fingerprintInstalled = (fingerprintFile == null ? null : getInstalledFingerprint(packageName));
+        if (fingerprintFile != null && fingerprintInstalled != null) {
+            return (fingerprintFile.equals(fingerprintInstalled) ? COMPARISON_SAME : COMPARISON_DIFFERENT);
+        }
+
+        Log.d(TAG, TAGG+"Could not fingerprint both APKs, comparing full checksums instead.");
+        return compareInstalledPackage(packageName, systemFunctions.calculateChecksumForLocalFile(apkFile));
+    }
+
+    /** An installed package's details, as PackageManager reported them. Immutable. */
+    public static class InstalledPackage {
+        public final String packageName;
+        public final String path;                                                                   //APK path (null if it couldn't be determined)
+        public final int versionCode;
+        public final String versionName;
+        public final long lastUpdateTime;
+        public final List<String> signingCertificateDigests;                                        //SHA-256 (hex) of each signing certificate
+
+        InstalledPackage(String packageName, String path, int versionCode, String versionName, long lastUpdateTime, List<String> signingCertificateDigests) {
+            this.packageName = packageName;
+            this.path = path;
+            this.versionCode = versionCode;
+            this.versionName = versionName;
+            this.lastUpdateTime = lastUpdateTime;
+            this.signingCertificateDigests = Collections.unmodifiableList(signingCertificateDigests);
+        }
+
+        @Override
+        public String toString() {
+            return packageName + " versionCode " + versionCode + " (\"" + versionName + "\"), " + path
+                    + ", " + signingCertificateDigests.size() + " signing certificates";
+        }
+    }
+
+    /** What we know about an installed package, plus what we've calculated about its APK (immutable, so it can be swapped atomically). */
+    private static class Entry {
+        final InstalledPackage installedPackage;
+        final String checksum;
+        final String fingerprint;
+
+        Entry(InstalledPackage installedPackage, String checksum, String fingerprint) {
+            this.installedPackage = installedPackage;
+            this.checksum = checksum;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
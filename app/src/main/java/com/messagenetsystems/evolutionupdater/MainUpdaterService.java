@@ -25,11 +25,17 @@ import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 import com.messagenetsystems.evolutionupdater.receivers.BackgroundGetUpdatesReceiver;
+import com.messagenetsystems.evolutionupdater.receivers.ClockChangedReceiver;
+import com.messagenetsystems.evolutionupdater.receivers.PackageChangedReceiver;
 import com.messagenetsystems.evolutionupdater.threads.CheckForUpdatesThread;
+import com.messagenetsystems.evolutionupdater.threads.DownloadVerificationThread;
 import com.messagenetsystems.evolutionupdater.threads.MonitorThreadsThread;
 import com.messagenetsystems.evolutionupdater.threads.ServerSocketThread;
 import com.messagenetsystems.evolutionupdater.threads.InstallUpdatesThread;
+import com.messagenetsystems.evolutionupdater.utilities.DigestSelector;
+import com.messagenetsystems.evolutionupdater.utilities.RootShell;
 
+import java.util.Arrays;
 import java.util.Date;
 
 public class MainUpdaterService extends Service {
@@ -42,9 +48,10 @@ public class MainUpdaterService extends Service {
     private NotificationCompat.Builder mNotifBuilder;
 
     private SystemFunctions systemFunctions;
-    public static String serverIP;
-    public static String serverPath;
-    public static String localPath;
+    public static volatile String serverIP;                                                          //mirrors of the current UpdaterConfig (kept current by configListener)
+    public static volatile String serverPath;
+    public static volatile String localPath;
+    private UpdaterConfig.Listener configListener = null;
 
     /** DEV-NOTE: Start here when adding packages to update.
      * Then follow the all found-usages to know where else to update logic (you may want to start in CheckForUpdatesThread and InstallUpdatesThread). */
@@ -54,13 +61,20 @@ public class MainUpdaterService extends Service {
     public static String packageName_evolutionFlasherLights;
     public static String packageName_omniWatchdogWatcher;
 
+    public static volatile InstalledPackageIndex installedPackageIndex;                             //what's installed for each of the above packages (kept current by packageChangedReceiver)
+
     protected static Thread checkForUpdatesThread;
     protected Thread serverSocketThread;
     protected Thread installUpdatesThread;
     protected Thread monitorThreadsThread;
+    protected static Thread downloadVerificationThread;
 
     public static volatile Date threadLastRunDate_checkForUpdatesThread = null;                     //value set/updated by that thread's run routine, and checked by MonitorThreadsThread
     public static volatile Date threadLastRunDate_installUpdatesThread = null;                      //value set/updated by that thread's run routine, and checked by MonitorThreadsThread
+    public static volatile Date threadNextRunDate_checkForUpdatesThread = null;                     //when that thread expects to run next (set before it parks), and checked by MonitorThreadsThread
+    public static volatile Date threadNextRunDate_installUpdatesThread = null;                      //when that thread expects to run next (set before it parks), and checked by MonitorThreadsThread
+    public static volatile WorkScheduler workScheduler_checkForUpdatesThread = null;                //what that thread parks on (set by its constructor), so it can be woken early
+    public static volatile WorkScheduler workScheduler_installUpdatesThread = null;                 //what that thread parks on (set by its constructor), so it can be woken early
 
     public static String serverChecksumRequestStatus = "";
 
@@ -68,6 +82,8 @@ public class MainUpdaterService extends Service {
 
     private String intentFilter_backgroundGetUpdates;
     private BroadcastReceiver backgroundGetUpdatesReceiver;
+    private BroadcastReceiver packageChangedReceiver;
+    private BroadcastReceiver clockChangedReceiver;
 
     public static volatile boolean flag_isDownloading = false;          //intended as a raw, actually-downloading flag, set/used by DownloadFileInBackground and ServerSocketThread)
     public static volatile String flag_isDownloadingPackage = null;     //improved version of flag_isDownloading, gives us the knowledge of what we're downloading (set/used by DownloadFileInBackground and CheckForUpdatesThread)
@@ -195,16 +211,54 @@ public class MainUpdaterService extends Service {
         packageName_evolutionFlasherLights = appContext.getResources().getString(R.string.appPackageName_evolutionFlasherLights);
         packageName_omniWatchdogWatcher = appContext.getResources().getString(R.string.appPackageName_omniWatchdogWatcher);
 
-        // Initialize vars
-        serverIP = systemFunctions.getSharedPrefsServerIPv4_su_evolution();
-        serverPath = appContext.getResources().getString(R.string.updatePackageServerPath);
-        localPath = appContext.getResources().getString(R.string.updateFileDownloadPath);
+        // Index what's currently installed for those packages (after this, it's only updated by package-change broadcasts)
+        installedPackageIndex = new InstalledPackageIndex(appContext, Arrays.asList(
+                packageName_evolution,
+                packageName_evolutionWatchdog,
+                packageName_evolutionUpdater,
+                packageName_evolutionFlasherLights,
+                packageName_omniWatchdogWatcher));
+        installedPackageIndex.refreshAll();
+
+        // Start keeping track of network connectivity (so checking it later is just a read)
+        NetworkMonitor.startListening(appContext);
+
+        // Load (or measure, if this is the first time) this device's checksum algorithm speeds, so nothing has to wait on that later
+        final DigestSelector digestSelector = systemFunctions.getDigestSelector();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                digestSelector.getThroughputTable();
+            }
+        }).start();
+
+        // Initialize vars (from the merged config; they're updated whenever it changes)
+        final UpdaterConfig.Snapshot config = UpdaterConfig.getInstance(appContext).getSnapshot();
+        serverIP = config.serverIP;
+        serverPath = config.serverPath;
+        localPath = config.localPath;
+        configListener = new UpdaterConfig.Listener() {
+            @Override
+            public void onConfigChanged(UpdaterConfig.Snapshot oldConfig, UpdaterConfig.Snapshot newConfig) {
+                if (newConfig.serverIP != null && !newConfig.serverIP.equals(serverIP)) {
+                    Log.i(TAG, "onConfigChanged: Server IP changed from \""+serverIP+"\" to \""+newConfig.serverIP+"\".");
+                    serverIP = newConfig.serverIP;
+                }
+                serverPath = newConfig.serverPath;
+                localPath = newConfig.localPath;
+
+                // Windows, flags, or intervals may have changed, so have the work threads reconsider when they next need to run
+                wakeWorkThreads("config v"+newConfig.version);
+            }
+        };
+        UpdaterConfig.getInstance(appContext).addListener(configListener);
 
         // Initialize threads
         checkForUpdatesThread = new CheckForUpdatesThread(appContext);
         serverSocketThread = new ServerSocketThread(appContext);
         installUpdatesThread = new InstallUpdatesThread(appContext);
         monitorThreadsThread = new MonitorThreadsThread(appContext);
+        downloadVerificationThread = new DownloadVerificationThread(appContext);
 
         msgHandler = new InternalMessageHandler(appContext);
 
@@ -213,6 +267,8 @@ public class MainUpdaterService extends Service {
 
         // Instantiate broadcast receivers
         backgroundGetUpdatesReceiver = new BackgroundGetUpdatesReceiver(appContext);
+        packageChangedReceiver = new PackageChangedReceiver(installedPackageIndex);
+        clockChangedReceiver = new ClockChangedReceiver();
 
     }
 
@@ -226,12 +282,36 @@ public class MainUpdaterService extends Service {
             installUpdatesThread.interrupt();
         if (monitorThreadsThread != null)
             monitorThreadsThread.interrupt();
+        if (downloadVerificationThread != null)
+            downloadVerificationThread.interrupt();
 
         // Unregister receivers
         if (backgroundGetUpdatesReceiver != null) {
             appContext.unregisterReceiver(backgroundGetUpdatesReceiver);
             backgroundGetUpdatesReceiver = null;
         }
+        if (packageChangedReceiver != null) {
+            appContext.unregisterReceiver(packageChangedReceiver);
+            packageChangedReceiver = null;
+        }
+        if (clockChangedReceiver != null) {
+            appContext.unregisterReceiver(clockChangedReceiver);
+            clockChangedReceiver = null;
+        }
+
+        // Stop listening for config changes (and forget any server overrides)
+        if (configListener != null) {
+            UpdaterConfig.getInstance(appContext).removeListener(configListener);
+            configListener = null;
+        }
+        UpdaterConfig.shutdown();
+
+        // Stop tracking network connectivity and runtime flags changes
+        NetworkMonitor.shutdown();
+        RuntimeFlags.shutdown();
+
+        // End the root shell sessions
+        RootShell.closeAll();
 
         // Explicitly mark things for garbage collection (do this very last!)
         appContext = null;
@@ -239,6 +319,7 @@ public class MainUpdaterService extends Service {
         checkForUpdatesThread = null;
         serverSocketThread = null;
         monitorThreadsThread = null;
+        downloadVerificationThread = null;
 
         if (systemFunctions != null) {
             systemFunctions.cleanup();
@@ -255,7 +336,21 @@ public class MainUpdaterService extends Service {
         startThread_serverSocketThread();
         startThread_installUpdatesThread();
         startThread_monitorThreadsThread();
+        startThread_downloadVerificationThread();
     }
+    /** Wake the work threads (CheckForUpdatesThread and InstallUpdatesThread) from parking, so they check right away
+     * whether there's anything to do (they'll park again if there isn't). */
+    public static void wakeWorkThreads(String reason) {
+        final WorkScheduler checkForUpdatesScheduler = workScheduler_checkForUpdatesThread;
+        final WorkScheduler installUpdatesScheduler = workScheduler_installUpdatesThread;
+        if (checkForUpdatesScheduler != null) {
+            checkForUpdatesScheduler.wake(reason);
+        }
+        if (installUpdatesScheduler != null) {
+            installUpdatesScheduler.wake(reason);
+        }
+    }
+
     public static void startThread_checkForUpdatesThread() {
         final String TAGG = "startThread_checkForUpdatesThread: ";
         Log.d(TAG, TAGG+"Starting a CheckForUpdatesThread instance...");
@@ -277,11 +372,38 @@ public class MainUpdaterService extends Service {
         monitorThreadsThread.start();
     }
 
+    public void startThread_downloadVerificationThread() {
+        final String TAGG = "startThread_downloadVerificationThread: ";
+        Log.d(TAG, TAGG+"Starting a DownloadVerificationThread instance...");
+        downloadVerificationThread.start();
+    }
+
+    /** Returns true if the DownloadVerificationThread is running (it only waits for work, so it has no run dates to check). */
+    public static boolean isDownloadVerificationThreadAlive() {
+        final Thread thread = downloadVerificationThread;
+        return thread != null && thread.isAlive();
+    }
+
+    /** Replace a DownloadVerificationThread that has died with a new one (a Thread can't be started twice).
+     * Its queue and results are shared, so nothing already requested is lost. */
+    public static void restartThread_downloadVerificationThread(Context context) {
+        final String TAGG = "restartThread_downloadVerificationThread: ";
+        if (isDownloadVerificationThreadAlive()) {
+            Log.d(TAG, TAGG+"Already running, nothing to do.");
+            return;
+        }
+        Log.d(TAG, TAGG+"Starting a new DownloadVerificationThread instance...");
+        downloadVerificationThread = new DownloadVerificationThread(context);
+        downloadVerificationThread.start();
+    }
+
     public void registerReceivers() {
         final String TAGG = "registerReceivers: ";
         Log.d(TAG, TAGG+"Running.");
 
         appContext.registerReceiver(backgroundGetUpdatesReceiver, new IntentFilter(intentFilter_backgroundGetUpdates));
+        appContext.registerReceiver(packageChangedReceiver, PackageChangedReceiver.createIntentFilter());
+        appContext.registerReceiver(clockChangedReceiver, ClockChangedReceiver.createIntentFilter());
     }
 
     /***********************************************************************************************
@@ -297,10 +419,12 @@ public class MainUpdaterService extends Service {
 
         String keyName_command, keyName_threadName;
         String cmd_startThread;
+        Context context;
 
         // Constructor
         InternalMessageHandler(Context context) {
             // Initialize stuff
+            this.context = context;
             this.keyName_command = context.getResources().getString(R.string.bundle_keyname_command);
             this.cmd_startThread = context.getResources().getString(R.string.bundle_command_startThread);
             this.keyName_threadName = context.getResources().getString(R.string.bundle_keyname_threadName);
@@ -322,6 +446,9 @@ public class MainUpdaterService extends Service {
                 } else if (MonitorThreadsThread.THREADNAME_checkForUpdatesThread.equals(String.valueOf(threadNameToStart))) {
                     Log.d(TAG, TAGG+"Message received to request start of thread, \""+MonitorThreadsThread.THREADNAME_checkForUpdatesThread+"\".");
                     startThread_checkForUpdatesThread();
+                } else if (MonitorThreadsThread.THREADNAME_downloadVerificationThread.equals(String.valueOf(threadNameToStart))) {
+                    Log.d(TAG, TAGG+"Message received to request start of thread, \""+MonitorThreadsThread.THREADNAME_downloadVerificationThread+"\".");
+                    restartThread_downloadVerificationThread(context);
                 }
             } else {
                 Log.w(TAG, TAGG+"Unhandled command from Message: \""+command+"\".");
@@ -0,0 +1,324 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** NetworkMonitor
+ * Keeps one up-to-date picture of our network connectivity (whether we're online, over what kind of interface, and
+ * at what link speed), so checking whether we're online is just a volatile read, instead of asking ConnectivityManager
+ * and then (when it says we're offline) forking "su ip link show | grep" to see whether wired ethernet is up anyway.
+ *
+ * The state is recalculated when ConnectivityManager tells us something changed (NetworkCallback), from the active
+ * network's info/capabilities plus the interface's operstate, carrier and speed in /sys/class/net (plain file reads,
+ * no root or fork needed).
+ *
+ * Wired ethernet is whichever physical, non-wireless ethernet interface in /sys/class/net is up with carrier (not just
+ * "eth0", since some of our hardware names it otherwise, or has more than one).
+ *
+ * ConnectivityManager doesn't always know about wired ethernet on our hardware (which is why nicEthIsUp existed), and
+ * nothing tells us when a cable is plugged in or pulled in that case. So whenever the state wasn't confirmed by
+ * ConnectivityManager (or we aren't listening to it), it's re-read from sysfs (microseconds) if it's older than a few
+ * seconds. Only one thread re-reads at a time (others get the current state meanwhile), and no lock is held while it
+ * does, since that may fall back to a root shell.
+ *
+ * Only the service starts listening (startListening, balanced by its shutdown). After shutdown, the monitor is kept
+ * rather than re-created, so anything asking for it afterwards doesn't register a callback that's never unregistered;
+ * it just re-reads the state when asked.
+ *
+ * Usage:
+ *  NetworkMonitor.startListening(appContext);                                 //(MainUpdaterService)
+ *  if (NetworkMonitor.getInstance(appContext).isOnline()) ...
+ *  NetworkMonitor.State state = NetworkMonitor.getInstance(appContext).getState();     //interface type, name, speed
+ */
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NetworkMonitor {
+    private static final String TAG = NetworkMonitor.class.getSimpleName();
+
+    public static final int INTERFACE_TYPE_NONE = 0;
+    public static final int INTERFACE_TYPE_ETHERNET = 1;
+    public static final int INTERFACE_TYPE_WIFI = 2;
+    public static final int INTERFACE_TYPE_CELLULAR = 3;
+    public static final int INTERFACE_TYPE_OTHER = 4;
+
+    public static final int SOURCE_CONNECTIVITY_MANAGER = 1;                                        //state was confirmed by ConnectivityManager
+    public static final int SOURCE_SYSFS = 2;                                                       //state is only what sysfs says (ConnectivityManager had nothing)
+
+    public static final String WIRED_INTERFACE_NAME_PREFIX = "eth";                                 //only for the root fallback (see SystemFunctions.findWiredInterfaceUp_su)
+    private static final String ARPHRD_ETHER = "1";                                                 //sysfs "type" of an ethernet (or wifi) interface
+
+    private static final String SYSFS_NET_DIR = "/sys/class/net";
+    private static final long SYSFS_RECHECK_INTERVAL_MS = 5 * 1000;
+
+    private static NetworkMonitor instance = null;
+
+    private final ConnectivityManager connectivityManager;
+    private volatile ConnectivityManager.NetworkCallback networkCallback = null;
+    private volatile State state;
+    private final AtomicBoolean isRechecking = new AtomicBoolean(false);
+
+    /** Return the shared monitor (reading the state when first created; see startListening). */
+    public static synchronized NetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new NetworkMonitor(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+            instance.update();
+        }
+        return instance;
+    }
+
+    /** Start listening for connectivity changes (if we aren't already). Returns the shared monitor. */
+    public static synchronized NetworkMonitor startListening(Context context) {
+        final NetworkMonitor ret = getInstance(context);
+        if (ret.networkCallback == null) {
+            ret.start();
+        }
+        return ret;
+    }
+
+    /** Stop listening for connectivity changes. The monitor is kept (not re-created, so nothing starts listening again
+     * until startListening is called), and only re-reads the state when asked. */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stop();
+        }
+    }
+
+    private NetworkMonitor(Context appContext) {
+        this.connectivityManager = (ConnectivityManager) appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /** Returns true if we're online (connected or connecting, or wired ethernet is up). */
+    public boolean isOnline() {
+        return getState().isOnline;
+    }
+
+    /** Returns the current connectivity state. */
+    public State getState() {
+        State current = state;
+        if ((current.source != SOURCE_CONNECTIVITY_MANAGER || networkCallback == null) && current.getAgeMS() >= SYSFS_RECHECK_INTERVAL_MS
+                && isRechecking.compareAndSet(false, true)) {
+            try {
+                current = update();
+            } finally {
+                isRechecking.set(false);
+            }
+        }
+        return current;
+    }
+
+    private void start() {
+        final String TAGG = "start: ";
+
+        try {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    update();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    update();
+                }
+
+                @Override
+                public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                    update();
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    update();
+                }
+            };
+            connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+            Log.d(TAG, TAGG+"Listening for connectivity changes. Current state: "+state+".");
+        } catch (Exception e) {
+            networkCallback = null;
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+        }
+    }
+
+    private void stop() {
+        if (networkCallback != null) {
+            try {
+                connectivityManager.unregisterNetworkCallback(networkCallback);
+            } catch (Exception e) {
+                Log.w(TAG, "stop: Exception caught: "+e.getMessage());
+            }
+            networkCallback = null;
+        }
+    }
+
+    /** Recalculate the state from ConnectivityManager and sysfs (or root, if sysfs can't be read), and publish it
+     * unless a newer one was published meanwhile. Holds no lock while reading. */
+    private State update() {
+        final String TAGG = "update: ";
+
+        State newState = null;
+
+        try {
+            final Network network = connectivityManager.getActiveNetwork();
+            final NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            //NOTES: isAvailable (whether connectivity is possible) / isConnected (whether actually connected) / isConnectedOrConnecting (whether connected or trying to connect)
+            if (network != null && networkInfo != null && networkInfo.isConnectedOrConnecting()) {
+                final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
+                final LinkProperties linkProperties = connectivityManager.getLinkProperties(network);
+                final String interfaceName = (linkProperties == null ? null : linkProperties.getInterfaceName());
+
+                int linkSpeedMbps = readLinkSpeedMbps(interfaceName);
+                if (linkSpeedMbps < 0 && capabilities != null && capabilities.getLinkDownstreamBandwidthKbps() > 0) {
+                    linkSpeedMbps = capabilities.getLinkDownstreamBandwidthKbps() / 1000;
+                }
+
+                newState = new State(true, getInterfaceType(capabilities), interfaceName, linkSpeedMbps, SOURCE_CONNECTIVITY_MANAGER);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, TAGG+"Exception caught asking ConnectivityManager: "+e.getMessage());
+        }
+
+        //if no network detected above, we could be wired (which ConnectivityManager doesn't always know about), so check that...
+        if (newState == null) {
+            final String wiredInterfaceName = SystemFunctions.findWiredInterfaceUp();
+            if (wiredInterfaceName != null) {
+                newState = new State(true, INTERFACE_TYPE_ETHERNET, wiredInterfaceName, readLinkSpeedMbps(wiredInterfaceName), SOURCE_SYSFS);
+            } else {
+                newState = new State(false, INTERFACE_TYPE_NONE, null, -1, SOURCE_SYSFS);
+            }
+        }
+
+        synchronized (this) {
+            final State oldState = state;
+            if (oldState != null && oldState.takenAt - newState.takenAt > 0) {
+                return oldState;    //(another update finished reading after us, so it's the more current)
+            }
+            state = newState;
+            if (oldState == null || oldState.isOnline != newState.isOnline || oldState.interfaceType != newState.interfaceType) {
+                Log.i(TAG, TAGG+"Connectivity is now: "+newState+".");
+            }
+        }
+        return newState;
+    }
+
+    private static int getInterfaceType(NetworkCapabilities capabilities) {
+        if (capabilities == null) {
+            return INTERFACE_TYPE_OTHER;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return INTERFACE_TYPE_ETHERNET;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return INTERFACE_TYPE_WIFI;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return INTERFACE_TYPE_CELLULAR;
+        }
+        return INTERFACE_TYPE_OTHER;
+    }
+
+    /** Returns true if the specified interface is up and has carrier (a cable/link), according to sysfs.
+     * Throws if sysfs couldn't be read at all (so caller can fall back to another method, see SystemFunctions.nicEthIsUp). */
+    public static boolean interfaceIsUp_sysfs(String interfaceName) throws IOException {
+        final String operstate = readSysfsValue(interfaceName, "operstate");
+        if (operstate == null) {
+            throw new IOException("Could not read operstate for "+interfaceName);
+        }
+        return "up".equals(operstate) && "1".equals(readSysfsValue(interfaceName, "carrier"));
+    }
+
+    /** Returns the name of a wired ethernet interface that's up and has carrier, or null if none is, according to sysfs.
+     * Wired means ethernet type, backed by a device (not virtual, e.g. a bridge), and not wireless. If several are up,
+     * the first by name is returned.
+     * Throws if sysfs couldn't be read at all (so caller can fall back to another method, see SystemFunctions.nicEthIsUp). */
+    public static String findWiredInterfaceUp_sysfs() throws IOException {
+        final String[] interfaceNames = new File(SYSFS_NET_DIR).list();
+        if (interfaceNames == null) {
+            throw new IOException("Could not list "+SYSFS_NET_DIR);
+        }
+        Arrays.sort(interfaceNames);
+
+        for (String interfaceName : interfaceNames) {
+            final File interfaceDir = new File(SYSFS_NET_DIR, interfaceName);
+            if (!ARPHRD_ETHER.equals(readSysfsValue(interfaceName, "type"))
+                    || !new File(interfaceDir, "device").exists()
+                    || new File(interfaceDir, "wireless").exists() || new File(interfaceDir, "phy80211").exists()) {
+                continue;
+            }
+            if (interfaceIsUp_sysfs(interfaceName)) {
+                return interfaceName;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the interface's link speed in Mbps from sysfs, or -1 if it isn't known (e.g. wifi, or link down). */
+    private static int readLinkSpeedMbps(String interfaceName) {
+        try {
+            final int speed = Integer.parseInt(String.valueOf(readSysfsValue(interfaceName, "speed")));
+            return (speed > 0 ? speed : -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the (trimmed) contents of /sys/class/net/<interface>/<attribute>, or null if it can't be read. */
+    private static String readSysfsValue(String interfaceName, String attribute) {
+        if (interfaceName == null) {
+            return null;
+        }
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(new File(SYSFS_NET_DIR + "/" + interfaceName, attribute)));
+            final String line = br.readLine();
+            return (line == null ? null : line.trim());
+        } catch (IOException e) {
+            return null;     //(no such interface, or attribute not readable while link is down, e.g. speed)
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    //(nothing to do)
+                }
+            }
+        }
+    }
+
+    /** Connectivity at one point in time. Immutable. */
+    public static class State {
+        public final boolean isOnline;
+        public final int interfaceType;                                                             //one of the INTERFACE_TYPE constants
+        public final String interfaceName;                                                          //e.g. "eth0", "wlan0" (null if unknown)
+        public final int linkSpeedMbps;                                                             //-1 if unknown
+        public final int source;                                                                    //one of the SOURCE constants
+        private final long takenAt = System.nanoTime();
+
+        State(boolean isOnline, int interfaceType, String interfaceName, int linkSpeedMbps, int source) {
+            this.isOnline = isOnline;
+            this.interfaceType = interfaceType;
+            this.interfaceName = interfaceName;
+            this.linkSpeedMbps = linkSpeedMbps;
+            this.source = source;
+        }
+
+        public long getAgeMS() {
+            return (System.nanoTime() - takenAt) / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return (isOnline ? "online" : "offline") + " (interface type " + interfaceType + ", " + interfaceName
+                    + ", " + linkSpeedMbps + "Mbps, source " + source + ")";
+        }
+    }
+}
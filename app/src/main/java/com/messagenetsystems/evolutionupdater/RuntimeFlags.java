@@ -0,0 +1,233 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** RuntimeFlags
+ * The flags in the runtime flags file (/sdcard/evoRuntimeFlagsFile, "NAME=value" lines, written by the main app),
+ * parsed once into an immutable map, so looking up a flag is just a hash lookup instead of reading the whole file.
+ *
+ * The file is only parsed again when it has changed:
+ *  - A FileObserver on its directory marks the snapshot stale when the file is written, replaced, or deleted.
+ *  - Since inotify doesn't see every write on emulated storage (e.g. one made through /data/media rather than /sdcard),
+ *    the file's modified-time and size are also checked, at most every few seconds.
+ *
+ * A new snapshot is published atomically, so readers always see one whole version of the file or another.
+ *
+ * Listeners are told (on the observer's thread) when the observer sees the file change, so they can read it again
+ * without polling. Changes only the modified-time check notices aren't pushed; they're seen on the next read.
+ *
+ * Names are matched exactly (trimmed). If a name appears more than once, the last one wins (as before).
+ * A flag with no value (or an empty one) reads as null, the same as a flag that isn't there.
+ *
+ * Usage:
+ *  String value = RuntimeFlags.getInstance().get("UPDATE_INSTALL_WINDOW_START");
+ *  if (RuntimeFlags.getInstance().getBoolean("UPDATE_INSTALL_DISALLOW")) ...
+ */
+
+import android.os.Environment;
+import android.os.FileObserver;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RuntimeFlags {
+    private static final String TAG = RuntimeFlags.class.getSimpleName();
+
+    public static final String FILE_NAME = "evoRuntimeFlagsFile";
+
+    private static final long MTIME_CHECK_INTERVAL_MS = 5 * 1000;
+    private static final int OBSERVED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MODIFY | FileObserver.CREATE
+            | FileObserver.DELETE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM;
+
+    private static RuntimeFlags instance = null;
+
+    private final File file;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean changed = true;                                                        //set by the observer (and to force the first load)
+    private volatile long lastCheckedAt = 0;                                                        //System.nanoTime of the last mtime check
+    private FileObserver fileObserver = null;
+
+    /** Return the shared flags (it starts watching the file when first created). */
+    public static synchronized RuntimeFlags getInstance() {
+        if (instance == null) {
+            instance = new RuntimeFlags(new File(Environment.getExternalStorageDirectory(), FILE_NAME));
+            instance.startWatching();
+        }
+        return instance;
+    }
+
+    /** Stop watching the file (new flags are created if they're asked for again). */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.stopWatching();
+            instance = null;
+        }
+    }
+
+    private RuntimeFlags(File file) {
+        this.file = file;
+    }
+
+    /** Returns the specified flag's value, or null if it isn't set (or has no value). */
+    public String get(String flagName) {
+        return getSnapshot().flags.get(flagName);
+    }
+
+    /** Returns the specified flag's value as a boolean ("1"/"true" or "0"/"false"); false if it isn't set or isn't one of those. */
+    public boolean getBoolean(String flagName) {
+        final String value = get(flagName);
+        if (value == null || value.equals("0") || value.equalsIgnoreCase("false")) {
+            return false;
+        } else if (value.equals("1") || value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        Log.w(TAG, "getBoolean(\""+flagName+"\"): Unhandled value (\""+value+"\"). Not sure how to parse, so returning false.");
+        return false;
+    }
+
+    /** Returns all of the flags (unmodifiable), as of the current snapshot. */
+    public Map<String, String> getAll() {
+        return getSnapshot().flags;
+    }
+
+    /** Return the current snapshot, parsing the file again first if it has changed since. */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot.get();
+        if (current != null && !changed) {
+            final long now = System.nanoTime();
+            if (now - lastCheckedAt < TimeUnit.MILLISECONDS.toNanos(MTIME_CHECK_INTERVAL_MS)) {
+                return current;
+            }
+            lastCheckedAt = now;
+            if (file.lastModified() == current.lastModified && file.length() == current.length) {
+                return current;
+            }
+        }
+
+        synchronized (this) {
+            current = snapshot.get();
+            if (current != null && !changed && file.lastModified() == current.lastModified && file.length() == current.length) {
+                return current;     //(another thread just parsed it while we waited)
+            }
+            changed = false;        //(before reading, so a change during the read is picked up next time)
+            current = load(file);
+            lastCheckedAt = System.nanoTime();
+            snapshot.set(current);
+            return current;
+        }
+    }
+
+    /** Be told when the observer sees the file change (the flags may or may not be different; read them to find out). */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void startWatching() {
+        final String TAGG = "startWatching: ";
+
+        final File dir = file.getParentFile();
+        if (dir == null) {
+            Log.w(TAG, TAGG+"No directory to watch, will rely on modified-time checks.");
+            return;
+        }
+
+        fileObserver = new FileObserver(dir.getPath(), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (FILE_NAME.equals(path)) {
+                    changed = true;
+                    for (Listener listener : listeners) {
+                        try {
+                            listener.onRuntimeFlagsFileChanged();
+                        } catch (Exception e) {
+                            Log.e(TAG, "onEvent: Exception caught in listener: "+e.getMessage());
+                        }
+                    }
+                }
+            }
+        };
+        fileObserver.startWatching();
+        Log.d(TAG, TAGG+"Watching "+dir.getPath()+" for changes to "+FILE_NAME+".");
+    }
+
+    private void stopWatching() {
+        if (fileObserver != null) {
+            fileObserver.stopWatching();
+            fileObserver = null;
+        }
+    }
+
+    /** Parse the file's "NAME=value" lines. A missing or unreadable file is just no flags. */
+    private static Snapshot load(File file) {
+        final String TAGG = "load: ";
+
+        // Take these first, so a write that lands while we read makes them differ next time we check
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+
+        final Map<String, String> flags = new HashMap<>();
+        BufferedReader br = null;
+
+        try {
+            br = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = br.readLine()) != null) {
+                final int equals = line.indexOf('=');
+                if (equals <= 0) {
+                    continue;
+                }
+                final String name = line.substring(0, equals).trim();
+                final String value = line.substring(equals + 1).trim();
+                if (value.isEmpty()) {
+                    flags.remove(name);
+                } else {
+                    flags.put(name, value);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Could not read "+file.getPath()+" ("+e.getMessage()+"), so no flags are set.");
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing reader: "+e.getMessage());
+                }
+            }
+        }
+
+        Log.d(TAG, TAGG+"Parsed "+flags.size()+" flags: "+flags);
+        return new Snapshot(Collections.unmodifiableMap(flags), lastModified, length);
+    }
+
+    /** Someone who wants to know when the file changes. */
+    public interface Listener {
+        void onRuntimeFlagsFileChanged();
+    }
+
+    /** One parse of the file. Immutable. */
+    private static class Snapshot {
+        final Map<String, String> flags;
+        final long lastModified;                                                                    //of the file when it was parsed (0 if it didn't exist)
+        final long length;
+
+        Snapshot(Map<String, String> flags, long lastModified, long length) {
+            this.flags = flags;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** SharedPrefsConfig
+ * The main (evolution) app's shared-prefs settings (server IP, device ID, etc.), read as root and parsed whole, so
+ * looking one up is a map lookup instead of a "grep | cut | cut" as root for each value.
+ *
+ * The file is only read again when it has changed: at most every so often (when a value is asked for, or when
+ * checkForChanges is called), one root round trip stats the file and, only if its inode, modified-time or size differs
+ * from what we last read, cats it in the same command. So an unchanged file costs a stat, not a read and parse.
+ * (The modified-time is only to the second, so two same-size writes within a second would look the same by it alone.
+ * But shared-prefs are written to a new file that replaces the old one, which is still there while the new one is
+ * created, so each write's file has a different inode than the last, and the inode tells them apart.)
+ *
+ * When the values change, registered listeners are told (on the thread that noticed), so long-running threads can
+ * pick up e.g. a new server IP without the service being restarted.
+ *
+ * If the file can't be read, the last values we had are kept (none, if we never had any).
+ *
+ * Usage:
+ *  String serverIP = SharedPrefsConfig.getInstance(appContext).getServerIP();
+ *  SharedPrefsConfig.getInstance(appContext).addListener(listener);
+ */
+
+import android.content.Context;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.utilities.ShellExecutor;
+import com.messagenetsystems.evolutionupdater.utilities.ShellResult;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class SharedPrefsConfig {
+    private static final String TAG = SharedPrefsConfig.class.getSimpleName();
+
+    public static final long CHECK_INTERVAL_MS = 30 * 1000;
+
+    private static final String STAT_MARKER = "@@STAT ";
+    private static final long READ_TIMEOUT_MS = 15 * 1000;
+
+    private static SharedPrefsConfig instance = null;
+
+    private final String prefsFile;
+    private final String keyServerIP;
+    private final String keyDeviceID;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Snapshot snapshot = null;
+    private volatile long lastCheckedAt = 0;                                                        //System.nanoTime of the last check
+    private String fileStat = null;                                                                 //inode, modified-time and size ("<inode> <mtime> <size>") the snapshot was read at
+
+    /** Return the shared config (the file is only read when something is first asked for). */
+    public static synchronized SharedPrefsConfig getInstance(Context context) {
+        if (instance == null) {
+            instance = new SharedPrefsConfig(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+        }
+        return instance;
+    }
+
+    private SharedPrefsConfig(Context appContext) {
+        this.prefsFile = appContext.getResources().getString(R.string.appDataPath_evolution) + "/"
+                + appContext.getResources().getString(R.string.sharedPrefsFileSubdir_evolution) + "/"
+                + appContext.getResources().getString(R.string.sharedPrefsFilename_evolution);
+        this.keyServerIP = appContext.getResources().getString(R.string.sharedPrefsValueKey_serverIP);
+        this.keyDeviceID = appContext.getResources().getString(R.string.sharedPrefsValueKey_deviceID);
+    }
+
+    /** Returns the configured server IP, or null if it isn't set (or the file couldn't be read). */
+    public String getServerIP() {
+        return get(keyServerIP);
+    }
+
+    /** Returns the configured device ID, or null if it isn't set (or the file couldn't be read). */
+    public String getDeviceID() {
+        return get(keyDeviceID);
+    }
+
+    /** Returns the specified key's value (as a string, whatever its type in the file), or null if it isn't set. */
+    public String get(String key) {
+        return getSnapshot().values.get(key);
+    }
+
+    /** Return the current values, checking the file for changes first if we haven't in a while. */
+    public Snapshot getSnapshot() {
+        final Snapshot current = snapshot;
+        if (current != null && System.nanoTime() - lastCheckedAt < TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS)) {
+            return current;
+        }
+        return checkForChanges(CHECK_INTERVAL_MS);
+    }
+
+    /** Check the file for changes now (if it hasn't been checked within the specified max-age), telling listeners if
+     * anything changed. Returns the (possibly new) current values. */
+    public synchronized Snapshot checkForChanges(long maxAgeMS) {
+        final String TAGG = "checkForChanges: ";
+
+        Snapshot current = snapshot;
+        if (current != null && System.nanoTime() - lastCheckedAt < TimeUnit.MILLISECONDS.toNanos(maxAgeMS)) {
+            return current;     //(another thread just checked while we waited)
+        }
+
+        // One round trip: the file's stat, and (only if that's not what we last read) its contents
+        final String knownStat = (fileStat == null || fileStat.isEmpty() ? "-" : fileStat);     //(no stat available means always read)
+        final ShellResult result = ShellExecutor.runAsRoot("f=" + quote(prefsFile) + "; s=$(/system/bin/stat -c '%i %Y %s' \"$f\" 2>/dev/null); "
+                + "echo \"" + STAT_MARKER + "$s\"; if [ \"$s\" != " + quote(knownStat) + " ]; then /system/bin/cat \"$f\"; fi", READ_TIMEOUT_MS);
+        lastCheckedAt = System.nanoTime();
+
+        if (result.stdout.isEmpty() || !result.stdout.get(0).startsWith(STAT_MARKER)) {
+            Log.w(TAG, TAGG+"Could not check "+prefsFile+" ("+result+"), keeping what we had.");
+            if (current == null) {
+                snapshot = current = new Snapshot(Collections.<String, String>emptyMap());
+            }
+            return current;
+        }
+
+        final String newStat = result.stdout.get(0).substring(STAT_MARKER.length()).trim();
+        if (current != null && result.stdout.size() == 1 && newStat.equals(fileStat)) {
+            Log.v(TAG, TAGG+"Unchanged ("+newStat+").");
+            return current;
+        }
+
+        final StringBuilder xml = new StringBuilder();
+        for (int i = 1; i < result.stdout.size(); i++) {
+            xml.append(result.stdout.get(i)).append('\n');
+        }
+
+        Map<String, String> values = parse(xml.toString());
+        if (values == null) {
+            Log.w(TAG, TAGG+"Could not parse "+prefsFile+", keeping what we had.");
+            if (current == null) {
+                snapshot = current = new Snapshot(Collections.<String, String>emptyMap());
+            }
+            return current;
+        }
+        fileStat = newStat;
+
+        final Snapshot old = current;
+        if (old != null && old.values.equals(values)) {
+            Log.d(TAG, TAGG+"File changed ("+newStat+"), but none of its values did.");
+            return old;
+        }
+
+        snapshot = current = new Snapshot(Collections.unmodifiableMap(values));
+        Log.i(TAG, TAGG+"Read "+values.size()+" values (server IP \""+values.get(keyServerIP)+"\", device ID \""+values.get(keyDeviceID)+"\").");
+
+        if (old != null) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onSharedPrefsChanged(old, current);
+                } catch (Exception e) {
+                    Log.e(TAG, TAGG+"Exception caught in listener: "+e.getMessage());
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Be told when the values change (after the first read). Listeners are called on whatever thread noticed the change. */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Parse a shared-prefs XML file's values, e.g.:
+     *  <map>
+     *      <string name="serverIPv4">192.168.1.58</string>
+     *      <int name="someNumber" value="3" />
+     *      <boolean name="someFlag" value="true" />
+     *  </map>
+     * Returns null if it couldn't be parsed. */
+    private static Map<String, String> parse(String xml) {
+        final String TAGG = "parse: ";
+
+        final Map<String, String> ret = new HashMap<>();
+
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(new StringReader(xml));
+
+            int eventType = xpp.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG && xpp.getDepth() == 2) {
+                    final String name = xpp.getAttributeValue(null, "name");
+                    if (name != null) {
+                        if (xpp.getName().equals("string")) {
+                            final String text = xpp.nextText();
+                            ret.put(name, text);
+                        } else if (xpp.getAttributeValue(null, "value") != null) {
+                            ret.put(name, xpp.getAttributeValue(null, "value"));     //(int, long, float, boolean)
+                        }
+                    }
+                }
+                eventType = xpp.next();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            return null;
+        }
+
+        return ret;
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /** Someone who wants to know when the main app's settings change. */
+    public interface Listener {
+        void onSharedPrefsChanged(Snapshot oldValues, Snapshot newValues);
+    }
+
+    /** The values at one point in time. Immutable. */
+    public static class Snapshot {
+        public final Map<String, String> values;                                                    //unmodifiable
+
+        Snapshot(Map<String, String> values) {
+            this.values = values;
+        }
+
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        /** Returns true if the specified key's value is different in the other snapshot. */
+        public boolean differs(Snapshot other, String key) {
+            final String value = values.get(key);
+            final String otherValue = (other == null ? null : other.values.get(key));
+            return (value == null ? otherValue != null : !value.equals(otherValue));
+        }
+    }
+}
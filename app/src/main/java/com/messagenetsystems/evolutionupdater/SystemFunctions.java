@@ -15,15 +15,28 @@ package com.messagenetsystems.evolutionupdater;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
+import android.content.pm.PackageManager;
 import android.net.wifi.WifiManager;
-import android.os.Environment;
 import android.support.annotation.Nullable;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
 
+import com.messagenetsystems.evolutionupdater.utilities.ApkFingerprint;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumCache;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumRecord;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+import com.messagenetsystems.evolutionupdater.utilities.DigestAlgorithm;
+import com.messagenetsystems.evolutionupdater.utilities.DigestSelector;
+import com.messagenetsystems.evolutionupdater.utilities.DigestSidecar;
+import com.messagenetsystems.evolutionupdater.utilities.MountManager;
+import com.messagenetsystems.evolutionupdater.utilities.ProcessTable;
+import com.messagenetsystems.evolutionupdater.utilities.RootQueryBatch;
+import com.messagenetsystems.evolutionupdater.utilities.ShellExecutor;
+import com.messagenetsystems.evolutionupdater.utilities.ShellResult;
+import com.messagenetsystems.evolutionupdater.utilities.TreeHasher;
+import com.messagenetsystems.evolutionupdater.utilities.VerifiedCopy;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.xmlpull.v1.XmlPullParser;
@@ -39,16 +52,18 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.DateFormat;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Locale;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /** SystemFunctions
  *
@@ -60,15 +75,16 @@ public class SystemFunctions {
     private static final String TAG = SystemFunctions.class.getSimpleName();
     private Context appContext;
 
-    public static String serverIP = null;
+    private static final String CHECKSUM_CACHE_INDEX_FILENAME = "checksumCache.idx";
+    private static ChecksumCache checksumCache = null;                                              //shared by all instances, since they all hash the same files
+    private static final String DIGEST_THROUGHPUT_TABLE_FILENAME = "digestThroughput.tbl";
+    private static DigestSelector digestSelector = null;                                            //shared by all instances, since throughput is a property of the device
 
     private int wifiCycleCounter = 0;
 
     /** Constructor */
     public SystemFunctions(Context appContext) {
         this.appContext = appContext;
-
-        serverIP = getSharedPrefsServerIPv4_su_evolution();
     }
 
     /** Destructor */
@@ -77,50 +93,26 @@ public class SystemFunctions {
     }
 
     /** Check whether the specified app is currently a "running" process.
-     * Requires root. Depends on unix 'ps' command result.
+     * Uses the shared ProcessTable snapshot (read from /proc, as root only if /proc is hidden from us), so repeated
+     * checks within its max-age cost nothing more than a lookup.
      * Returns false by default.
      */
     public boolean specifiedAppProcessIsRunning(String appPackageName) {
         final String TAGG = "specifiedAppProcessIsRunning(\""+appPackageName+"\"): ";
 
-        Process process;
         boolean ret = false;
-        BufferedReader stdin;
 
-        Log.d(TAG, TAGG+"Checking whether app is a running process...");
         try {
-            // Run the unix command, should return a count of matches
-            // Note: -w option gives us exact match.
-            process = Runtime.getRuntime().exec(new String[]{"su", "-c", "/system/bin/ps | /system/bin/grep -c -w "+appPackageName});
-            if ((process.waitFor() != 0)) {
-                throw new SecurityException();
-            }
-
-            // Process the output of the above command (read the count of matches it produced)
-            stdin = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String cmdResult = stdin.readLine();
-            Log.v(TAG, TAGG+"Result of process check = \""+cmdResult+"\".");
-            int cmdResultAsInt = Integer.parseInt(cmdResult);
+            List<Integer> pids = ProcessTable.getInstance().getPids(appPackageName);
+            Log.v(TAG, TAGG+"Process IDs = "+pids+".");
 
             // Set the return value depending on our result
-            if (cmdResultAsInt == 1) {
-                ret = true;
-            } else if (cmdResultAsInt > 1) {
-                /* NOTE: Didn't end up needing this after using -w grep exact match option!
-                //Note: This could happen, for instance if you specify "com.messagenetsystems.evolution" and the ps command finds (since both processes contain the match criteria):
-                //  USER      PID   PPID  VSIZE   RSS    WCHAN      PC           NAME
-                //  u0_a60    1464  310   2479096 135984 SyS_epoll_ 7776fedb40 S com.messagenetsystems.evolution
-                //  u0_a59    1502  310   1558444  78948 SyS_epoll_ 7776fedb40 S com.messagenetsystems.evolutionwatchdog
-                Log.i(TAG, TAGG+"There appears to be more than one match. This is probably OK, though.");
+            if (pids.size() == 1) {
                 ret = true;
-                */
-                Log.w(TAG, TAGG+"There are "+cmdResult+" matches. There should only be one!");
+            } else if (pids.size() > 1) {
+                Log.d(TAG, TAGG+"There are "+pids.size()+" processes (app has extra android:process processes, or is restarting).");
                 ret = true;
             }
-        } catch (IOException io) {
-            Log.e(TAG, TAGG + "IOException caught: " + io.getMessage());
-        } catch(SecurityException e) {
-            Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
         } catch (Exception e){
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
@@ -130,42 +122,27 @@ public class SystemFunctions {
     }
 
     /** Check whether the specified app is currently in the foreground.
-     * Requires root. Uses dumpsys command.
+     * Uses the shared ForegroundTracker reading (usage stats, or dumpsys as root if those aren't available).
      * Returns false by default.
      */
     public boolean specifiedAppIsInForeground(String appPackageName) {
         final String TAGG = "specifiedAppIsInForeground(\""+appPackageName+"\"): ";
 
-        Process process;
         boolean ret = false;
-        BufferedReader stdin;
 
-        Log.d(TAG, TAGG+"Checking whether app is in the foreground...");
         try {
-            // Run the unix command to give us the currently foreground app's namespace
-            process = Runtime.getRuntime().exec(new String[]{"su", "-c", "/system/bin/dumpsys window windows | /system/bin/grep -E 'mCurrentFocus' | /system/bin/busybox awk '{print $3}' | /system/bin/cut -d'/' -f1"});
-            if ((process.waitFor() != 0)) {
-                throw new SecurityException();
-            }
-
-            // Process the output of the above command (read the app's namespace it produced)
-            stdin = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String cmdResult = stdin.readLine();
-            Log.v(TAG, TAGG+"Result of process check = \""+cmdResult+"\".");
+            ForegroundTracker.Reading reading = ForegroundTracker.getInstance(appContext).getForeground();
+            Log.v(TAG, TAGG+"Foreground = "+reading+".");
 
             // Set the return value depending on our result
-            Log.v(TAG, TAGG+"Command result = \""+cmdResult+"\".");
-            if (appPackageName.equals(String.valueOf(cmdResult))) {
-                ret = true;
-            } else if ("".equals(String.valueOf(cmdResult))) {
+            if (reading.state == ForegroundTracker.STATE_FOREGROUND) {
+                ret = appPackageName.equals(reading.packageName);
+            } else if (reading.state == ForegroundTracker.STATE_SWITCHING) {
                 //in bench testing, this might sometimes happen (where dumpsys reports no mCurrentFocus), probably when switching activity screens and there's lag
                 //return an assumed true so we don't errantly do stuff
                 ret = true;
             }
-        } catch (IOException io) {
-            Log.e(TAG, TAGG + "IOException caught: " + io.getMessage());
-        } catch(SecurityException e) {
-            Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
+            //(nothing in front, or couldn't tell at all: false, as when the check itself used to fail)
         } catch (Exception e){
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
@@ -175,38 +152,24 @@ public class SystemFunctions {
     }
 
     /** Check whether the specified class name (e.g. activity) is currently in the foreground.
-     * Requires root. Uses dumpsys command.
+     * Matches either the fully qualified class name, or just its simple name (e.g. "MainActivity").
+     * Uses the shared ForegroundTracker reading (usage stats, or dumpsys as root if those aren't available).
      * Returns false by default.
      */
     public boolean specifiedClassIsInForeground(String className) {
         final String TAGG = "specifiedClassIsInForeground(\""+className+"\"): ";
 
-        Process process;
         boolean ret = false;
-        BufferedReader stdin;
 
-        Log.d(TAG, TAGG+"Checking whether class is in the foreground...");
         try {
-            // Run the unix command to give us the currently foreground app's namespace
-            process = Runtime.getRuntime().exec(new String[]{"su", "-c", "/system/bin/dumpsys window windows | /system/bin/grep -E 'mCurrentFocus' | /system/bin/busybox awk '{print $3}' | /system/bin/cut -d'/' -f2 | /system/bin/cut -d'.' -f4 | /system/bin/cut -d'}' -f1"});
-            if ((process.waitFor() != 0)) {
-                throw new SecurityException();
-            }
-
-            // Process the output of the above command (read the app's namespace it produced)
-            stdin = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String cmdResult = stdin.readLine();
-            Log.v(TAG, TAGG+"Result of process check = \""+cmdResult+"\".");
+            ForegroundTracker.Reading reading = ForegroundTracker.getInstance(appContext).getForeground();
+            Log.v(TAG, TAGG+"Foreground = "+reading+".");
 
             // Set the return value depending on our result
-            Log.v(TAG, TAGG+"Command result = \""+cmdResult+"\".");
-            if (className.equals(String.valueOf(cmdResult))) {
+            String foregroundSimpleName = reading.className.substring(reading.className.lastIndexOf('.') + 1);
+            if (className.equals(reading.className) || className.equals(foregroundSimpleName)) {
                 ret = true;
             }
-        } catch (IOException io) {
-            Log.e(TAG, TAGG + "IOException caught: " + io.getMessage());
-        } catch(SecurityException e) {
-            Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
         } catch (Exception e){
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
@@ -224,69 +187,27 @@ public class SystemFunctions {
         final String TAGG = "startSpecifiedApp(\""+appPackageName+"."+appClassToStart+"\"): ";
 
         boolean ret = false;
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
 
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
             Log.d(TAG, TAGG + "Starting app via activity manager...");
-            stdin.write(("am start -n "+appPackageName+"/"+appPackageName+"."+appClassToStart+"\n").getBytes());
+            ShellResult result = ShellExecutor.runAsRoot("am start -n "+appPackageName+"/"+appPackageName+"."+appClassToStart);
+            ProcessTable.getInstance().invalidate();     //(so the next process check sees the change)
+            ForegroundTracker.getInstance(appContext).invalidate();
 
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stdout) {
                 Log.v(TAG, TAGG+"stdout line: "+line);
                 if (line.contains("Starting:")) {
                     ret = true;
                 }
             }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+"stderr line: "+line);
                 ret = false;
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
-
-        //} catch(SecurityException e) {
-        //    Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
-        }
-
         // Return
         Log.v(TAG, TAGG+"Returning: "+String.valueOf(ret));
         return ret;
@@ -299,67 +220,58 @@ public class SystemFunctions {
         final String TAGG = "stopSpecifiedApp(\""+appPackageName+"\"): ";
 
         boolean ret = true;
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
 
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
             Log.d(TAG, TAGG + "Stopping app via activity manager...");
-            stdin.write(("am force-stop "+appPackageName+"\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
+            ShellResult result = ShellExecutor.runAsRoot("am force-stop "+appPackageName);
+            ProcessTable.getInstance().invalidate();     //(so the next process check sees the change)
 
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stdout) {
                 Log.v(TAG, TAGG+"stdout line: "+line);
             }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+"stderr line: "+line);
                 ret = false;
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
-
-        //} catch(SecurityException e) {
-        //    Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
+            if (result.exitCode == ShellResult.EXIT_CODE_FAILED) {
+                ret = false;
+            }
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
+        // Return
+        Log.v(TAG, TAGG+"Returning: "+String.valueOf(ret));
+        return ret;
+    }
+
+    public static final long STOP_APP_TIMEOUT_MS = 5 * 1000;                                        //force-stopped apps normally exit within a few hundred ms
+
+    /** Stop the specified app (force-stop, sent once) and wait for its processes to actually exit.
+     * Returns as soon as they're gone (or right away if it wasn't running), so callers don't need retry loops or fixed delays.
+     * Requires root.
+     * Returns true if no process of the app is left running, false if the deadline passed first.
+     */
+    public boolean stopSpecifiedAppAndWait(String appPackageName, long timeoutMS) {
+        final String TAGG = "stopSpecifiedAppAndWait(\""+appPackageName+"\"): ";
+
+        boolean ret = false;
+
+        try {
+            final List<Integer> pids = ProcessTable.getInstance().getSnapshot(0).getPids(appPackageName);
+            Log.d(TAG, TAGG+"Process IDs to wait for = "+pids+".");
+
+            // Send the force-stop regardless (it also cancels anything that might restart the app)
+            stopSpecifiedApp(appPackageName);
+
+            ret = ProcessTable.getInstance().waitForExit(pids, timeoutMS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, TAGG+"Interrupted while waiting for app to stop.");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
 
-        // Return
         Log.v(TAG, TAGG+"Returning: "+String.valueOf(ret));
         return ret;
     }
@@ -532,60 +444,10 @@ public class SystemFunctions {
         final String TAGG = "getSharedPrefsServerIPv4_su_evolution: ";
 
         String ret = null;
-        Process process;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
 
         try {
-            // Get the search criteria (ex. <string name="serverIPv4">192.168.1.58</string>)
-            String spKeyname_serverIP = appContext.getResources().getString(R.string.sharedPrefsValueKey_serverIP);
-
-            // Get app's shared-prefs XML filename and path (ex. /data/user/0/com.messagenetsystems.evolution/shared_prefs/com.messagenetsystems.evolution_preferences.xml)
-            String sharedPrefsFile = determineAppSharedPrefsPathAndFile(appContext.getResources().getString(R.string.appPackageName_evolution));
-
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            Log.d(TAG, TAGG + "Looking in shared prefs file for configured server IP...");
-            stdin.write(("/system/bin/grep "+spKeyname_serverIP+" "+sharedPrefsFile+" | /system/bin/cut -d'>' -f2 | /system/bin/cut -d'<' -f1\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG+"stdout line: "+line);
-                ret = line;
-            }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
-                Log.w(TAG, TAGG+"stderr line: "+line);
-            }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
+            // (read as root, cached and only re-read when the file changes; see SharedPrefsConfig)
+            ret = SharedPrefsConfig.getInstance(appContext).getServerIP();
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
@@ -603,60 +465,10 @@ public class SystemFunctions {
         final String TAGG = "getSharedPrefsDeviceID_su_evolution: ";
 
         String ret = null;
-        Process process;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
 
         try {
-            // Get the search criteria (ex. <string name="serverIPv4">192.168.1.58</string>)
-            String spKeyname_deviceID = appContext.getResources().getString(R.string.sharedPrefsValueKey_deviceID);
-
-            // Get app's shared-prefs XML filename and path (ex. /data/user/0/com.messagenetsystems.evolution/shared_prefs/com.messagenetsystems.evolution_preferences.xml)
-            String sharedPrefsFile = determineAppSharedPrefsPathAndFile(appContext.getResources().getString(R.string.appPackageName_evolution));
-
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            Log.d(TAG, TAGG + "Looking in shared prefs file for configured device ID...");
-            stdin.write(("/system/bin/grep "+spKeyname_deviceID+" "+sharedPrefsFile+" | /system/bin/cut -d'>' -f2 | /system/bin/cut -d'<' -f1\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG+"stdout line: "+line);
-                ret = line;
-            }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
-                Log.w(TAG, TAGG+"stderr line: "+line);
-            }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
+            // (read as root, cached and only re-read when the file changes; see SharedPrefsConfig)
+            ret = SharedPrefsConfig.getInstance(appContext).getDeviceID();
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
@@ -691,7 +503,7 @@ public class SystemFunctions {
             }
 
             if (okToContinue) {
-                final String checksumURL = "http://" + getSharedPrefsServerIPv4_su_evolution() + "/" + serverPath + "/" + serverChecksumFile;
+                final String checksumURL = "http://" + UpdaterConfig.getInstance(appContext).getSnapshot().serverIP + "/" + serverPath + "/" + serverChecksumFile;
                 if (doesRemoteFileExist_http(checksumURL)) {
 
                     new Thread(new Runnable(){
@@ -744,68 +556,218 @@ public class SystemFunctions {
         //NOTE: Be sure to reset that variable when you're done with it!!!
     }
 
-    /** Calculate MD5 checksum hash for specified file. */
+    /** Calculate MD5 checksum hash for specified file.
+     * If the file hasn't changed (size, modified-time, inode) since we last calculated it, the cached value is returned.
+     * Otherwise, the file is hashed in-process (see ChecksumEngine) whenever our own UID can read it.
+     * Only if it can't be read without root, do we fall back to the (much slower) shell md5sum method.
+     * Returns the lowercase hex checksum, or null if it could not be calculated. */
     public String calculateChecksumForLocalFile(String filename) {
-        final String TAGG = "calculateChecksumForLocalFile(\""+filename+"\"): ";
+        return calculateChecksumForLocalFile(filename, DigestAlgorithm.MD5);
+    }
+
+    /** Calculate checksum hash for specified file, using the specified algorithm (see DigestAlgorithm).
+     * Works just like the MD5 version above, except that only MD5 has a root fallback (for files we can't read).
+     * Returns the bare (untagged) lowercase hex checksum, or null if it could not be calculated. */
+    public String calculateChecksumForLocalFile(String filename, DigestAlgorithm algorithm) {
+        final String TAGG = "calculateChecksumForLocalFile(\""+filename+"\", "+algorithm+"): ";
         Log.v(TAG, TAGG+"Invoked.");
 
         String ret = null;
 
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
+        if (filename == null) {
+            Log.w(TAG, TAGG+"No filename provided.");
+            return null;
+        }
 
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
+            File file = new File(filename);
 
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
+            // Capture the file's identity before anything else, so we can tell if it changes while we're hashing it
+            ChecksumCache.FileIdentity fileIdentity = ChecksumCache.FileIdentity.of(file);
 
-            // Construct and execute command (new-line is like hitting enter)
-            Log.d(TAG, TAGG + "Calculating MD5 checksum..");
-            stdin.write(("/system/bin/md5sum "+filename+" | /system/bin/busybox awk '{printf $1}'\n").getBytes());
+            ret = getChecksumCache().get(file, fileIdentity, algorithm.name());
+            if (ret != null) {
+                Log.v(TAG, TAGG+"Returning cached value: \""+ ret +"\".");
+                return ret;
+            }
 
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
+            // If the file was hashed as it was downloaded, and hasn't changed since, use that value
+            ret = DigestSidecar.read(file, fileIdentity, algorithm.name());
+            if (ret != null) {
+                Log.v(TAG, TAGG+"Returning value recorded during download: \""+ ret +"\".");
+                getChecksumCache().put(file, fileIdentity, algorithm.name(), ret);
+                return ret;
+            }
 
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
+            if (file.exists() && file.canRead()) {
+                ret = ChecksumEngine.calculate(file, algorithm);
+            } else if (algorithm == DigestAlgorithm.MD5 && needsRootToRead(file)) {
+                Log.d(TAG, TAGG+"File is not readable without root, falling back to shell method.");
+                ret = calculateChecksumForLocalFile_su(filename);
+            } else {
+                Log.d(TAG, TAGG+"File does not exist (or is not readable).");
+            }
 
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG+"stdout line: "+line);
-                ret = line;
+            getChecksumCache().put(file, fileIdentity, algorithm.name(), ret);
+        } catch (Exception e) {
+            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
+        }
+
+        Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
+        return ret;
+    }
+
+    /** Calculate a fingerprint for the specified APK file, from only its tail (see ApkFingerprint).
+     * This is much cheaper than a full checksum, but is ONLY suitable for telling whether two APKs are the same.
+     * Keep using calculateChecksumForLocalFile for verifying a package's integrity before installing it.
+     * Returns "apkfp:<hex>", or null if it could not be calculated (callers should then fall back to a full checksum). */
+    public String calculateApkFingerprintForLocalFile(String filename) {
+        final String TAGG = "calculateApkFingerprintForLocalFile(\""+filename+"\"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        String ret = null;
+
+        if (filename == null) {
+            Log.w(TAG, TAGG+"No filename provided.");
+            return null;
+        }
+
+        try {
+            File file = new File(filename);
+            ChecksumCache.FileIdentity fileIdentity = ChecksumCache.FileIdentity.of(file);
+
+            ret = getChecksumCache().get(file, fileIdentity, ApkFingerprint.ALGORITHM_APKFP);
+            if (ret != null) {
+                Log.v(TAG, TAGG+"Returning cached value: \""+ ret +"\".");
+                return ret;
             }
-            br.close();
 
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
-                Log.w(TAG, TAGG+"stderr line: "+line);
+            if (file.exists() && file.canRead()) {
+                ret = ApkFingerprint.calculate(file);
+                getChecksumCache().put(file, fileIdentity, ApkFingerprint.ALGORITHM_APKFP, ret);
+            } else {
+                Log.d(TAG, TAGG+"File does not exist or is not readable.");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
+        }
+
+        Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
+        return ret;
+    }
+
+    /** Calculate a chunked ("tree") checksum for the specified file, hashing its segments in parallel (see TreeHasher).
+     * This is NOT the same value as a plain MD5, so only compare it to other tree checksums of the same segment size.
+     * Returns "tree:md5:<segmentSizeKiB>:<hex>", or null if it could not be calculated. */
+    public String calculateTreeChecksumForLocalFile(String filename, int segmentSize) {
+        final String TAGG = "calculateTreeChecksumForLocalFile(\""+filename+"\", "+segmentSize+"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        String ret = null;
+
+        if (filename == null) {
+            Log.w(TAG, TAGG+"No filename provided.");
+            return null;
+        }
+
+        try {
+            File file = new File(filename);
+            ChecksumCache.FileIdentity fileIdentity = ChecksumCache.FileIdentity.of(file);
+            final String cacheAlgorithm = TreeHasher.format(segmentSize, ChecksumEngine.ALGORITHM_MD5);  //cache separately for each segment size
+
+            ret = getChecksumCache().get(file, fileIdentity, cacheAlgorithm);
+            if (ret != null) {
+                Log.v(TAG, TAGG+"Returning cached value: \""+ ret +"\".");
+                return ret;
             }
-            br.close();
 
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
+            if (file.exists() && file.canRead()) {
+                ret = TreeHasher.calculate(file, segmentSize);
+                getChecksumCache().put(file, fileIdentity, cacheAlgorithm, ret);
+            } else {
+                Log.d(TAG, TAGG+"File does not exist or is not readable.");
+            }
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
+        Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
+        return ret;
+    }
+
+    /** Calculate the specified file's checksum in the same form as the provided (tagged) value from a ChecksumRecord
+     * ("apkfp:<hex>", "tree:md5:<KiB>:<hex>" or "<algorithm>:<hex>"), so the two can be compared directly.
+     * Returns null if it could not be calculated (or the value isn't a form we can produce). */
+    public String calculateChecksumForLocalFileLike(String filename, String taggedValue) {
+        if (taggedValue == null) {
+            return null;
+        } else if (ApkFingerprint.isFingerprint(taggedValue)) {
+            return calculateApkFingerprintForLocalFile(filename);
+        } else if (TreeHasher.isTreeDigest(taggedValue)) {
+            final int segmentSize = TreeHasher.parseSegmentSize(taggedValue);
+            return (segmentSize > 0 ? calculateTreeChecksumForLocalFile(filename, segmentSize) : null);
+        }
+
+        final int separatorIndex = taggedValue.indexOf(DigestAlgorithm.TAG_SEPARATOR);
+        final DigestAlgorithm algorithm = (separatorIndex < 0 ? null : DigestAlgorithm.fromTag(taggedValue.substring(0, separatorIndex)));
+        if (algorithm == null) {
+            return null;
+        }
+        final String hex = calculateChecksumForLocalFile(filename, algorithm);
+        return (hex == null ? null : algorithm.toTagged(hex));
+    }
+
+    /** Return the process-wide checksum cache (created and loaded from disk on first use). */
+    private ChecksumCache getChecksumCache() {
+        return getChecksumCache(appContext);
+    }
+    private static synchronized ChecksumCache getChecksumCache(Context appContext) {
+        if (checksumCache == null) {
+            checksumCache = new ChecksumCache(new File(appContext.getFilesDir(), CHECKSUM_CACHE_INDEX_FILENAME));
+        }
+        return checksumCache;
+    }
+
+    /** Return the process-wide digest algorithm selector (its throughput table is loaded or measured on first use). */
+    public DigestSelector getDigestSelector() {
+        return getDigestSelector(appContext);
+    }
+    private static synchronized DigestSelector getDigestSelector(Context appContext) {
+        if (digestSelector == null) {
+            digestSelector = new DigestSelector(new File(appContext.getFilesDir(), DIGEST_THROUGHPUT_TABLE_FILENAME));
+        }
+        return digestSelector;
+    }
+
+    /** Returns true if the specified file is there (or we can't even tell if it's there) but we aren't allowed to read it. */
+    private boolean needsRootToRead(File file) {
+        return !(file.exists() && file.canRead()) && (file.exists() || !isMissingFromSearchableDirectory(file));
+    }
+
+    /** Returns true if the specified file's directory is one we can look in, and the file is definitely not there.
+     * (if we can't search the directory, exists() would be false even when the file is present) */
+    private boolean isMissingFromSearchableDirectory(File file) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        return parent != null && parent.isDirectory() && parent.canExecute() && !file.exists();
+    }
+
+    /** Calculate MD5 checksum hash for specified file (using super user access and the md5sum command). */
+    private String calculateChecksumForLocalFile_su(String filename) {
+        final String TAGG = "calculateChecksumForLocalFile_su(\""+filename+"\"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        String ret = null;
+
+        try {
+            Log.d(TAG, TAGG + "Calculating MD5 checksum..");
+            ShellResult result = ShellExecutor.runAsRoot("/system/bin/md5sum "+filename+" | /system/bin/busybox awk '{printf $1}'");
+
+            for (String line : result.stderr) {
+                Log.w(TAG, TAGG+"stderr line: "+line);
+            }
+            ret = result.getLastStdoutLine();
+        } catch (Exception e) {
+            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
 
         Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
@@ -828,12 +790,6 @@ public class SystemFunctions {
         String saveFile;
         String updateResultForJSON;
         JSONObject jsonObject;
-        Process process;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
         Date nowDate;
         String timestamp;
 
@@ -870,45 +826,10 @@ public class SystemFunctions {
 
             // Save that as a string to the file (we use rooted unix method to be safe and avoid permission issues)...
 
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            //stdin.write(("/system/bin/echo '"+jsonObject.toString()+"' > "+savePath+"/"+saveFile+"\n").getBytes());   //DEPRECATED
-            stdin.write(("/system/bin/echo '"+jsonObject.toString()+"' >> "+savePath+"/"+saveFile+"\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG+"  stdout line: "+line);
-            }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            ShellResult result = ShellExecutor.runAsRoot("/system/bin/echo '"+jsonObject.toString()+"' >> "+savePath+"/"+saveFile);
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+"  stderr line: "+line);
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
@@ -980,6 +901,9 @@ public class SystemFunctions {
             done = (line == null);
 
             if (line != null) {
+                if (stringBuilder.length() > 0) {
+                    stringBuilder.append("\n");        //keep lines distinct (e.g. checksum records with several values)
+                }
                 stringBuilder.append(line);
             }
         }
@@ -1033,6 +957,9 @@ public class SystemFunctions {
                 String line;
                 while ((line = bufferedReader.readLine()) != null) {
                     //DEV-NOTE: line is one line of text; readLine() strips the newline character(s)
+                    if (ret.length() > 0) {
+                        ret.append("\n");      //keep lines distinct (e.g. checksum records with several values)
+                    }
                     ret.append(line);
                 }
             } catch (MalformedURLException mue) {
@@ -1079,6 +1006,8 @@ public class SystemFunctions {
 
     /** Check whether local package file is valid.
      * Depends on there being a corresponding md5 file along with it.
+     * That file may declare checksums for several algorithms (see ChecksumRecord); the fastest strong one is used, or
+     * the tree checksum if there's no plain one. An APK fingerprint alone can't verify a file, so that's invalid.
      */
     public boolean localPackageFileIsValid(String appPackageName) {
         final String TAGG = "localPackageFileIsValid(\""+appPackageName+"\"): ";
@@ -1086,20 +1015,25 @@ public class SystemFunctions {
 
         boolean ret = false;
         String localPath;
+        ChecksumRecord expectedChecksumRecord;
         String expectedChecksumValue;
         String calculatedChecksumValue;
 
         try {
             localPath = appContext.getResources().getString(R.string.updateFileDownloadPath);
 
-            // Read expected checksum from local corresponding checksum file
-            expectedChecksumValue = readChecksumValueFromChecksumFile(appPackageName);
+            // Read expected checksum(s) from local corresponding checksum file, and pick which algorithm to verify with
+            expectedChecksumRecord = ChecksumRecord.parse(readChecksumValueFromChecksumFile(appPackageName));
+            expectedChecksumValue = expectedChecksumRecord.chooseForIntegrity(getDigestSelector());
+            if (expectedChecksumValue == null) {
+                Log.w(TAG, TAGG+"Checksum file has nothing we can verify integrity with ("+expectedChecksumRecord+").");
+            }
 
-            // Calculate checksum for local package file
-            calculatedChecksumValue = calculateChecksumForLocalFile(localPath+"/"+appPackageName+".apk");
+            // Calculate checksum for local package file (in the same form)
+            calculatedChecksumValue = calculateChecksumForLocalFileLike(localPath+"/"+appPackageName+".apk", expectedChecksumValue);
 
             // Do they match?
-            if (expectedChecksumValue.equals(calculatedChecksumValue)) {
+            if (expectedChecksumValue != null && expectedChecksumValue.equals(calculatedChecksumValue)) {
                 //match!
                 Log.i(TAG, TAGG+"Valid!");
                 ret = true;
@@ -1116,71 +1050,96 @@ public class SystemFunctions {
         return ret;
     }
 
-    /** Get the APK path of an installed app. */
+    /** Get the APK path of an installed app.
+     * Asks the installed package index (or PackageManager directly, if there's no index yet), which needs no root and
+     * no fork. Only falls back to "pm path" as root if neither can provide it.
+     * Returns null if the app isn't installed (or its path couldn't be determined). */
     public String getPathForInstalledAPK(String packageName) {
         final String TAGG = "getPathForInstalledAPK(\""+packageName+"\"): ";
+
+        String ret = (MainUpdaterService.installedPackageIndex != null
+                ? MainUpdaterService.installedPackageIndex.getInstalledPath(packageName)
+                : getPathForInstalledAPK_packageManager(packageName));
+
+        if (ret == null && isInstalled(packageName)) {
+            Log.d(TAG, TAGG+"PackageManager didn't provide a path, falling back to shell method.");
+            ret = getPathForInstalledAPK_su(packageName);
+        }
+
+        Log.v(TAG, TAGG+"Returning: \""+ String.valueOf(ret) +"\".");
+        return ret;
+    }
+
+    /** Returns the APK path PackageManager has for the specified app, or null if it's not installed (or has none). */
+    private String getPathForInstalledAPK_packageManager(String packageName) {
+        try {
+            String path = appContext.getPackageManager().getApplicationInfo(packageName, 0).sourceDir;
+            return (path == null || path.isEmpty() ? null : path);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            Log.e(TAG, "getPathForInstalledAPK_packageManager(\""+packageName+"\"): Exception caught: "+e.getMessage());
+            return null;
+        }
+    }
+
+    /** Returns true if PackageManager knows of the specified app. */
+    private boolean isInstalled(String packageName) {
+        try {
+            appContext.getPackageManager().getApplicationInfo(packageName, 0);
+            return true;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        } catch (Exception e) {
+            Log.e(TAG, "isInstalled(\""+packageName+"\"): Exception caught: "+e.getMessage());
+            return true;     //(can't tell, so let caller try the shell)
+        }
+    }
+
+    /** Get the APK path of an installed app, with "pm path" as root (fallback for when PackageManager can't provide it). */
+    public String getPathForInstalledAPK_su(String packageName) {
+        final String TAGG = "getPathForInstalledAPK_su(\""+packageName+"\"): ";
         Log.v(TAG, TAGG+"Invoked.");
 
         String ret = null;
 
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
-
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            Log.d(TAG, TAGG + "Using PackageManager to find path to APK of installed package...");
-            stdin.write(("/system/bin/pm path "+packageName+" | /system/bin/cut -d':' -f2\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG+"stdout line: "+line);
-                ret = line;
-            }
-            br.close();
+            Log.d(TAG, TAGG + "Using pm command to find path to APK of installed package...");
+            ShellResult result = ShellExecutor.runAsRoot("/system/bin/pm path "+packageName+" | /system/bin/cut -d':' -f2");
 
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+"stderr line: "+line);
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
+            ret = result.getLastStdoutLine();
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
+        Log.v(TAG, TAGG+"Returning: \""+ String.valueOf(ret) +"\".");
+        return ret;
+    }
+
+    /** Get the APK paths of several installed apps with "pm path" as root, in a single round trip (see RootQueryBatch).
+     * Returned map has an entry for every requested package (value is null if its path couldn't be determined). */
+    public Map<String, String> getPathsForInstalledAPKs_su(Collection<String> packageNames) {
+        final String TAGG = "getPathsForInstalledAPKs_su: ";
+        Log.v(TAG, TAGG+"Invoked for "+packageNames.size()+" packages.");
+
+        final Map<String, String> ret = new LinkedHashMap<>();
+        final Map<String, RootQueryBatch.Query> queries = new LinkedHashMap<>();
+        final RootQueryBatch batch = new RootQueryBatch();
+
+        for (String packageName : packageNames) {
+            queries.put(packageName, batch.add("/system/bin/pm path "+packageName+" | /system/bin/cut -d':' -f2"));
         }
+        batch.execute();
 
-        Log.v(TAG, TAGG+"Returning: \""+ String.valueOf(ret) +"\".");
+        for (Map.Entry<String, RootQueryBatch.Query> entry : queries.entrySet()) {
+            String path = entry.getValue().getLastStdoutLine();
+            ret.put(entry.getKey(), (path == null || path.isEmpty() ? null : path));
+        }
+
+        Log.v(TAG, TAGG+"Returning: "+ret);
         return ret;
     }
 
@@ -1191,57 +1150,34 @@ public class SystemFunctions {
      *  2019.04.08      Chris Rider     Now returning result string instead of boolean, so we can return actual error from shell if one happened. */
     public static final String INSTALL_PACKAGE_RESULT_UNKNOWN = "SystemFunctions.installPackage(): Unknown";
     public static final String INSTALL_PACKAGE_RESULT_SUCCESS = "SystemFunctions.installPackage(): Success";
+    private static final long INSTALL_PACKAGE_TIMEOUT_MS = 5 * 60 * 1000;                          //large APKs can take a while for pm to install
+    private static final long INSTALL_PACKAGE_PROGRESS_INTERVAL_MS = 15 * 1000;                     //how often the notification shows the install is still going
     public String installPackage(String packageFile) {
         final String TAGG = "installPackage(\""+packageFile+"\"): ";
         Log.v(TAG, TAGG+"Invoked.");
 
         String ret = INSTALL_PACKAGE_RESULT_UNKNOWN;
 
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
-
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
             Log.d(TAG, TAGG + "Using PackageManager to install the package...");
-            stdin.write(("/system/bin/pm install -t -r -d "+packageFile+"\n").getBytes());
-            //stdin.write(("/system/bin/pm install -t -r -d -g"+packageFile+"\n").getBytes());      //WARNING! the -g parameter causes failure.. you can run it via SSH manually, but not from this routine for some reason
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
+            // (own session, so other root queries aren't stuck behind it; meanwhile, show that it's still going)
+            final long startedAt = System.currentTimeMillis();
+            final Future<ShellResult> installing = ShellExecutor.submitLongAsRoot("/system/bin/pm install -t -r -d "+packageFile, INSTALL_PACKAGE_TIMEOUT_MS);
+            ShellResult result;
+            while ((result = ShellExecutor.await(installing, INSTALL_PACKAGE_PROGRESS_INTERVAL_MS)) == null) {
+                updateNotificationWithText("Installing \""+new File(packageFile).getName()+"\" ("+((System.currentTimeMillis() - startedAt) / 1000)+"s)...");
+            }
+            //("-g" parameter causes failure.. you can run it via SSH manually, but not from this routine for some reason)
 
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stdout) {
                 Log.v(TAG, TAGG+" stdout line: "+line);
                 if (line.contains("Success")) {
                     ret = INSTALL_PACKAGE_RESULT_SUCCESS;
                 }
             }
-            br.close();
 
-            // Read error stream of the executed command
             // Note: This is designed to override any result above, since there should be nothing here upon real/actual success. We only want a strict/explicit success to count!
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+" stderr line: "+line);
                 if (ret.equals(INSTALL_PACKAGE_RESULT_SUCCESS)) {
                     //this hopefully shouldn't happen (upon success, there shouldn't be anything in the error stream!), but just in case...
@@ -1251,204 +1187,82 @@ public class SystemFunctions {
                     ret = String.valueOf(line);
                 }
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
-        }
-
         Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
         return ret;
     }
 
-    /** Install the specified package APK file as a system app.
+    /** Returns true if the specified package is updated as a system app (copied into the system partition, finishing
+     * installation on reboot; see installPackages_systemApp), rather than installed with pm. */
+    public static boolean isSystemAppPackage(String packageName) {
+        return packageName != null && packageName.equals(MainUpdaterService.packageName_omniWatchdogWatcher);
+    }
+
+    /** Install the specified packages' APK files (package name -> full path of its APK) as system apps, each copied to
+     * "<package name>.apk" in the system partition, all under a single remount of /system (read-write, copy them all,
+     * sync, then read-only again; see MountManager).
      * Note: requires the entire path included.
      * NOTE: This assumes app has always been a system-app (isn't in the /data partition).
      * NOTE: Requires a reboot to finish actual installation. Not my rule, just how Android works.
+     * Returned map has a result for every requested package (by package name).
      * Revisions:
-     *  2019.10.10      Chris Rider     Created. */
-    public String installPackage_systemApp(String packageFile, String packageFilename) {
-        final String TAGG = "installPackage_systemApp(\""+packageFile+"\"): ";
+     *  2019.10.10      Chris Rider     Created (as installPackage_systemApp, for one package). */
+    public Map<String, String> installPackages_systemApp(Map<String, String> packageFiles) {
+        final String TAGG = "installPackages_systemApp("+packageFiles.size()+" packages): ";
         Log.v(TAG, TAGG+"Invoked.");
 
-        String ret = INSTALL_PACKAGE_RESULT_UNKNOWN;
-
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-
-        boolean continueInstallation = false;
-
-        // Before attempting anything, try to remount /system as read-write (can't do anything if that doesn't work)...
-        try {
-            if (mountSystemRW()) {
-                Log.v(TAG, TAGG+"System partition was remounted RW, so continuing...");
-                continueInstallation = true;
-            } else {
-                Log.w(TAG, TAGG+"System partition was NOT remounted RW, so aborting!");
-            }
-        } catch (Exception e) {
-            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
-        }
-
-        // Only continue if we explicitly indicated it's worthwhile to do so...
-        if (continueInstallation) {
-            try {
-                // Start a super-user process under which to execute our commands as root
-                Log.d(TAG, TAGG + "Starting super-user shell session...");
-                process = Runtime.getRuntime().exec("su");
-
-                // Get process streams
-                stdin = process.getOutputStream();
-
-                // Construct and execute command (new-line is like hitting enter)
-                Log.d(TAG, TAGG + "Copying package file to system directory so it can install during next reboot...\nCmd: /system/bin/cp " + packageFile + " /system/priv-app/"+packageFilename+"");
-                stdin.write(("/system/bin/cp " + packageFile + " /system/priv-app/"+packageFilename+"\n").getBytes());
-
-                // Exit the shell
-                stdin.write(("exit\n").getBytes());
-
-                // Flush and close the stdin stream
-                stdin.flush();
-                stdin.close();
-
-                // Wait for process to finish
-                process.waitFor();
-                process.destroy();
-            } catch (Exception e) {
-                Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
-            }
-
-            // Cleanup
-            if (process != null) {
-                process.destroy();
-            }
-
-            // Check whether copy succeeded
-            try {
-                String checksumSource = calculateChecksumForLocalFile(packageFile);
-                String checksumDestination = calculateChecksumForLocalFile("/system/priv-app/" + packageFilename);
-                if (checksumSource.equals(checksumDestination)) {
-                    ret = INSTALL_PACKAGE_RESULT_SUCCESS;
+        final Map<String, String> ret = new LinkedHashMap<>();
+        final List<File> destinationFiles = new ArrayList<>();
+        final MountManager.Transaction transaction = MountManager.getInstance().newTransaction(MountManager.SYSTEM_MOUNT_POINT);
+
+        // Copy package files to system directory so they can install during next reboot...
+        // (each source is hashed while it's copied, and each destination is read back once to verify it)
+        for (Map.Entry<String, String> packageFile : packageFiles.entrySet()) {
+            final File destinationFile = new File("/system/priv-app/" + packageFile.getKey() + ".apk");
+            transaction.addCopy(new File(packageFile.getValue()), destinationFile);
+            destinationFiles.add(destinationFile);
+            ret.put(packageFile.getKey(), INSTALL_PACKAGE_RESULT_UNKNOWN);
+        }
+        Log.d(TAG, TAGG + "Copying package files to system directory so they can install during next reboot...");
+        MountManager.TransactionResult transactionResult = transaction.commit();
+
+        if (transactionResult.error != null) {
+            Log.w(TAG, TAGG+"System partition could not be remounted RW, so aborted! ("+transactionResult+")");
+        }
+
+        // Check whether each copy succeeded
+        int index = 0;
+        for (String packageName : packageFiles.keySet()) {
+            if (index >= transactionResult.copyResults.size()) {
+                break;
+            }
+            final File destinationFile = destinationFiles.get(index);
+            final VerifiedCopy.Result copyResult = transactionResult.copyResults.get(index++);
+
+            // Installed APK may have just been overwritten, so don't let the index keep using its old checksum
+            // (keyed on the installed package's real sourceDir, e.g. "/system/priv-app/<name>/<name>.apk", which needn't be where we copied to)
+            final InstalledPackageIndex installedPackageIndex = MainUpdaterService.installedPackageIndex;
+            if (installedPackageIndex != null) {
+                final String installedPath = installedPackageIndex.getInstalledPath(packageName);
+                if (installedPath != null) {
+                    installedPackageIndex.invalidateChecksumForPath(installedPath);
                 }
-            } catch (Exception e) {
-                Log.w(TAG, TAGG+"Exception caught checking file copy: "+e.getMessage());
-            }
-        } else {
-            Log.w(TAG, TAGG+"Explicit continue flag is false, so aborting!");
-        }
-
-        Log.v(TAG, TAGG+"Returning: \""+ ret +"\".");
-        return ret;
-    }
-
-    private boolean mountSystemRW() {
-        final String TAGG = "mountSystemRW: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        Boolean retSuccess = false;
-        Process proc = null;
-
-        try {// Check mount for RW (provides result for stdout below in order to check)
-            //stdin.write(("/system/bin/mount | /system/bin/grep system\n").getBytes());
-
-            Log.d(TAG, TAGG + "Attempting remount of /system partition with read-write access...");
-            proc = Runtime.getRuntime().exec("su -c /system/bin/mount -o rw,remount -t ext4 /system");
-
-            if ((proc.waitFor() != 0)) {
-                throw new SecurityException();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, TAGG + "IO Exception caught: " + e.getMessage());
-        } catch (InterruptedException e) {
-            Log.e(TAG, TAGG + "Interrupted Exception caught: " + e.getMessage());
-        } catch (SecurityException e) {
-            Log.e(TAG, TAGG + "Security Exception caught: " + e.getMessage());
-        } catch (Exception e) {
-            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
-        }
-
-        // Cleanup
-        if (proc != null) {
-            try {
-                proc.destroy();
-            } catch (Exception e) {
-                Log.w(TAG, TAGG+"Exception caught while cleaning up: "+e.getMessage());
+                installedPackageIndex.invalidateChecksumForPath(destinationFile.getPath());
             }
-        }
 
-        // Check result and return
-        retSuccess = check_mountSystemRW();
-        Log.v(TAG, TAGG+"Returning: \""+ String.valueOf(retSuccess) +"\".");
-        return retSuccess;
-    }
-
-    private boolean check_mountSystemRW() {
-        final String TAGG = "check_mountSystemRW: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        Boolean retWhetherRW = false;
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        BufferedReader br;
-        String line;
-
-        try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            stdin.write(("/system/bin/mount | /system/bin/grep system\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG + "Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
-                Log.v(TAG, TAGG + " stdout line: " + line);
-                if (line.contains("(rw,")) {
-                    retWhetherRW = true;
-                }
-            }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
-        } catch (Exception e) {
-            Log.e(TAG, TAGG + "Exception caught: "+ e.getMessage());
-        }
-
-        // Cleanup
-        if (process != null) {
-            try {
-                process.destroy();
-            } catch (Exception e) {
-                Log.w(TAG, TAGG+"Exception caught while cleaning up: "+e.getMessage());
+            if (copyResult.isVerified()) {
+                getChecksumCache().put(destinationFile, ChecksumCache.FileIdentity.of(destinationFile), ChecksumEngine.ALGORITHM_MD5, copyResult.destinationChecksum);  //we just read it, no need to again
+                ret.put(packageName, INSTALL_PACKAGE_RESULT_SUCCESS);
+            } else {
+                Log.w(TAG, TAGG+"Copy of \""+packageFiles.get(packageName)+"\" could not be verified: "+copyResult);
             }
         }
 
-        Log.v(TAG, TAGG+"Returning: \""+ String.valueOf(retWhetherRW) +"\".");
-        return retWhetherRW;
+        Log.v(TAG, TAGG+"Returning: "+ret);
+        return ret;
     }
 
     /** Send a reboot command to the device.
@@ -1456,6 +1270,7 @@ public class SystemFunctions {
      * Set overrideDisallowReboot to true, if you want to force reboot (even if strings.xml disables it).
      * That, for example, might be desired for daily reboots.
      */
+    private static final long REBOOT_TIMEOUT_MS = 60 * 1000;                                        //(the sequence itself sleeps for about 10 seconds)
     public void doReboot(/*final boolean showAlertBeforeReboot, final boolean overrideDisallowReboot, final boolean dumpLogcat*/) {
         final String TAGG = "doReboot: ";
 
@@ -1484,9 +1299,8 @@ public class SystemFunctions {
                 //Process proc = Runtime.getRuntime().exec("su -c /system/bin/busybox reboot -d 10 -f");
 
                 // THIS WORKS STABLE
-                Process proc = Runtime.getRuntime().exec(
-                        // Run all the following as root...
-                        "su -c " +
+                // Run all the following as root...
+                ShellResult result = ShellExecutor.runAsRoot(
 
                                 // Stop apps...
                                 "/system/bin/am force-stop com.messagenetsystems.evolution && " +
@@ -1502,15 +1316,12 @@ public class SystemFunctions {
                                 "/system/bin/sleep 6 && " +
 
                                 // Tap the "power off" option
-                                "/system/bin/input tap 1000 500");
+                                "/system/bin/input tap 1000 500",
+                        REBOOT_TIMEOUT_MS);
 
-                if ((proc.waitFor() != 0)) {
-                    throw new SecurityException();
+                if (!result.isSuccess()) {
+                    throw new SecurityException("reboot sequence exited with "+result.exitCode);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, TAGG + "IO Exception caught: " + e.getMessage());
-            } catch (InterruptedException e) {
-                Log.e(TAG, TAGG + "Interrupted Exception caught: " + e.getMessage());
             } catch (SecurityException e) {
                 Log.e(TAG, TAGG + "Security Exception caught: " + e.getMessage());
             } catch (Exception e) {
@@ -1519,39 +1330,19 @@ public class SystemFunctions {
         }
     }
 
-    /** Returns the boolean value of the runtime flag for reboot-allowed */
+    /** Returns the boolean value of the runtime flag for reboot-allowed
+     * (any integer other than 0 disallows; not set, or not an integer, allows). See RuntimeFlags. */
     public boolean getRuntimeFlag_rebootIsDisallowed() {
-        final String TAGG = "getRuntimeFlag_rebootIsDisallowed";
-        boolean ret = true;
-
-        String runtimeFlagName = "REBOOT_DISALLOW_ALL_APPS";
-        int runtimeFlagValue = 0;
-
-        try {
-            File sdcardDir = Environment.getExternalStorageDirectory();
-            File runtimeFlagsFile = new File(sdcardDir, "evoRuntimeFlagsFile"); //dir file is in, and name of file
-
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(runtimeFlagsFile));
-            String line;
+        final String TAGG = "getRuntimeFlag_rebootIsDisallowed: ";
+        boolean ret = false;
 
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.contains(runtimeFlagName)) {
-                    //we found our flag we care about, so parse the value
-                    runtimeFlagValue = Integer.parseInt(line.split("=")[1]);
-                }
+        String runtimeFlagValue = RuntimeFlags.getInstance().get("REBOOT_DISALLOW_ALL_APPS");
+        if (runtimeFlagValue != null) {
+            try {
+                ret = (Integer.parseInt(runtimeFlagValue) != 0);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, TAGG+"Unhandled value (\""+runtimeFlagValue+"\"), so returning false.");
             }
-
-            bufferedReader.close();
-        } catch (IOException ioe) {
-            Log.e(TAG, TAGG+"IO Exception caught: "+ioe.getMessage());
-        } catch (Exception e) {
-            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
-        }
-
-        if (runtimeFlagValue == 0) {
-            ret = false;
-        } else if (runtimeFlagValue == 1) {
-            ret = true;
         }
 
         Log.v(TAG, TAGG+"Returning "+String.valueOf(ret));
@@ -1657,10 +1448,13 @@ public class SystemFunctions {
                 //File file = new File(context.getCacheDir(), strUrlFile);
                 File file = new File(destinationPath, strUrlFile);
                 Log.d(TAG, TAGG + "Local file-space specified (" + file.getAbsolutePath() + ").");
+                DigestSidecar.delete(file);                                                         //about to be overwritten, so any old sidecar no longer applies
                 FileOutputStream fos = new FileOutputStream(file);
+                MessageDigest messageDigest = MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);  //hash as we write, so we have the checksum the moment the download finishes
 
                 while ((bytesRead = dataInputStream.read(buffer)) > 0) {
                     fos.write(buffer, 0, bytesRead);
+                    messageDigest.update(buffer, 0, bytesRead);
                     // buffer = new byte[153600];
                     totalBytesRead += bytesRead;
                     // logger.debug("Downloaded {} Kb ", (totalBytesRead / 1024));
@@ -1673,6 +1467,8 @@ public class SystemFunctions {
                 dataInputStream.close();
                 inputStream.close();
                 fos.close();
+
+                DigestSidecar.write(file, ChecksumEngine.ALGORITHM_MD5, ChecksumEngine.toHex(messageDigest.digest()));
             } catch (MalformedURLException mue) {
                 Log.e(TAG, TAGG + "Malformed URL error. Aborting.", mue);
                 return -1;
@@ -1796,29 +1592,12 @@ public class SystemFunctions {
         appContext.sendBroadcast(intent);
     }
 
-    /** Return the current time (hour and minute) (in 24 hour format) */
+    /** Return the current time (hour and minute) (in 24 hour format)
+     * (For checking against a window, use TimeWindow.isOpen directly; this is for display/logging.) */
     public String getCurrentTime24() {
         final String TAGG = "getCurrentTime24: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        String ret = "00:00";
-        String strTimeFormat = "HH:mm";
-        DateFormat dateFormat = new SimpleDateFormat(strTimeFormat, Locale.ENGLISH);
 
-        try {
-            Date date = new Date();
-            ret = dateFormat.format(date);
-        } catch (Exception e) {
-            Log.w(TAG, TAGG+"Failed to get valid current time using Date class (will try Calendar next): "+e.getMessage());
-
-            try {
-                Calendar cal = Calendar.getInstance();
-                Date date = cal.getTime();
-                ret = dateFormat.format(date);
-            } catch (Exception e2) {
-                Log.w(TAG, TAGG+"Failed to get valid current time using Calendar class: "+e2.getMessage());
-            }
-        }
+        String ret = TimeWindow.formatMinuteOfDay(TimeWindow.currentMinuteOfDay());
 
         Log.v(TAG, TAGG+"Returning \""+ret+"\".");
         return ret;
@@ -1864,31 +1643,17 @@ public class SystemFunctions {
         return ret;
     }
 
-    /** Supplied a String time value formatted like "HH:mm", determine whether it fits within our defined time window */
+    /** Supplied a String time value formatted like "HH:mm", determine whether it fits within our defined time window.
+     * The window includes its open and close minutes, and may cross midnight (see TimeWindow).
+     * (Compiles the window every time; callers that check repeatedly should keep a TimeWindow instead.) */
     public boolean timeIsWithinTimeWindow(String time, String timeWindowOpen, String timeWindowClose) {
         final String TAGG = "timeIsWithinTimeWindow(\""+time+"\",\""+timeWindowOpen+"\",\""+timeWindowClose+"\"): ";
-        Log.v(TAG, TAGG+"Invoked.");
 
         boolean ret = false;
 
         try {
-            Date timeClose = new SimpleDateFormat("HH:mm", Locale.ENGLISH).parse(timeWindowClose);
-            Calendar calClose = Calendar.getInstance();
-            calClose.setTime(timeClose);
-
-            Date timeOpen = new SimpleDateFormat("HH:mm", Locale.ENGLISH).parse(timeWindowOpen);
-            Calendar calOpen = Calendar.getInstance();
-            calOpen.setTime(timeOpen);
-
-            Date timeCurrent = new SimpleDateFormat("HH:mm", Locale.ENGLISH).parse(time);
-            Calendar calTimeCurrent = Calendar.getInstance();
-            calTimeCurrent.setTime(timeCurrent);
-
-            if (calTimeCurrent.getTime().after(calOpen.getTime())
-                    && calTimeCurrent.getTime().before(calClose.getTime())) {
-                ret = true;
-            }
-        } catch (Exception e) {
+            ret = TimeWindow.compile(timeWindowOpen, timeWindowClose).isOpenAt(TimeWindow.parseMinuteOfDay(time));
+        } catch (IllegalArgumentException e) {
             Log.w(TAG, TAGG+"Exception caught: "+e.getMessage());
         }
 
@@ -1956,63 +1721,18 @@ public class SystemFunctions {
     }
     */
 
-    /** Returns the string value of the specified runtime flag.
+    /** Returns the string value of the specified runtime flag (exact name match, from the cached RuntimeFlags snapshot).
      * If no value found or no value exists, returns null. */
     public String getRuntimeFlag(String flagName) {
         final String TAGG = "getRuntimeFlag(\""+flagName+"\"): ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        String runtimeFlagValue = "";
 
-        try {
-            File sdcardDir = Environment.getExternalStorageDirectory();
-            File runtimeFlagsFile = new File(sdcardDir, "evoRuntimeFlagsFile"); //dir file is in, and name of file
-
-            BufferedReader bufferedReader = new BufferedReader(new FileReader(runtimeFlagsFile));
-            String line, lineSplit[];
-
-            while ((line = bufferedReader.readLine()) != null) {
-                if (line.contains(flagName)) {
-                    //we found our flag we care about, so parse the value
-                    lineSplit = line.split("=");
-                    if (lineSplit.length > 1) {
-                        runtimeFlagValue = lineSplit[1];
-                    } else {
-                        runtimeFlagsFile = null;
-                    }
-                }
-            }
-
-            bufferedReader.close();
-        } catch (IOException ioe) {
-            Log.e(TAG, TAGG+"IO Exception caught: "+ioe.getMessage());
-        } catch (Exception e) {
-            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
-        }
-
-        if (runtimeFlagValue != null) {
-            if (runtimeFlagValue.isEmpty() || runtimeFlagValue.length() == 0 || runtimeFlagValue.equals("")) {
-                Log.i(TAG, TAGG+"Runtime flag value unavailable.");
-                runtimeFlagValue = null;
-            }
-        }
+        String runtimeFlagValue = RuntimeFlags.getInstance().get(flagName);
 
         Log.v(TAG, TAGG+"Returning \""+runtimeFlagValue+"\".");
         return runtimeFlagValue;
     }
     public boolean getRuntimeFlag_asBoolean(String flagName) {
-        final String TAGG = "getRuntimeFlag_asBoolean(\""+flagName+"\"): ";
-        String result = getRuntimeFlag(flagName);
-        if (result == null) {
-            return false;
-        } else if (result.equals("0") || result.equalsIgnoreCase("false")) {
-            return false;
-        } else if (result.equals("1") || result.equalsIgnoreCase("true")) {
-            return true;
-        } else {
-            Log.w(TAG, TAGG+"Unhandled value. Not sure how to parse, so returning false.");
-            return false;
-        }
+        return RuntimeFlags.getInstance().getBoolean(flagName);
     }
 
     public static String getPackageName(Context context) {
@@ -2054,39 +1774,14 @@ public class SystemFunctions {
         final String TAGG = "isNetworkAvailable: ";
 
         boolean ret = false;
-        boolean availableOnly = false;
 
         try {
-            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
-            //NOTES: isAvailable (whether connectivity is possible) / isConnected (whether actually connected) / isConnectedOrConnecting (whether connected or trying to connect)
-            ret = activeNetworkInfo != null && activeNetworkInfo.isConnected();
-            if (!ret) {
-                Log.v(TAG, TAGG+"Network not currently connected, digging deeper...");
-                ret = activeNetworkInfo != null && activeNetworkInfo.isConnectedOrConnecting();
-            }
-            if (!ret) {
-                Log.v(TAG, TAGG+"Network not currently connected or connecting, digging deeper...");
-                availableOnly = activeNetworkInfo != null && activeNetworkInfo.isAvailable();
-            }
+            // The monitor keeps this current (ConnectivityManager callbacks, plus wired ethernet state from sysfs)
+            ret = NetworkMonitor.getInstance(context).isOnline();
         } catch (Exception e) {
             Log.w(TAG, TAGG+"Exception caught trying to determine whether network is available.");
         }
 
-        //if no network detected above, we could be wired, so check that...
-        if (!ret) {
-            Log.v(TAG, TAGG+"No network detected with first check, could be wired? Checking that...");
-            if (nicEthIsUp()) {
-                ret = true;
-            }
-        }
-
-        if (!ret && availableOnly) {
-            Log.d(TAG, TAGG+"Non-wired network is available, but not connected or connecting.");
-            //TODO: maybe some call to cycle the wifi, and recurse back into this, using the counter to control wifi lockout??
-            //NOTE: When no-network is logged, restarting the updater app usually fixes it, so above TO-DO might not be necessary.
-        }
-
         Log.v(TAG, TAGG+"Returning \""+String.valueOf(ret)+"\".");
         return ret;
     }
@@ -2094,75 +1789,50 @@ public class SystemFunctions {
     /** Return whether wired-ethernet interface is UP.
      * 2019.02.05   Chris Rider     Created.
      * 2019.06.14   Chris Rider     Imported from main evolution app with no changes, except to make it static.
+     * Now reads the interfaces' operstate and carrier from sysfs (no root or fork), only using the shell if that can't be read.
      */
     public static boolean nicEthIsUp() {
-        final String TAGG = "nicEthIsUp: ";
-        Log.v(TAG, TAGG+"Invoked.");
+        return findWiredInterfaceUp() != null;
+    }
 
-        boolean ret = false;
+    /** Return the name of a wired-ethernet interface that is UP, or null if none is.
+     * Reads sysfs (see NetworkMonitor.findWiredInterfaceUp_sysfs), only using the shell if that can't be read. */
+    public static String findWiredInterfaceUp() {
+        final String TAGG = "findWiredInterfaceUp: ";
+
+        try {
+            return NetworkMonitor.findWiredInterfaceUp_sysfs();
+        } catch (IOException e) {
+            Log.d(TAG, TAGG+"Could not read interface state from sysfs ("+e.getMessage()+"), falling back to shell method.");
+            return findWiredInterfaceUp_su();
+        }
+    }
+
+    /** Return the name of a wired-ethernet interface that is UP (any named "eth..."), using "ip link show" as root, or null if none is. */
+    public static String findWiredInterfaceUp_su() {
+        final String TAGG = "findWiredInterfaceUp_su: ";
+        Log.v(TAG, TAGG+"Invoked.");
 
-        Process process = null;
-        OutputStream stdin;     //used to write commands to shell... using OutputStream type, we can execute commands like writing commands in terminal
-        InputStream stdout;     //used to read output of a command we executed... using InputStream type, we can input command's output to our routine here
-        InputStream stderr;     //used to read errors of a command we executed... using InputStream type, we can input command's errors to our routine here
-        BufferedReader br;
-        String line;
+        String ret = null;
 
         try {
-            // Start a super-user process under which to execute our commands as root
-            Log.d(TAG, TAGG + "Starting super-user shell session...");
-            process = Runtime.getRuntime().exec("su");
-
-            // Get process streams
-            stdin = process.getOutputStream();
-            stdout = process.getInputStream();
-            stderr = process.getErrorStream();
-
-            // Construct and execute command (new-line is like hitting enter)
-            Log.d(TAG, TAGG + "Specifying shell command...");
-            stdin.write(("/system/bin/ip link show | /system/bin/grep \"state UP\"\n").getBytes());
-
-            // Exit the shell
-            stdin.write(("exit\n").getBytes());
-
-            // Flush and close the stdin stream
-            stdin.flush();
-            stdin.close();
-
-            // Read output of the executed command
-            Log.v(TAG, TAGG+"Reading output of executed command...");
-            br = new BufferedReader(new InputStreamReader(stdout));
-            while ((line = br.readLine()) != null) {
+            ShellResult result = ShellExecutor.runAsRoot("/system/bin/ip link show | /system/bin/grep \"state UP\"");
+
+            for (String line : result.stdout) {
                 Log.v(TAG, TAGG+"stdout line: "+line);
-                if (line.toLowerCase().contains("eth0")) {
-                    ret = true;
+                // (lines like "2: eth0: <BROADCAST,MULTICAST,UP,LOWER_UP> mtu 1500 ... state UP ...")
+                final String[] fields = line.trim().split(":\\s*");
+                if (ret == null && fields.length > 1 && fields[1].toLowerCase().startsWith(NetworkMonitor.WIRED_INTERFACE_NAME_PREFIX)) {
+                    ret = fields[1].split("@")[0];
                 }
             }
-            br.close();
-
-            // Read error stream of the executed command
-            Log.v(TAG, TAGG+"Reading errors of executed command...");
-            br = new BufferedReader(new InputStreamReader(stderr));
-            while ((line = br.readLine()) != null) {
+            for (String line : result.stderr) {
                 Log.w(TAG, TAGG+"stderr line: "+line);
             }
-            br.close();
-
-            // Wait for process to finish
-            process.waitFor();
-            process.destroy();
-
-            //} catch(SecurityException e) {
-            //    Log.e(TAG, TAGG +"Security Exception caught: " + String.valueOf(e));
         } catch (Exception e) {
             Log.e(TAG, TAGG + "Exception caught: " + e.getMessage());
         }
 
-        // Cleanup
-        if (process != null) {
-            process.destroy();
-        }
-
         Log.v(TAG, TAGG+"Returning "+String.valueOf(ret)+".");
         return ret;
     }
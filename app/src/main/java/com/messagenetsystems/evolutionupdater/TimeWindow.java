@@ -0,0 +1,200 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** TimeWindow
+ * A daily time window (e.g. when updates may be downloaded or installed), compiled once from its "H:mm" strings into
+ * the minutes of the day it covers, so checking whether we're in it is a bit test, with no parsing or allocation.
+ *
+ * A window is one or more ranges, each inclusive of both its opening and closing minute ("4:00-4:59" is the whole
+ * hour). A range whose close is earlier than its open crosses midnight ("22:00-2:00" is 10pm through 2am).
+ *
+ * The current local time comes from the monotonic clock (elapsedRealtime), plus the wall-clock time and timezone we
+ * last anchored it to, so a check doesn't ask for the time or look up the default timezone (or allocate anything).
+ * The offset is taken from the anchored timezone each time, so DST changes are seen right away. The anchor is only
+ * re-taken when ClockChangedReceiver tells us the clock was set (e.g. NTP at boot) or the timezone changed, or, in
+ * case nobody is listening for those (e.g. the service isn't running), once it's an hour old.
+ *
+ * Usage:
+ *  TimeWindow window = TimeWindow.compile("0:00", "3:59");                    //(open, close) from strings.xml/runtime flags
+ *  TimeWindow window = TimeWindow.parse("0:00-3:59,22:00-23:30");             //several ranges
+ *  if (window.isOpen()) ...
+ *  long waitMS = window.getMillisUntilOpen();                                 //0 if it's open now
+ */
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+public class TimeWindow {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+
+    private static final long MS_PER_MINUTE = 60 * 1000;
+    private static final long MS_PER_DAY = MINUTES_PER_DAY * MS_PER_MINUTE;
+    static final long ANCHOR_MAX_AGE_MS = 60 * MS_PER_MINUTE;
+
+    private static volatile ClockAnchor clockAnchor = null;
+
+    private final long[] minutes = new long[(MINUTES_PER_DAY + 63) / 64];                         //bit per minute of the day
+    private final String spec;                                                                      //normalized, for logging
+
+    private TimeWindow(String spec) {
+        this.spec = spec;
+    }
+
+    /** Compile a window from its opening and closing times ("H:mm" or "HH:mm", inclusive).
+     * If the open value is itself a list of ranges (contains '-'), that's used instead and close is ignored.
+     * Throws IllegalArgumentException if a time can't be parsed. */
+    public static TimeWindow compile(String open, String close) {
+        if (open != null && open.indexOf('-') >= 0) {
+            return parse(open);
+        }
+        return parse(open + "-" + close);
+    }
+
+    /** Compile a window from a comma-separated list of "open-close" ranges (e.g. "0:00-3:59,22:00-23:30").
+     * Throws IllegalArgumentException if it can't be parsed. */
+    public static TimeWindow parse(String ranges) {
+        if (ranges == null || ranges.trim().isEmpty()) {
+            throw new IllegalArgumentException("No time window ranges provided");
+        }
+
+        final StringBuilder normalized = new StringBuilder();
+        final String[] rangeSpecs = ranges.split(",");
+        final int[] opens = new int[rangeSpecs.length];
+        final int[] closes = new int[rangeSpecs.length];
+
+        for (int i = 0; i < rangeSpecs.length; i++) {
+            final String[] ends = rangeSpecs[i].split("-");
+            if (ends.length != 2) {
+                throw new IllegalArgumentException("Time window range \"" + rangeSpecs[i].trim() + "\" is not \"open-close\"");
+            }
+            opens[i] = parseMinuteOfDay(ends[0]);
+            closes[i] = parseMinuteOfDay(ends[1]);
+            normalized.append(i > 0 ? "," : "").append(formatMinuteOfDay(opens[i])).append('-').append(formatMinuteOfDay(closes[i]));
+        }
+
+        final TimeWindow ret = new TimeWindow(normalized.toString());
+        for (int i = 0; i < opens.length; i++) {
+            if (opens[i] <= closes[i]) {
+                ret.setMinutes(opens[i], closes[i]);
+            } else {
+                ret.setMinutes(opens[i], MINUTES_PER_DAY - 1);      //(crosses midnight)
+                ret.setMinutes(0, closes[i]);
+            }
+        }
+        return ret;
+    }
+
+    /** Returns true if the window is open right now. */
+    public boolean isOpen() {
+        return isOpenAt(currentMinuteOfDay());
+    }
+
+    /** Returns true if the window is open at the specified minute of the day (0 to 1439). */
+    public boolean isOpenAt(int minuteOfDay) {
+        return (minutes[minuteOfDay >>> 6] & (1L << (minuteOfDay & 63))) != 0;
+    }
+
+    /** Returns how long until the window next opens (0 if it's open now), or -1 if it never does (empty window). */
+    public long getMillisUntilOpen() {
+        final long nowMS = currentLocalMillisOfDay();
+        final int nowMinute = (int) (nowMS / MS_PER_MINUTE);
+        if (isOpenAt(nowMinute)) {
+            return 0;
+        }
+        for (int i = 1; i <= MINUTES_PER_DAY; i++) {
+            if (isOpenAt((nowMinute + i) % MINUTES_PER_DAY)) {
+                return (nowMinute + i) * MS_PER_MINUTE - nowMS;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns how long until the window next closes (0 if it's closed now), or -1 if it never does (open all day). */
+    public long getMillisUntilClose() {
+        final long nowMS = currentLocalMillisOfDay();
+        final int nowMinute = (int) (nowMS / MS_PER_MINUTE);
+        if (!isOpenAt(nowMinute)) {
+            return 0;
+        }
+        for (int i = 1; i <= MINUTES_PER_DAY; i++) {
+            if (!isOpenAt((nowMinute + i) % MINUTES_PER_DAY)) {
+                return (nowMinute + i) * MS_PER_MINUTE - nowMS;
+            }
+        }
+        return -1;
+    }
+
+    private void setMinutes(int first, int last) {
+        for (int m = first; m <= last; m++) {
+            minutes[m >>> 6] |= (1L << (m & 63));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    /** Returns the current local time as a minute of the day (0 to 1439). */
+    public static int currentMinuteOfDay() {
+        return (int) (currentLocalMillisOfDay() / MS_PER_MINUTE);
+    }
+
+    /** Returns the current local time as milliseconds into the day. */
+    private static long currentLocalMillisOfDay() {
+        return localMillisOfDayAt(SystemClock.elapsedRealtime());
+    }
+
+    /** Returns the local time as milliseconds into the day, at the specified point on the monotonic clock (which is
+     * anchored there, if there's no anchor yet or it's too old). (Package-private for tests.) */
+    static long localMillisOfDayAt(long elapsed) {
+        ClockAnchor anchor = clockAnchor;
+        if (anchor == null || elapsed - anchor.elapsedRealtime >= ANCHOR_MAX_AGE_MS || elapsed < anchor.elapsedRealtime) {
+            clockAnchor = anchor = new ClockAnchor(elapsed);
+        }
+        final long wallClock = anchor.wallClock + (elapsed - anchor.elapsedRealtime);
+        final long local = wallClock + anchor.timeZone.getOffset(wallClock);
+        return ((local % MS_PER_DAY) + MS_PER_DAY) % MS_PER_DAY;
+    }
+
+    /** Forget the clock anchor, so the next check takes the current time and timezone. Call when either is changed. */
+    public static void onClockChanged() {
+        clockAnchor = null;
+    }
+
+    /** Parse "H:mm" or "HH:mm" into a minute of the day. Throws IllegalArgumentException if it isn't a valid time. */
+    public static int parseMinuteOfDay(String time) {
+        final String trimmed = (time == null ? "" : time.trim());
+        final int colon = trimmed.indexOf(':');
+        try {
+            if (colon < 1 || colon > 2 || trimmed.length() != colon + 3) {
+                throw new NumberFormatException();
+            }
+            final int hours = Integer.parseInt(trimmed.substring(0, colon));
+            final int minutes = Integer.parseInt(trimmed.substring(colon + 1));
+            if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+                throw new NumberFormatException();
+            }
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Time \"" + time + "\" is not \"H:mm\"");
+        }
+    }
+
+    /** Format a minute of the day as "HH:mm". */
+    public static String formatMinuteOfDay(int minuteOfDay) {
+        return String.format(Locale.ENGLISH, "%02d:%02d", minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    /** Wall-clock time, and the timezone, at one point on the monotonic clock. Immutable. */
+    private static class ClockAnchor {
+        final long elapsedRealtime;
+        final long wallClock = System.currentTimeMillis();
+        final TimeZone timeZone = TimeZone.getDefault();
+
+        ClockAnchor(long elapsedRealtime) {
+            this.elapsedRealtime = elapsedRealtime;
+        }
+    }
+}
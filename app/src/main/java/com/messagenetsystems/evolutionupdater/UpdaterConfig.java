@@ -0,0 +1,411 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** UpdaterConfig
+ * All of our configuration (server, paths, time windows, disallow flags, work intervals), merged from its layers into
+ * one immutable, versioned snapshot that any thread can read with a single volatile load.
+ *
+ * Layers, in order (a later layer's value for a key overrides an earlier one's):
+ *  LAYER_DEFAULTS:         strings.xml values, plus the main app's server IP (SharedPrefsConfig)
+ *  LAYER_RUNTIME_FLAGS:    the runtime flags file (RuntimeFlags)
+ *  LAYER_SERVER:           overrides pushed by the server (see ServerSocketThread's /config request), for only the
+ *                          SERVER_OVERRIDABLE_KEYS, and only valid values; these are only kept in memory, so they
+ *                          last until the service restarts
+ *
+ * The typed values (windows, flags, intervals) are derived once, when a snapshot is built. If a layer gives a value
+ * that can't be used (e.g. a bad time), the default is used for it instead, and a warning logged.
+ *
+ * When read, the runtime flags and shared prefs are checked for changes at most every few seconds (both are cheap
+ * to check, and do their own throttling of any file reads). A runtime flags file change the observer sees is picked up
+ * right away, without anyone having to read (just that layer: the shared prefs may need a root shell, which the
+ * observer's shared thread mustn't wait on). No root shell is ever used while holding the lock the layers merge
+ * under. Only if the merged values actually differ is a new snapshot (with the next version number) published, and
+ * listeners told (so parked threads can be woken).
+ *
+ * Usage:
+ *  UpdaterConfig.Snapshot config = UpdaterConfig.getInstance(appContext).getSnapshot();
+ *  if (!config.installDisallowed && config.installWindow.isOpen()) ...
+ *  UpdaterConfig.getInstance(appContext).addListener(listener);
+ */
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class UpdaterConfig {
+    private static final String TAG = UpdaterConfig.class.getSimpleName();
+
+    public static final int LAYER_DEFAULTS = 0;
+    public static final int LAYER_RUNTIME_FLAGS = 1;
+    public static final int LAYER_SERVER = 2;
+
+    public static final String KEY_SERVER_IP = "SERVER_IP";
+    public static final String KEY_SERVER_PATH = "SERVER_PATH";
+    public static final String KEY_LOCAL_PATH = "LOCAL_PATH";
+    public static final String KEY_DOWNLOAD_WINDOW_START = "UPDATE_DOWNLOAD_WINDOW_START";
+    public static final String KEY_DOWNLOAD_WINDOW_END = "UPDATE_DOWNLOAD_WINDOW_END";
+    public static final String KEY_INSTALL_WINDOW_START = "UPDATE_INSTALL_WINDOW_START";
+    public static final String KEY_INSTALL_WINDOW_END = "UPDATE_INSTALL_WINDOW_END";
+    public static final String KEY_DOWNLOAD_DISALLOW = "UPDATE_DOWNLOAD_DISALLOW";
+    public static final String KEY_INSTALL_DISALLOW = "UPDATE_INSTALL_DISALLOW";
+    public static final String KEY_DOWNLOAD_INTERVAL_SECONDS = "UPDATE_DOWNLOAD_INTERVAL_SECONDS";
+    public static final String KEY_INSTALL_INTERVAL_SECONDS = "UPDATE_INSTALL_INTERVAL_SECONDS";
+
+    /** Keys the server may override. Not where we download from or to: only the device itself sets those. */
+    public static final Set<String> SERVER_OVERRIDABLE_KEYS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            KEY_DOWNLOAD_WINDOW_START, KEY_DOWNLOAD_WINDOW_END, KEY_INSTALL_WINDOW_START, KEY_INSTALL_WINDOW_END,
+            KEY_DOWNLOAD_DISALLOW, KEY_INSTALL_DISALLOW,
+            KEY_DOWNLOAD_INTERVAL_SECONDS, KEY_INSTALL_INTERVAL_SECONDS)));
+
+    private static final long CHECK_INTERVAL_MS = 5 * 1000;
+    public static final long MAX_INTERVAL_SECONDS = 24 * 60 * 60;                                   //longer than a day is surely a mistake (and, as ms, still fits an int)
+
+    private static UpdaterConfig instance = null;
+
+    private final Context appContext;
+    private final Map<String, String> resourceDefaults;                                             //unmodifiable
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final RuntimeFlags.Listener runtimeFlagsListener;
+    private volatile long lastCheckedAt = 0;                                                        //System.nanoTime of the last check of the layers
+
+    // What the current snapshot was built from (guarded by this)
+    private Map<String, String> runtimeFlagsLayer = null;
+    private SharedPrefsConfig.Snapshot sharedPrefs = null;
+    private Map<String, String> serverLayer = Collections.emptyMap();
+
+    /** Return the shared config (built when first asked for). */
+    public static synchronized UpdaterConfig getInstance(Context context) {
+        if (instance == null) {
+            instance = new UpdaterConfig(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+        }
+        return instance;
+    }
+
+    /** Forget the config (and any server overrides); a new one is built if it's asked for again. */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.listeners.clear();
+            RuntimeFlags.getInstance().removeListener(instance.runtimeFlagsListener);
+            instance = null;
+        }
+    }
+
+    private UpdaterConfig(Context appContext) {
+        this.appContext = appContext;
+        this.resourceDefaults = loadResourceDefaults(appContext);
+        this.runtimeFlagsListener = new RuntimeFlags.Listener() {
+            @Override
+            public void onRuntimeFlagsFileChanged() {
+                refreshRuntimeFlags();
+            }
+        };
+        RuntimeFlags.getInstance().addListener(runtimeFlagsListener);
+    }
+
+    /** Return the current config, checking its layers for changes first if we haven't in a while. */
+    public Snapshot getSnapshot() {
+        final Snapshot current = snapshot.get();
+        if (current != null && System.nanoTime() - lastCheckedAt < TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS)) {
+            return current;
+        }
+        return refresh();
+    }
+
+    /** Check the layers for changes now, publishing a new snapshot (and telling listeners) if the merged values changed. */
+    public Snapshot refresh() {
+        final SharedPrefsConfig.Snapshot newSharedPrefs = SharedPrefsConfig.getInstance(appContext).getSnapshot();     //(may need a root shell, so not while holding this)
+        lastCheckedAt = System.nanoTime();
+        return update(newSharedPrefs);
+    }
+
+    /** Pick up a runtime flags file change, keeping the shared prefs as last read. This is what the observer calls (on
+     * its shared thread), so it must never wait on a root shell: it only reads the flags file. */
+    private synchronized void refreshRuntimeFlags() {
+        if (snapshot.get() == null) {
+            return;     //(nothing built yet; the first read will see the new flags)
+        }
+        update(sharedPrefs);
+    }
+
+    /** Take the current runtime flags and the provided shared prefs as the layers, rebuilding if either changed. */
+    private synchronized Snapshot update(SharedPrefsConfig.Snapshot newSharedPrefs) {
+        final Map<String, String> newRuntimeFlags = RuntimeFlags.getInstance().getAll();
+
+        final Snapshot current = snapshot.get();
+        if (current != null && newRuntimeFlags == runtimeFlagsLayer && newSharedPrefs == sharedPrefs) {
+            return current;     //(both give us the same instance while unchanged)
+        }
+        runtimeFlagsLayer = newRuntimeFlags;
+        sharedPrefs = newSharedPrefs;
+        return rebuild();
+    }
+
+    /** Set (or, with a null or empty value, remove) a server override. Returns the resulting config.
+     * Throws IllegalArgumentException if the server may not override the key, or the value isn't valid for it. */
+    public synchronized Snapshot setServerOverride(String key, String value) {
+        final String problem = validateServerOverride(key, value);
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
+        }
+
+        final Map<String, String> newServerLayer = new HashMap<>(serverLayer);
+        if (value == null || value.trim().isEmpty()) {
+            newServerLayer.remove(key);
+        } else {
+            newServerLayer.put(key, value.trim());
+        }
+        serverLayer = Collections.unmodifiableMap(newServerLayer);
+        Log.i(TAG, "setServerOverride: "+key+" = \""+value+"\".");
+        return rebuild();
+    }
+
+    /** Returns what's wrong with the server override, or null if it's fine (removing one, with an empty value, always is). */
+    public static String validateServerOverride(String key, String value) {
+        if (!SERVER_OVERRIDABLE_KEYS.contains(key)) {
+            return "\""+key+"\" can't be overridden by the server";
+        }
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        final String trimmed = value.trim();
+        try {
+            if (key.equals(KEY_DOWNLOAD_WINDOW_START) || key.equals(KEY_INSTALL_WINDOW_START)) {
+                if (trimmed.indexOf('-') >= 0) {
+                    TimeWindow.parse(trimmed);     //(a list of ranges, which overrides the whole window)
+                } else {
+                    TimeWindow.parseMinuteOfDay(trimmed);
+                }
+            } else if (key.equals(KEY_DOWNLOAD_WINDOW_END) || key.equals(KEY_INSTALL_WINDOW_END)) {
+                TimeWindow.parseMinuteOfDay(trimmed);
+            } else if (key.equals(KEY_DOWNLOAD_DISALLOW) || key.equals(KEY_INSTALL_DISALLOW)) {
+                if (!trimmed.equals("0") && !trimmed.equals("1") && !trimmed.equalsIgnoreCase("false") && !trimmed.equalsIgnoreCase("true")) {
+                    return "\""+key+"\" must be 0, 1, false or true";
+                }
+            } else if (key.equals(KEY_DOWNLOAD_INTERVAL_SECONDS) || key.equals(KEY_INSTALL_INTERVAL_SECONDS)) {
+                final long seconds = Long.parseLong(trimmed);
+                if (seconds < 1 || seconds > MAX_INTERVAL_SECONDS) {
+                    return "\""+key+"\" must be 1 to "+MAX_INTERVAL_SECONDS+" seconds";
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return "\""+key+"\" value \""+trimmed+"\" is invalid ("+e.getMessage()+")";
+        }
+        return null;
+    }
+
+    /** Remove all server overrides. Returns the resulting config. */
+    public synchronized Snapshot clearServerOverrides() {
+        serverLayer = Collections.emptyMap();
+        Log.i(TAG, "clearServerOverrides: Cleared.");
+        return rebuild();
+    }
+
+    /** Be told when the config changes (after the first snapshot). Listeners are called on whatever thread noticed the change. */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Merge the layers and, if that's different from the current snapshot, publish it. Must hold this. */
+    private Snapshot rebuild() {
+        final String TAGG = "rebuild: ";
+
+        if (runtimeFlagsLayer == null) {
+            runtimeFlagsLayer = RuntimeFlags.getInstance().getAll();       //(never read yet; shared prefs are left for the next refresh, since they may need a root shell)
+        }
+
+        final Map<String, String> defaults = new HashMap<>(resourceDefaults);
+        final String sharedPrefsServerIP = (sharedPrefs == null ? null : sharedPrefs.get(appContext.getResources().getString(R.string.sharedPrefsValueKey_serverIP)));
+        if (sharedPrefsServerIP != null && !sharedPrefsServerIP.isEmpty()) {
+            defaults.put(KEY_SERVER_IP, sharedPrefsServerIP);
+        }
+
+        final Map<String, String> values = new HashMap<>();
+        final Map<String, Integer> sources = new HashMap<>();
+        merge(values, sources, defaults, LAYER_DEFAULTS);
+        merge(values, sources, runtimeFlagsLayer, LAYER_RUNTIME_FLAGS);
+        merge(values, sources, serverLayer, LAYER_SERVER);
+
+        final Snapshot old = snapshot.get();
+        if (old != null && old.values.equals(values) && old.sources.equals(sources)) {
+            return old;
+        }
+
+        final Snapshot current = new Snapshot(old == null ? 1 : old.version + 1,
+                Collections.unmodifiableMap(values), Collections.unmodifiableMap(sources),
+                values.get(KEY_SERVER_IP), values.get(KEY_SERVER_PATH), values.get(KEY_LOCAL_PATH),
+                compileWindow(values, defaults, KEY_DOWNLOAD_WINDOW_START, KEY_DOWNLOAD_WINDOW_END),
+                compileWindow(values, defaults, KEY_INSTALL_WINDOW_START, KEY_INSTALL_WINDOW_END),
+                parseBoolean(values, KEY_DOWNLOAD_DISALLOW),
+                parseBoolean(values, KEY_INSTALL_DISALLOW),
+                parseSecondsAsMS(values, defaults, KEY_DOWNLOAD_INTERVAL_SECONDS),
+                parseSecondsAsMS(values, defaults, KEY_INSTALL_INTERVAL_SECONDS));
+        snapshot.set(current);
+        Log.i(TAG, TAGG+"Published "+current);
+
+        if (old != null) {
+            for (Listener listener : listeners) {
+                try {
+                    listener.onConfigChanged(old, current);
+                } catch (Exception e) {
+                    Log.e(TAG, TAGG+"Exception caught in listener: "+e.getMessage());
+                }
+            }
+        }
+        return current;
+    }
+
+    private static void merge(Map<String, String> values, Map<String, Integer> sources, Map<String, String> layer, int layerNumber) {
+        if (layer == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : layer.entrySet()) {
+            values.put(entry.getKey(), entry.getValue());
+            sources.put(entry.getKey(), layerNumber);
+        }
+    }
+
+    /** Compile the window from the merged values, or (if they're invalid) from the defaults. */
+    private static TimeWindow compileWindow(Map<String, String> values, Map<String, String> defaults, String keyStart, String keyEnd) {
+        try {
+            return TimeWindow.compile(values.get(keyStart), values.get(keyEnd));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "compileWindow: Invalid window (\""+values.get(keyStart)+"\"-\""+values.get(keyEnd)+"\"): "+e.getMessage()+". Using default values instead.");
+            return TimeWindow.compile(defaults.get(keyStart), defaults.get(keyEnd));
+        }
+    }
+
+    /** Parse a "1"/"true" or "0"/"false" value; false if it isn't set or isn't one of those. */
+    private static boolean parseBoolean(Map<String, String> values, String key) {
+        final String value = values.get(key);
+        if (value == null || value.equals("0") || value.equalsIgnoreCase("false")) {
+            return false;
+        } else if (value.equals("1") || value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        Log.w(TAG, "parseBoolean(\""+key+"\"): Unhandled value (\""+value+"\"). Not sure how to parse, so using false.");
+        return false;
+    }
+
+    /** Parse a positive number of seconds, as milliseconds (capped at MAX_INTERVAL_SECONDS); if it isn't one, the default. */
+    private static int parseSecondsAsMS(Map<String, String> values, Map<String, String> defaults, String key) {
+        try {
+            final long seconds = Long.parseLong(values.get(key).trim());
+            if (seconds > MAX_INTERVAL_SECONDS) {
+                Log.w(TAG, "parseSecondsAsMS(\""+key+"\"): Value too large (\""+values.get(key)+"\"). Using maximum ("+MAX_INTERVAL_SECONDS+") instead.");
+                return (int) (MAX_INTERVAL_SECONDS * 1000);
+            } else if (seconds > 0) {
+                return (int) (seconds * 1000);
+            }
+        } catch (Exception e) {
+            //(handled below)
+        }
+        Log.w(TAG, "parseSecondsAsMS(\""+key+"\"): Invalid value (\""+values.get(key)+"\"). Using default ("+defaults.get(key)+") instead.");
+        return (int) (Math.min(Long.parseLong(defaults.get(key)), MAX_INTERVAL_SECONDS) * 1000);
+    }
+
+    /** The strings.xml values for the keys we know about. */
+    private static Map<String, String> loadResourceDefaults(Context appContext) {
+        final Map<String, String> ret = new HashMap<>();
+
+        ret.put(KEY_SERVER_PATH, appContext.getResources().getString(R.string.updatePackageServerPath));
+        ret.put(KEY_LOCAL_PATH, appContext.getResources().getString(R.string.updateFileDownloadPath));
+        ret.put(KEY_DOWNLOAD_WINDOW_START, appContext.getResources().getString(R.string.timeWindow_download_opens));
+        ret.put(KEY_DOWNLOAD_WINDOW_END, appContext.getResources().getString(R.string.timeWindow_download_closes));
+        ret.put(KEY_INSTALL_WINDOW_START, appContext.getResources().getString(R.string.timeWindow_install_opens));
+        ret.put(KEY_INSTALL_WINDOW_END, appContext.getResources().getString(R.string.timeWindow_install_closes));
+
+        try {
+            ret.put(KEY_DOWNLOAD_INTERVAL_SECONDS, String.valueOf(appContext.getResources().getInteger(R.integer.threadInterval_checkForUpdateDownload_seconds)));
+            ret.put(KEY_INSTALL_INTERVAL_SECONDS, String.valueOf(appContext.getResources().getInteger(R.integer.threadInterval_checkForUpdateInstall_seconds)));
+        } catch (Exception e) {
+            Log.w(TAG, "Exception caught trying to get thread intervals from strings.xml. Falling back to hard-coded values.\n"+e.getMessage());
+            ret.put(KEY_DOWNLOAD_INTERVAL_SECONDS, "60");
+            ret.put(KEY_INSTALL_INTERVAL_SECONDS, "60");
+        }
+
+        return Collections.unmodifiableMap(ret);
+    }
+
+    public static String layerName(int layer) {
+        switch (layer) {
+            case LAYER_DEFAULTS: return "defaults";
+            case LAYER_RUNTIME_FLAGS: return "runtime flags";
+            case LAYER_SERVER: return "server";
+            default: return "unknown";
+        }
+    }
+
+    /** Someone who wants to know when the config changes. */
+    public interface Listener {
+        void onConfigChanged(Snapshot oldConfig, Snapshot newConfig);
+    }
+
+    /** The merged config at one point in time. Immutable. */
+    public static class Snapshot {
+        public final long version;                                                                  //increases by one with each change
+        public final Map<String, String> values;                                                    //unmodifiable, all merged values
+        public final Map<String, Integer> sources;                                                  //unmodifiable, which layer each value came from
+
+        public final String serverIP;                                                               //null if not known
+        public final String serverPath;
+        public final String localPath;
+        public final TimeWindow downloadWindow;
+        public final TimeWindow installWindow;
+        public final boolean downloadDisallowed;
+        public final boolean installDisallowed;
+        public final int downloadIntervalMS;
+        public final int installIntervalMS;
+
+        Snapshot(long version, Map<String, String> values, Map<String, Integer> sources,
+                 String serverIP, String serverPath, String localPath,
+                 TimeWindow downloadWindow, TimeWindow installWindow,
+                 boolean downloadDisallowed, boolean installDisallowed,
+                 int downloadIntervalMS, int installIntervalMS) {
+            this.version = version;
+            this.values = values;
+            this.sources = sources;
+            this.serverIP = serverIP;
+            this.serverPath = serverPath;
+            this.localPath = localPath;
+            this.downloadWindow = downloadWindow;
+            this.installWindow = installWindow;
+            this.downloadDisallowed = downloadDisallowed;
+            this.installDisallowed = installDisallowed;
+            this.downloadIntervalMS = downloadIntervalMS;
+            this.installIntervalMS = installIntervalMS;
+        }
+
+        /** Returns the specified key's merged value, or null if no layer sets it. */
+        public String get(String key) {
+            return values.get(key);
+        }
+
+        /** Returns which layer the specified key's value came from, or -1 if no layer sets it. */
+        public int getSource(String key) {
+            final Integer layer = sources.get(key);
+            return (layer == null ? -1 : layer);
+        }
+
+        @Override
+        public String toString() {
+            return "config v" + version + " (server " + serverIP + "/" + serverPath + ", local " + localPath
+                    + ", download " + downloadWindow + (downloadDisallowed ? " disallowed" : "") + " every " + downloadIntervalMS + "ms"
+                    + ", install " + installWindow + (installDisallowed ? " disallowed" : "") + " every " + installIntervalMS + "ms)";
+        }
+    }
+}
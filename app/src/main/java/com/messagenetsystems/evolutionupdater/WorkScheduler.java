@@ -0,0 +1,78 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** WorkScheduler
+ * Lets a worker thread park until the next moment it could actually have work to do, instead of waking every
+ * interval just to find its window closed, and lets anyone wake it early when something changes (config, a server
+ * command, etc.).
+ *
+ * How long to park is worked out by getMillisUntilWorkPossible:
+ *  - Window open:          the thread's normal interval (there may be work, or retries, to do)
+ *  - Window closed:        until the window opens
+ *  - Disallowed:           until woken (by the config changing)
+ * In every case it's capped at MAX_PARK_MS, so a missed wake (e.g. a flags-file write inotify didn't see) or a wall
+ * clock change is still noticed within that long.
+ *
+ * Usage:
+ *  WorkScheduler scheduler = new WorkScheduler("checkForUpdatesThread");
+ *  String wokenBy = scheduler.park(WorkScheduler.getMillisUntilWorkPossible(window, disallowed, intervalMS));
+ *  scheduler.wake("config v3");                                                //(from any thread)
+ */
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+public class WorkScheduler {
+    private static final String TAG = WorkScheduler.class.getSimpleName();
+
+    public static final long MAX_PARK_MS = 15 * 60 * 1000;
+    private static final long WINDOW_OPEN_SLACK_MS = 1000;                                          //land inside the opening minute, not on its edge
+
+    private final String name;
+    private String wakeReason = null;                                                               //guarded by this; non-null if woken and not yet consumed by park
+
+    public WorkScheduler(String name) {
+        this.name = name;
+    }
+
+    /** Block for up to the specified time, or until wake is called (if it was called since the last park, this returns
+     * right away). Returns the reason it was woken, or null if the time just ran out. */
+    public synchronized String park(long durationMS) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, durationMS));
+
+        long remainingNS;
+        while (wakeReason == null && (remainingNS = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNS);
+        }
+
+        final String ret = wakeReason;
+        wakeReason = null;
+        return ret;
+    }
+
+    /** Wake the parked thread now (or, if it isn't parked, have its next park return right away). */
+    public synchronized void wake(String reason) {
+        Log.d(TAG, "wake("+name+"): "+reason);
+        wakeReason = (reason == null ? "unspecified" : reason);
+        notifyAll();
+    }
+
+    /** Returns how long a thread with the specified window could go before there might be work for it. */
+    public static long getMillisUntilWorkPossible(TimeWindow window, boolean disallowed, long intervalMS) {
+        if (disallowed) {
+            return MAX_PARK_MS;
+        }
+        final long untilOpen = window.getMillisUntilOpen();
+        if (untilOpen == 0) {
+            return Math.min(intervalMS, MAX_PARK_MS);
+        } else if (untilOpen < 0) {
+            return MAX_PARK_MS;         //(empty window, so only a config change can give us work)
+        }
+        return Math.min(untilOpen + WINDOW_OPEN_SLACK_MS, MAX_PARK_MS);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -12,6 +12,7 @@ import android.widget.TextView;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -83,7 +84,7 @@ public class UpdatingActivity extends Activity {
         currentlyDownloadingFilename = updateFile.filename;
 
         // Start the download
-        new DownloadFileFromURL().execute("http://" + systemFunctions.serverIP + "/" + serverPath + "/" + updateFile.filename);
+        new DownloadFileFromURL().execute("http://" + UpdaterConfig.getInstance(appContext).getSnapshot().serverIP + "/" + serverPath + "/" + updateFile.filename);
     }
 
     private class UpdateFile {
@@ -15,11 +15,9 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.TextView;
 
-import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
 import com.messagenetsystems.evolutionupdater.threads.InstallUpdatesThread;
@@ -75,18 +73,39 @@ public class UpdatingActivitySimple extends Activity {
         // Update notification
         systemFunctions.updateNotificationWithText(notifText_updateInstallPreparing+" ("+appPackageName_short+")");
 
-        // Kill the app we're going to update
-        maxRetriesLeft = 5;
-        while (!systemFunctions.stopSpecifiedApp(appPackageName) && maxRetriesLeft > 0) {
-            maxRetriesLeft--;
-        }
-        if (maxRetriesLeft == 0) {
-            Log.w(TAG, TAGG + "Could not kill \"" + appPackageName + "\". Will try updating anyway.");
-        }
+        // Kill the app we're going to update, then install the update, all off the UI thread (so the activity renders and
+        // stays responsive meanwhile); only finishing the activity is posted back to it.
+        // Note: The worker has its own SystemFunctions, since ours is cleaned up in onDestroy, which may come first.
+        final SystemFunctions sf = new SystemFunctions(appContext);
+        final Context context = appContext;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!sf.stopSpecifiedAppAndWait(appPackageName, SystemFunctions.STOP_APP_TIMEOUT_MS)) {
+                        Log.w(TAG, TAGG + "Could not kill \"" + appPackageName + "\". Will try updating anyway.");
+                    }
+                    if (isGone()) {
+                        abandonUpdate(TAGG);
+                        return;
+                    }
+                    doTheStuff(sf, context);
+                } finally {
+                    sf.cleanup();
+                }
+            }
+        }, TAG + "-install").start();
+    }
 
-        // Give the activity time to render before starting the update
-        Handler delayedStart = new Handler();
-        delayedStart.postDelayed(doTheStuff, 2000);
+    /** Returns true if this activity is finishing or already destroyed (so it must not go on with the update). */
+    private boolean isGone() {
+        return isFinishing() || isDestroyed();
+    }
+
+    /** Give up on the update because this activity went away before it could start, so other updates can still happen. */
+    private void abandonUpdate(String TAGG) {
+        Log.w(TAG, TAGG+"Activity went away before the update started, abandoning it (\""+appPackageName+"\" was stopped, and is left for its watchdog to restart).");
+        InstallUpdatesThread.packageIsUpdating = null;
     }
 
     @Override
@@ -130,113 +149,74 @@ public class UpdatingActivitySimple extends Activity {
         }
     }
 
-    private Runnable doTheStuff = new Runnable() {
+    /** Install the update (with retries), record the result, and start the updated app. Runs on the worker thread
+     * (see onPostCreate), with the SystemFunctions and context it was given; only finishing is posted to the UI thread. */
+    private void doTheStuff(SystemFunctions systemFunctions, Context appContext) {
         final String TAGG = "doTheStuff: ";
 
         String result = SystemFunctions.INSTALL_PACKAGE_RESULT_UNKNOWN;
 
-        @Override
-        public void run() {
-            systemFunctions.updateNotificationWithText(notifText_updateInstallUnderway + " (" + appPackageName_short + ")");
-            maxRetriesLeft = 5;
-            /* DEPRECATED
-            while (!systemFunctions.installPackage(filename).equals(systemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS) && maxRetriesLeft > 0) {
-                maxRetriesLeft--;
-            }
-            */
-
-            // Different processes for system apps versus regular user apps...
-            if (appPackageName.equals(MainUpdaterService.packageName_omniWatchdogWatcher)) {
-                // Begin the system-app installation
-                // this needs to update as a system app (which requires RW system mount and post-update reboot)
-                while (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS) && maxRetriesLeft > 0){
-                    Log.v(TAG, TAGG+"Invoking package installation routine (for system app), "+maxRetriesLeft+" tries left...");
-                    result = systemFunctions.installPackage_systemApp(filename, appPackageName+".apk");                    //this routine takes care of remounting, copying file, etc.
-                    maxRetriesLeft--;
-                }
-                if (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)
-                        && maxRetriesLeft <= 0) {
-                    // No explicit success, and no retries remaining...
-                    Log.e(TAG, TAGG + "Could not install \"" + filename + "\" after many retries.");
-                    updateSucceeded = false;
-                    updateResultReason = result + " (after many after many UpdatingActivitySimple.doTheStuff() retries)";
-                } else if (result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)) {
-                    // We got an explicit success from SystemFunctions.installPackage_systemApp()!
-                    updateSucceeded = true;
-                    updateResultReason = result;
-                } else {
-                    updateSucceeded = false;
-                    updateResultReason = result + " (UpdatingActivitySimple.doTheStuff() encountered unhandled condition after executing SystemFunctions.installPacakge())";
-                }
-
-                // If success, we will need to reboot; else show problem
-                if (updateSucceeded) {
-                    Log.i(TAG, TAGG + "Updated succeeded, rebooting device so it can finish installing.");
-                    systemFunctions.updateNotificationWithText(notifText_normalAppAlive);
-                    systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_SUCCESS, updateResultReason);
-                    systemFunctions.doReboot();
-                } else {
-                    Log.i(TAG, TAGG + "Updated failed, show problem.");
-                    systemFunctions.updateNotificationWithText(notifText_updateInstallFailed + " (" + appPackageName_short + ")");
-                    systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_FAILURE, updateResultReason);
-                }
+        systemFunctions.updateNotificationWithText(notifText_updateInstallUnderway + " (" + appPackageName_short + ")");
+        maxRetriesLeft = 5;
+        /* DEPRECATED
+        while (!systemFunctions.installPackage(filename).equals(systemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS) && maxRetriesLeft > 0) {
+            maxRetriesLeft--;
+        }
+        */
 
-                // Reset the flag so other updates can happen
-                InstallUpdatesThread.packageIsUpdating = null;
-
-                // Close the updating screen
-                UpdatingActivitySimple.this.finish();
-            } else {
-                // Begin the user-app installation
-                while (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS) && maxRetriesLeft > 0) {
-                    Log.v(TAG, TAGG+"Invoking package installation routine, "+maxRetriesLeft+" tries left...");
-                    result = systemFunctions.installPackage(filename);
-                    maxRetriesLeft--;
-                }
-                if (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)
-                        && maxRetriesLeft <= 0) {
-                    // No explicit success, and no retries remaining...
-                    Log.e(TAG, TAGG + "Could not install \"" + filename + "\" after many retries.");
-                    updateSucceeded = false;
-                    updateResultReason = result + " (after many after many UpdatingActivitySimple.doTheStuff() retries)";
-                } else if (result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)) {
-                    // We got an explicit success from SystemFunctions.installPackage()!
-                    updateSucceeded = true;
-                    updateResultReason = result;
-                } else {
-                    updateSucceeded = false;
-                    updateResultReason = result + " (UpdatingActivitySimple.doTheStuff() encountered unhandled condition after executing SystemFunctions.installPacakge())";
-                }
+        // Begin the user-app installation (system apps never get here; see ApplyUpdatesReceiver)
+        while (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS) && maxRetriesLeft > 0) {
+            Log.v(TAG, TAGG+"Invoking package installation routine, "+maxRetriesLeft+" tries left...");
+            result = systemFunctions.installPackage(filename);
+            maxRetriesLeft--;
+        }
+        if (!result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)
+                && maxRetriesLeft <= 0) {
+            // No explicit success, and no retries remaining...
+            Log.e(TAG, TAGG + "Could not install \"" + filename + "\" after many retries.");
+            updateSucceeded = false;
+            updateResultReason = result + " (after many after many UpdatingActivitySimple.doTheStuff() retries)";
+        } else if (result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)) {
+            // We got an explicit success from SystemFunctions.installPackage()!
+            updateSucceeded = true;
+            updateResultReason = result;
+        } else {
+            updateSucceeded = false;
+            updateResultReason = result + " (UpdatingActivitySimple.doTheStuff() encountered unhandled condition after executing SystemFunctions.installPacakge())";
+        }
 
-                // If success, restart stuff; else show problem
-                // (DEV-NOTE: this is where we set notification so it persists with problem message if needed, instead of resetting notification in onDestroy)
-                if (updateSucceeded) {
-                    Log.i(TAG, TAGG + "Updated succeeded, starting app.");
-                    systemFunctions.updateNotificationWithText(notifText_normalAppAlive);
-                    systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_SUCCESS, updateResultReason);
-                } else {
-                    Log.i(TAG, TAGG + "Updated failed, show problem.");
-                    systemFunctions.updateNotificationWithText(notifText_updateInstallFailed + " (" + appPackageName_short + ")");
-                    systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_FAILURE, updateResultReason);
-                }
+        // If success, restart stuff; else show problem
+        // (DEV-NOTE: this is where we set notification so it persists with problem message if needed, instead of resetting notification in onDestroy)
+        if (updateSucceeded) {
+            Log.i(TAG, TAGG + "Updated succeeded, starting app.");
+            systemFunctions.updateNotificationWithText(notifText_normalAppAlive);
+            systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_SUCCESS, updateResultReason);
+        } else {
+            Log.i(TAG, TAGG + "Updated failed, show problem.");
+            systemFunctions.updateNotificationWithText(notifText_updateInstallFailed + " (" + appPackageName_short + ")");
+            systemFunctions.saveInstallationAttemptResultInfo(appPackageName, systemFunctions.UPDATE_INSTALLATION_RESULT_FAILURE, updateResultReason);
+        }
 
-                // Start the updated app
-                if (appPackageName.equals(appContext.getResources().getString(R.string.appPackageName_evolution))) {
-                    startupClassName = appContext.getResources().getString(R.string.startupClass_evolution);
-                } else if (appPackageName.equals(appContext.getResources().getString(R.string.appPackageName_evolutionWatchdog))) {
-                    startupClassName = appContext.getResources().getString(R.string.startupClass_evolutionWatchdog);
-                } else {
-                    startupClassName = "StartupActivity";
-                    Log.w(TAG, TAGG + "Unhandled app package, defaulting to \"" + startupClassName + "\".");
-                }
-                systemFunctions.startSpecifiedApp(appPackageName, startupClassName);
+        // Start the updated app
+        if (appPackageName.equals(appContext.getResources().getString(R.string.appPackageName_evolution))) {
+            startupClassName = appContext.getResources().getString(R.string.startupClass_evolution);
+        } else if (appPackageName.equals(appContext.getResources().getString(R.string.appPackageName_evolutionWatchdog))) {
+            startupClassName = appContext.getResources().getString(R.string.startupClass_evolutionWatchdog);
+        } else {
+            startupClassName = "StartupActivity";
+            Log.w(TAG, TAGG + "Unhandled app package, defaulting to \"" + startupClassName + "\".");
+        }
+        systemFunctions.startSpecifiedApp(appPackageName, startupClassName);
 
-                // Reset the flag so other updates can happen
-                InstallUpdatesThread.packageIsUpdating = null;
+        // Reset the flag so other updates can happen
+        InstallUpdatesThread.packageIsUpdating = null;
 
-                // Close the updating screen
-                UpdatingActivitySimple.this.finish();
+        // Close the updating screen
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                finish();
             }
-        }
-    };
+        });
+    }
 }
@@ -17,80 +17,110 @@ import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
 import com.messagenetsystems.evolutionupdater.activities.UpdatingActivitySimple;
+import com.messagenetsystems.evolutionupdater.threads.InstallUpdatesThread;
+
+import java.util.Collections;
 
 public class ApplyUpdatesReceiver extends BroadcastReceiver {
     private static final String TAG = ApplyUpdatesReceiver.class.getSimpleName();
 
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
         String TAGG = "onReceive ("+String.valueOf(intent.getAction())+"): ";
         Log.v(TAG, TAGG+"Invoked.");
 
         final String intentAction = context.getResources().getString(R.string.intentAction_triggerOmniUpdater_applyUpdates);
 
         if (intent.getAction().equals(intentAction)) {
-            SystemFunctions systemFunctions = new SystemFunctions(context);
-            String appPackageName = null;
-            String appPackageName_short = "";
-            String filename = null;
-            int maxRetriesLeft;
-            boolean okToContinue = true;
-            Intent intentToStartActivity;
-
-            // If intent's extras specify a specific app to update, then only do that
-            // Else do all available
-            if (intent.hasExtra("appPackageName")) {
-                appPackageName = intent.getStringExtra("appPackageName");
-                appPackageName_short = appPackageName.replace("com.messagenetsystems.", "");
-
-                // Get any other flags/params from intent
-                String notifyWhenDone = intent.getStringExtra("notifyWhenDone");    //get the resource to notify, if provided with one
-
-                // Construct a filename to pass to the installation routine
-                filename = MainUpdaterService.localPath+"/"+appPackageName + ".apk";
-
-                // Kill any prerequisite apps first (like watchdog)
-                if (appPackageName.equals(MainUpdaterService.packageName_evolution)) {
-
-                    //for main app, we also need to kill watchdog before killing main app
-                    systemFunctions.updateNotificationWithText("Preparing update: Killing watchdog.");
-                    maxRetriesLeft = 5;
-                    while (!systemFunctions.stopSpecifiedApp(MainUpdaterService.packageName_evolutionWatchdog) && maxRetriesLeft > 0) {
-                        maxRetriesLeft--;
-                    }
-                    if (maxRetriesLeft == 0) {
-                        Log.e(TAG, TAGG + "Could not kill watchdog. Aborting update.");
-                        okToContinue = false;
-                        systemFunctions.updateNotificationWithText("Failed to kill watchdog. Update aborted.");
+            // Stopping apps waits on them to exit (seconds), so do the work off the main thread, keeping the broadcast
+            // alive until it's done (so our process isn't considered idle and killed meanwhile)
+            final PendingResult pendingResult = goAsync();
+            final Context appContext = context.getApplicationContext();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        applyUpdates(appContext, intent);
+                    } catch (Exception e) {
+                        Log.e(TAG, "onReceive: Exception caught: "+e.getMessage());
+                    } finally {
+                        pendingResult.finish();
                     }
                 }
+            }, TAG).start();
 
-                // Continue update of specified app
-                if (okToContinue) {
-                    systemFunctions.updateNotificationWithText("Starting update"+" ("+appPackageName_short+")");
-
-                    // Start the update activity
-                    intentToStartActivity = new Intent(context, UpdatingActivitySimple.class);
-                    intentToStartActivity.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);                  //required to call startActivity from outside of the activity's context
-                    intentToStartActivity.putExtra("appPackageName", appPackageName);
-                    intentToStartActivity.putExtra("filename", filename);                           //NOTE: This is the filename with its path prepended!
-                    intentToStartActivity.putExtra("notifyWhenDone", notifyWhenDone);
-                    context.startActivity(intentToStartActivity);
+        } else {
+            Log.w(TAG, TAGG+"Intent action did not match conditions needed to start updater activity.");
+        }
+    }
 
-                    // At this point, the activity takes care of the rest!
+    /** Stop whatever must be stopped first, then start the update activity for the package the intent specifies.
+     * A system app is instead installed the same way InstallUpdatesThread does (copied into the system partition, then a
+     * reboot), which needs nothing stopped or shown. */
+    private void applyUpdates(Context context, Intent intent) {
+        final String TAGG = "applyUpdates: ";
+
+        SystemFunctions systemFunctions = new SystemFunctions(context);
+        String appPackageName = null;
+        String appPackageName_short = "";
+        String filename = null;
+        boolean okToContinue = true;
+        Intent intentToStartActivity;
+
+        // If intent's extras specify a specific app to update, then only do that
+        // Else do all available
+        if (intent.hasExtra("appPackageName")) {
+            appPackageName = intent.getStringExtra("appPackageName");
+            appPackageName_short = appPackageName.replace("com.messagenetsystems.", "");
+
+            // Get any other flags/params from intent
+            String notifyWhenDone = intent.getStringExtra("notifyWhenDone");    //get the resource to notify, if provided with one
+
+            // Construct a filename to pass to the installation routine
+            filename = MainUpdaterService.localPath+"/"+appPackageName + ".apk";
+
+            // System apps don't need the activity (see method doc)
+            if (SystemFunctions.isSystemAppPackage(appPackageName)) {
+                if (!InstallUpdatesThread.installSystemAppUpdates(context, systemFunctions, Collections.singletonList(appPackageName))) {
+                    Log.w(TAG, TAGG+"Another update is ongoing. Aborting update of \""+appPackageName+"\".");
                 }
+                okToContinue = false;
+            }
 
-            } else {
-                Log.w(TAG, TAGG+"TODO: install all available updates"); //TODO
+            // Kill any prerequisite apps first (like watchdog)
+            if (okToContinue && appPackageName.equals(MainUpdaterService.packageName_evolution)) {
+
+                //for main app, we also need to kill watchdog before killing main app
+                systemFunctions.updateNotificationWithText("Preparing update: Killing watchdog.");
+                if (!systemFunctions.stopSpecifiedAppAndWait(MainUpdaterService.packageName_evolutionWatchdog, SystemFunctions.STOP_APP_TIMEOUT_MS)) {
+                    Log.e(TAG, TAGG + "Could not kill watchdog. Aborting update.");
+                    okToContinue = false;
+                    systemFunctions.updateNotificationWithText("Failed to kill watchdog. Update aborted.");
+                }
             }
 
-            //cleanup
-            systemFunctions.cleanup();
-            systemFunctions = null;
-            intentToStartActivity = null;
+            // Continue update of specified app
+            if (okToContinue) {
+                systemFunctions.updateNotificationWithText("Starting update"+" ("+appPackageName_short+")");
+
+                // Start the update activity
+                intentToStartActivity = new Intent(context, UpdatingActivitySimple.class);
+                intentToStartActivity.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);                  //required to call startActivity from outside of the activity's context
+                intentToStartActivity.putExtra("appPackageName", appPackageName);
+                intentToStartActivity.putExtra("filename", filename);                           //NOTE: This is the filename with its path prepended!
+                intentToStartActivity.putExtra("notifyWhenDone", notifyWhenDone);
+                context.startActivity(intentToStartActivity);
+
+                // At this point, the activity takes care of the rest!
+            }
 
         } else {
-            Log.w(TAG, TAGG+"Intent action did not match conditions needed to start updater activity.");
+            Log.w(TAG, TAGG+"TODO: install all available updates"); //TODO
         }
+
+        //cleanup
+        systemFunctions.cleanup();
+        systemFunctions = null;
+        intentToStartActivity = null;
     }
 }
@@ -24,12 +24,15 @@ import android.util.Log;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.threads.CheckForUpdatesThread;
+import com.messagenetsystems.evolutionupdater.threads.DownloadVerificationThread;
 
 import java.io.File;
 
 public class BackgroundGetUpdatesReceiver extends BroadcastReceiver {
     private static final String TAG = BackgroundGetUpdatesReceiver.class.getSimpleName();
 
+    public static final String EXTRA_CHECKSUM_RECORD = "checksumRecord";                            //optional, the server's checksum record the requester saw (see DownloadVerificationThread.setExpectedChecksumRecord)
+
     protected Context appContext;
     final boolean DO_RESET_MAIN_FLAGS = true;
 
@@ -70,6 +73,8 @@ public class BackgroundGetUpdatesReceiver extends BroadcastReceiver {
             request.setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI);
 
             // Setup the file destination
+            DownloadVerificationThread.invalidate(appPackageName);                                  //whatever was verified before is about to be replaced
+            DownloadVerificationThread.setExpectedChecksumRecord(appPackageName, intent.getStringExtra(EXTRA_CHECKSUM_RECORD));
             try {
                 File destFile = new File(MainUpdaterService.localPath + "/" + filename);
                 if (destFile.exists()) {
@@ -0,0 +1,38 @@
+package com.messagenetsystems.evolutionupdater.receivers;
+
+/** ClockChangedReceiver
+ * Handles Android's time set and timezone changed broadcasts, so TimeWindow re-anchors its local time (it otherwise
+ * keeps the wall-clock time and timezone it last took) and the work threads reconsider when their windows open.
+ *
+ * Registered dynamically by MainUpdaterService.
+ */
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.MainUpdaterService;
+import com.messagenetsystems.evolutionupdater.TimeWindow;
+
+public class ClockChangedReceiver extends BroadcastReceiver {
+    private static final String TAG = ClockChangedReceiver.class.getSimpleName();
+
+    /** Returns the filter this receiver should be registered with. */
+    public static IntentFilter createIntentFilter() {
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_TIME_CHANGED);
+        intentFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        return intentFilter;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String TAGG = "onReceive ("+String.valueOf(intent.getAction())+"): ";
+        Log.d(TAG, TAGG+"Clock or timezone changed, re-anchoring time windows.");
+
+        TimeWindow.onClockChanged();
+        MainUpdaterService.wakeWorkThreads("clock changed");
+    }
+}
@@ -24,6 +24,7 @@ import android.util.Log;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
 import com.messagenetsystems.evolutionupdater.threads.CheckForUpdatesThread;
+import com.messagenetsystems.evolutionupdater.threads.DownloadVerificationThread;
 
 public class DownloadManagerCompletedReceiver extends BroadcastReceiver {
 
@@ -63,6 +64,9 @@ public class DownloadManagerCompletedReceiver extends BroadcastReceiver {
                 // Update this package's download-status so it's known to be done
                 CheckForUpdatesThread.setPackageDownloadStatus(packageName, CheckForUpdatesThread.STATUS_DOWNLOAD_COMPLETED);
 
+                // Hand the file off to be verified in the background now, so that doesn't have to happen during the install window
+                DownloadVerificationThread.requestVerification(packageName);
+
                 // Reset flags
                 if (doResetMainFlags) {
                     MainUpdaterService.flag_isDownloading = false;
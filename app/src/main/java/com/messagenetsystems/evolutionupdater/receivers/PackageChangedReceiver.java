@@ -0,0 +1,65 @@
+package com.messagenetsystems.evolutionupdater.receivers;
+
+/** PackageChangedReceiver
+ * Handles Android's package added/replaced/removed broadcasts, so the InstalledPackageIndex stays current without
+ * having to poll for what's installed.
+ *
+ * Registered dynamically by MainUpdaterService (with the "package" data scheme, which these broadcasts require).
+ * The index itself ignores any packages it isn't tracking (ones we neither manage nor have looked up, whether or not
+ * they turned out to be installed).
+ */
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.InstalledPackageIndex;
+
+public class PackageChangedReceiver extends BroadcastReceiver {
+    private static final String TAG = PackageChangedReceiver.class.getSimpleName();
+
+    private InstalledPackageIndex installedPackageIndex;
+
+    /** Constructor */
+    public PackageChangedReceiver(InstalledPackageIndex installedPackageIndex) {
+        this.installedPackageIndex = installedPackageIndex;
+    }
+
+    /** Returns the filter this receiver should be registered with. */
+    public static IntentFilter createIntentFilter() {
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addDataScheme("package");
+        return intentFilter;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String TAGG = "onReceive ("+String.valueOf(intent.getAction())+"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        if (intent.getAction() == null || intent.getData() == null) {
+            Log.w(TAG, TAGG+"No action or package provided, ignoring.");
+            return;
+        }
+
+        final String packageName = intent.getData().getSchemeSpecificPart();
+
+        if (intent.getAction().equals(Intent.ACTION_PACKAGE_REMOVED)) {
+            if (intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                Log.v(TAG, TAGG+"Package \""+packageName+"\" is being replaced, waiting for the replaced broadcast.");
+            } else {
+                installedPackageIndex.remove(packageName);
+            }
+        } else if (intent.getAction().equals(Intent.ACTION_PACKAGE_ADDED)
+                || intent.getAction().equals(Intent.ACTION_PACKAGE_REPLACED)) {
+            installedPackageIndex.refresh(packageName);
+        } else {
+            Log.w(TAG, TAGG+"Unhandled action.");
+        }
+    }
+}
@@ -26,8 +26,16 @@ import android.util.Log;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.TimeWindow;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
+import com.messagenetsystems.evolutionupdater.WorkScheduler;
+import com.messagenetsystems.evolutionupdater.receivers.BackgroundGetUpdatesReceiver;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumRecord;
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class CheckForUpdatesThread extends Thread {
     private static String TAG = CheckForUpdatesThread.class.getSimpleName();
@@ -42,10 +50,9 @@ public class CheckForUpdatesThread extends Thread {
     private SystemFunctions systemFunctions;
     private int initialWaitPeriodMS;
     private int workCycleRestPeriodMS;
-    private String timeWindowOpen_strings, timeWindowClose_strings;
-    private String timeWindowOpen_runtime = null;
-    private String timeWindowClose_runtime = null;
-    private String timeWindowOpen, timeWindowClose;
+    private UpdaterConfig updaterConfig;
+    private WorkScheduler workScheduler;
+    private Map<String, String> serverChecksumRecords = new HashMap<>();                            //each package's server checksum record, as last read (only used by this thread)
 
     /** DEV-NOTE: If adding more apps, continue here (your first stop should have been MainUpdaterService)...
      * Then add corresponding logic to constructor and run() routines below.
@@ -63,15 +70,17 @@ public class CheckForUpdatesThread extends Thread {
         this.context = context;
         systemFunctions = new SystemFunctions(context);
 
-        // Download process stuff
-        populateTimeWindow_fromRuntimeFile(systemFunctions);
-        populateTimeWindow_fromStrings(context);
-        populateTimeWindow_toUse();
+        // Download process stuff (time window, etc. are read from the current config each cycle)
+        updaterConfig = UpdaterConfig.getInstance(context);
+
+        // Between work cycles, we park until there could be work for us (woken early on config changes or server requests)
+        workScheduler = new WorkScheduler(MonitorThreadsThread.THREADNAME_checkForUpdatesThread);
+        MainUpdaterService.workScheduler_checkForUpdatesThread = workScheduler;
 
         // Initialize default rest period values from strings
         try {
             initialWaitPeriodMS = context.getResources().getInteger(R.integer.threadInitialWait_checkForUpdateDownload_seconds) * 1000;
-            workCycleRestPeriodMS = context.getResources().getInteger(R.integer.threadInterval_checkForUpdateDownload_seconds) * 1000;
+            workCycleRestPeriodMS = updaterConfig.getSnapshot().downloadIntervalMS;
         } catch (Exception e) {
             Log.w(TAG, "Exception caught trying to get thread configuration parameters from strings.xml. Falling back to hard-coded values.\n"+e.getMessage());
             initialWaitPeriodMS = 5 * 1000;
@@ -89,8 +98,6 @@ public class CheckForUpdatesThread extends Thread {
         long pid = Thread.currentThread().getId();
         Log.i(TAG, TAGG+"Thread now running with process ID = "+ pid);
 
-        String currentTime;
-
         // As long as our thread is supposed to be running, start doing work-cycles until it's been flagged to interrupt (rest period happens at the end of the cycle)...
         while (!Thread.currentThread().isInterrupted()) {
 
@@ -98,7 +105,8 @@ public class CheckForUpdatesThread extends Thread {
             if (cycleNumber == 0) {
                 try {
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEPING);
-                    java.lang.Thread.sleep(initialWaitPeriodMS);
+                    MainUpdaterService.threadNextRunDate_checkForUpdatesThread = new Date(System.currentTimeMillis() + initialWaitPeriodMS);
+                    workScheduler.park(initialWaitPeriodMS);
                 } catch (InterruptedException e) {
                     //Log.e(TAG, TAGG + "Exception caught trying to sleep for first-run (" + workCycleRestPeriodMS + "ms). Broadcasting this error status and stopping.\n" + e.getMessage());
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEP_ERROR);
@@ -106,12 +114,21 @@ public class CheckForUpdatesThread extends Thread {
                     Thread.currentThread().interrupt();
                 }
             } else {
-                // Take a rest before continuing with this iteration (to make sure this thread doesn't run full tilt)...
+                // Park until there could be work for us (our window opens, or our next interval if it's open), or until we're woken (config change, server request)...
+                final UpdaterConfig.Snapshot nextConfig = updaterConfig.getSnapshot();
+                workCycleRestPeriodMS = (int) WorkScheduler.getMillisUntilWorkPossible(nextConfig.downloadWindow, nextConfig.downloadDisallowed, nextConfig.downloadIntervalMS);
+                MainUpdaterService.threadNextRunDate_checkForUpdatesThread = new Date(System.currentTimeMillis() + workCycleRestPeriodMS);
+                if (workCycleRestPeriodMS > nextConfig.downloadIntervalMS) {
+                    Log.d(TAG, TAGG+"Nothing to do until "+MainUpdaterService.threadNextRunDate_checkForUpdatesThread+" (window "+nextConfig.downloadWindow+(nextConfig.downloadDisallowed ? ", disallowed" : "")+"), parking.");
+                }
                 try {
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEPING);
-                    Thread.sleep(workCycleRestPeriodMS);
+                    final String wokenBy = workScheduler.park(workCycleRestPeriodMS);
+                    if (wokenBy != null) {
+                        Log.d(TAG, TAGG+"Woken early ("+wokenBy+").");
+                    }
                 } catch (InterruptedException e) {
-                    Log.e(TAG, TAGG + "Exception caught trying to sleep for interval (" + workCycleRestPeriodMS + "ms). Thread stopping.\n" + e.getMessage());
+                    Log.e(TAG, TAGG + "Exception caught trying to park for interval (" + workCycleRestPeriodMS + "ms). Thread stopping.\n" + e.getMessage());
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEP_ERROR);
                     Thread.currentThread().interrupt();
                 }
@@ -128,21 +145,17 @@ public class CheckForUpdatesThread extends Thread {
             Log.v(TAG, TAGG+"=======================================(start)");
             Log.v(TAG, TAGG+"BEGINNING WORK CYCLE #"+cycleNumber+"...");
 
-            // Get current time
-            currentTime = systemFunctions.getCurrentTime24();
-
-            // Read runtime values (in case they've updated since last iteration)
-            if (systemFunctions.getRuntimeFlag_asBoolean("UPDATE_DOWNLOAD_DISALLOW")) {
-                Log.i(TAG, TAGG+"Runtime flag is currently set to disallow update download, so nothing to do this iteration. Reset flag to allow update downloads again.");
-                systemFunctions.updateNotificationWithText("Runtime flag is disallowing update downloads.");
+            // Take the current config (picks up runtime flag, main app setting, or server changes since last iteration)
+            final UpdaterConfig.Snapshot config = updaterConfig.getSnapshot();
+            if (config.downloadDisallowed) {
+                Log.i(TAG, TAGG+"Config ("+UpdaterConfig.layerName(config.getSource(UpdaterConfig.KEY_DOWNLOAD_DISALLOW))+") is currently set to disallow update download, so nothing to do this iteration. Reset flag to allow update downloads again.");
+                systemFunctions.updateNotificationWithText("Config is disallowing update downloads.");
                 continue;
             }
-            populateTimeWindow_fromRuntimeFile();
-            populateTimeWindow_toUse();
 
             // Check whether we're within our time window for downloading updates.
-            if (systemFunctions.timeIsWithinTimeWindow(currentTime, timeWindowOpen, timeWindowClose)) {
-                Log.d(TAG, TAGG + "Current time (" + currentTime + ") is within our time window (" + timeWindowOpen + "-" + timeWindowClose + ").");
+            if (config.downloadWindow.isOpen()) {
+                Log.d(TAG, TAGG+"Current time ("+TimeWindow.formatMinuteOfDay(TimeWindow.currentMinuteOfDay())+") is within our time window ("+config.downloadWindow+").");
 
                 // First, determine whether the network is available
                 // (there's no sense even trying to check with server if there's no network connection)
@@ -159,7 +172,7 @@ public class CheckForUpdatesThread extends Thread {
                 // If package is not currently trying to download...
                 if (downloadStatus_evolution != STATUS_DOWNLOAD_INITIATED && downloadStatus_evolution != STATUS_DOWNLOAD_QUEUED) {
                     // If downloaded package is different than what's on the server, download it!
-                    if (isServerAppChecksumDifferentThanAppDownloaded(MainUpdaterService.packageName_evolution)) {
+                    if (isServerAppChecksumDifferentThanAppDownloaded(config, MainUpdaterService.packageName_evolution)) {
                         downloadStatus_evolution = STATUS_DOWNLOAD_INITIATED;
                         initiateDownload(MainUpdaterService.packageName_evolution);
                     }
@@ -170,7 +183,7 @@ public class CheckForUpdatesThread extends Thread {
                 // If package is not currently trying to download...
                 if (downloadStatus_evolutionWatchdog != STATUS_DOWNLOAD_INITIATED && downloadStatus_evolutionWatchdog != STATUS_DOWNLOAD_QUEUED) {
                     // If downloaded package is different than what's on the server, download it!
-                    if (isServerAppChecksumDifferentThanAppDownloaded(MainUpdaterService.packageName_evolutionWatchdog)) {
+                    if (isServerAppChecksumDifferentThanAppDownloaded(config, MainUpdaterService.packageName_evolutionWatchdog)) {
                         downloadStatus_evolutionWatchdog = STATUS_DOWNLOAD_INITIATED;
                         initiateDownload(MainUpdaterService.packageName_evolutionWatchdog);
                     }
@@ -181,7 +194,7 @@ public class CheckForUpdatesThread extends Thread {
                 // If package is not currently trying to download...
                 if (downloadStatus_evolutionUpdater != STATUS_DOWNLOAD_INITIATED && downloadStatus_evolutionUpdater != STATUS_DOWNLOAD_QUEUED) {
                     // If downloaded package is different than what's on the server, download it!
-                    if (isServerAppChecksumDifferentThanAppDownloaded(MainUpdaterService.packageName_evolutionUpdater)) {
+                    if (isServerAppChecksumDifferentThanAppDownloaded(config, MainUpdaterService.packageName_evolutionUpdater)) {
                         downloadStatus_evolutionUpdater = STATUS_DOWNLOAD_INITIATED;
                         initiateDownload(MainUpdaterService.packageName_evolutionUpdater);
                     }
@@ -192,7 +205,7 @@ public class CheckForUpdatesThread extends Thread {
                 // If package is not currently trying to download...
                 if (downloadStatus_evolutionFlasherLights != STATUS_DOWNLOAD_INITIATED && downloadStatus_evolutionFlasherLights != STATUS_DOWNLOAD_QUEUED) {
                     // If downloaded package is different than what's on the server, download it!
-                    if (isServerAppChecksumDifferentThanAppDownloaded(MainUpdaterService.packageName_evolutionFlasherLights)) {
+                    if (isServerAppChecksumDifferentThanAppDownloaded(config, MainUpdaterService.packageName_evolutionFlasherLights)) {
                         downloadStatus_evolutionFlasherLights = STATUS_DOWNLOAD_INITIATED;
                         initiateDownload(MainUpdaterService.packageName_evolutionFlasherLights);
                     }
@@ -203,7 +216,7 @@ public class CheckForUpdatesThread extends Thread {
                 // If package is not currently trying to download...
                 if (downloadStatus_omniWatchdogWatcher != STATUS_DOWNLOAD_INITIATED && downloadStatus_omniWatchdogWatcher != STATUS_DOWNLOAD_QUEUED) {
                     // If downloaded package is different than what's on the server, download it!
-                    if (isServerAppChecksumDifferentThanAppDownloaded(MainUpdaterService.packageName_omniWatchdogWatcher)) {
+                    if (isServerAppChecksumDifferentThanAppDownloaded(config, MainUpdaterService.packageName_omniWatchdogWatcher)) {
                         downloadStatus_omniWatchdogWatcher = STATUS_DOWNLOAD_INITIATED;
                         initiateDownload(MainUpdaterService.packageName_omniWatchdogWatcher);
                     }
@@ -212,7 +225,7 @@ public class CheckForUpdatesThread extends Thread {
                 }
 
             } else {
-                Log.d(TAG, TAGG+"Current time ("+currentTime+") is outside of our time window ("+timeWindowOpen+"-"+timeWindowClose+"). Nothing to do here.");
+                Log.d(TAG, TAGG+"Current time ("+TimeWindow.formatMinuteOfDay(TimeWindow.currentMinuteOfDay())+") is outside of our time window ("+config.downloadWindow+"). Nothing to do here.");
             }
 
             /* END MAIN THREAD-WORK */
@@ -234,19 +247,37 @@ public class CheckForUpdatesThread extends Thread {
 
     /** Compare server's package's checksum with that which is currently downloaded on sdcard.
      * We can use this to avoid downloading the same thing over and over again before it's actually installed.
-     * NOTE: This reads server-file's checksum value directly from MD5 file via HTTP. No MD5 download is necessary.*/
-    private boolean isServerAppChecksumDifferentThanAppDownloaded(String packageName) {
+     * NOTE: This reads server-file's checksum value directly from MD5 file via HTTP. No MD5 download is necessary.
+     * NOTE: The server's record may hold several values (see ChecksumRecord): an APK fingerprint ("apkfp:..."), which
+     *  only requires reading the tail of the local file, plain (optionally algorithm-tagged) checksums, untagged being
+     *  plain MD5 as always, and a tree checksum ("tree:md5:<KiB>:..."), which we calculate the same way, in parallel.
+     *  We compare with the cheapest of those that we can calculate for the local file.
+     * NOTE: The server is the one in the provided config (this cycle's), so every package in a cycle asks the same one. */
+    private boolean isServerAppChecksumDifferentThanAppDownloaded(UpdaterConfig.Snapshot config, String packageName) {
         final String TAGG = "isServerAppChecksumDifferentThanAppDownloaded("+packageName+"): ";
         Log.v(TAG, TAGG+"Invoked.");
 
         boolean ret;
         String downloadedPackageApkFile;
-        String checksumServer, checksumLocal;
+        String checksumServer = null;
+        String checksumLocal = null;
 
         downloadedPackageApkFile = MainUpdaterService.localPath + "/" + packageName + ".apk";            //something like "/sdcard/com.messagenetsystems.evolution.apk"
 
-        checksumLocal = systemFunctions.calculateChecksumForLocalFile(downloadedPackageApkFile);
-        checksumServer = systemFunctions.readTextFromServerFile("http://"+MainUpdaterService.serverIP+"/"+MainUpdaterService.serverPath+"/"+packageName+".md5");
+        final String checksumRecordServerText = systemFunctions.readTextFromServerFile("http://"+config.serverIP+"/"+config.serverPath+"/"+packageName+".md5");
+        serverChecksumRecords.put(packageName, checksumRecordServerText);                               //(what a download started now will be verified against)
+        final ChecksumRecord checksumRecordServer = ChecksumRecord.parse(checksumRecordServerText);
+        final List<String> candidates = checksumRecordServer.choicesForChangeDetection(systemFunctions.getDigestSelector());
+        for (String candidate : candidates) {
+            checksumLocal = systemFunctions.calculateChecksumForLocalFileLike(downloadedPackageApkFile, candidate);
+            if (checksumLocal != null) {
+                checksumServer = candidate;
+                break;
+            }
+        }
+        if (checksumServer == null && !candidates.isEmpty()) {
+            checksumServer = candidates.get(0);     //couldn't calculate any of them locally (e.g. not downloaded yet), so it's different
+        }
 
         if (checksumServer == null
                 || String.valueOf(checksumServer).isEmpty()
@@ -287,51 +318,10 @@ public class CheckForUpdatesThread extends Thread {
         Intent intent = new Intent(context.getResources().getString(R.string.intentAction_triggerOmniUpdater_getUpdatesBackground));
         intent.putExtra("appPackageName", packageName);
         intent.putExtra("notifyWhenDone", "checkForUpdatesThread");  //inform the AsyncTask to notify us when it's done (so we know whether we can download any other files or not)
+        intent.putExtra(BackgroundGetUpdatesReceiver.EXTRA_CHECKSUM_RECORD, serverChecksumRecords.get(packageName));    //the record we just compared with, so the download is verified against that (not whatever the server has later)
         context.sendBroadcast(intent);
     }
 
-    private void populateTimeWindow_fromRuntimeFile() {
-        populateTimeWindow_fromRuntimeFile(systemFunctions);
-    }
-    private void populateTimeWindow_fromRuntimeFile(SystemFunctions systemFunctions) {
-        final String TAGG = "populateTimeWindow_fromRuntimeFile: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        timeWindowOpen_runtime = systemFunctions.getRuntimeFlag("UPDATE_DOWNLOAD_WINDOW_START");
-        timeWindowClose_runtime = systemFunctions.getRuntimeFlag("UPDATE_DOWNLOAD_WINDOW_END");
-    }
-
-    private void populateTimeWindow_fromStrings(Context context) {
-        final String TAGG = "populateTimeWindow_fromStrings: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        timeWindowOpen_strings = context.getResources().getString(R.string.timeWindow_download_opens);
-        timeWindowClose_strings = context.getResources().getString(R.string.timeWindow_download_closes);
-    }
-
-    private void populateTimeWindow_toUse() {
-        final String TAGG = "populateTimeWindow_toUse: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        if (timeWindowOpen_runtime != null) {
-            Log.v(TAG, "Value for runtime flag for window-start available.");
-            timeWindowOpen = timeWindowOpen_runtime;
-        } else {
-            Log.v(TAG, "Value for runtime flag for window-start unavailable. Using strings.xml value instead.");
-            timeWindowOpen = timeWindowOpen_strings;
-        }
-        Log.d(TAG, TAGG+"Setting value \""+timeWindowOpen+"\" for window-open.");
-
-        if (timeWindowClose_runtime != null) {
-            Log.v(TAG, "Value for runtime flag for window-end available.");
-            timeWindowClose = timeWindowClose_runtime;
-        } else {
-            Log.v(TAG, "Value for runtime flag for window-end unavailable. Using strings.xml value instead.");
-            timeWindowClose = timeWindowClose_strings;
-        }
-        Log.d(TAG, TAGG+"Setting value \""+timeWindowClose+"\" for window-close.");
-    }
-
     public static void setPackageDownloadStatus(String packageName, int status) {
         final String TAGG = "setPackageDownloadStatus(\""+packageName+"\", "+ String.valueOf(status)+"): ";
         Log.v(TAG, TAGG+"Invoked.");
@@ -22,13 +22,17 @@ import com.messagenetsystems.evolutionupdater.AsyncTaskCompleted;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+import com.messagenetsystems.evolutionupdater.utilities.DigestSidecar;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.Date;
 
 public class DownloadFileInBackground extends AsyncTask<String, Integer, String> {
@@ -206,8 +210,12 @@ public class DownloadFileInBackground extends AsyncTask<String, Integer, String>
             int fileLength = connection.getContentLength();
 
             // download the file
+            // (package files are hashed as they're written, so we have the checksum the moment the download finishes)
+            File outputFile = new File(localPath+"/"+filename);
+            MessageDigest messageDigest = (fileType == FILETYPE_APK ? MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5) : null);
+            DigestSidecar.delete(outputFile);                                                       //about to be overwritten, so any old sidecar no longer applies
             input = connection.getInputStream();
-            output = new FileOutputStream(localPath+"/"+filename);
+            output = new FileOutputStream(outputFile);
 
             byte data[] = new byte[4096];
             long total = 0;
@@ -228,6 +236,16 @@ public class DownloadFileInBackground extends AsyncTask<String, Integer, String>
                 }
 
                 output.write(data, 0, count);
+                if (messageDigest != null) {
+                    messageDigest.update(data, 0, count);
+                }
+            }
+
+            // file must be closed before we record its identity in the sidecar
+            output.close();
+            output = null;
+            if (messageDigest != null) {
+                DigestSidecar.write(outputFile, ChecksumEngine.ALGORITHM_MD5, ChecksumEngine.toHex(messageDigest.digest()));
             }
         } catch (Exception e) {
             Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
@@ -0,0 +1,401 @@
+package com.messagenetsystems.evolutionupdater.threads;
+
+/** DownloadVerificationThread
+ *
+ * Low-priority background stage that verifies downloaded package files as soon as they're downloaded, so that
+ * verification (i.e. hashing 30-60MB files) never has to happen inside the install time-window.
+ *
+ * When DownloadManager reports a package's download is complete, DownloadManagerCompletedReceiver hands it to us.
+ * We then (at background priority, one package at a time):
+ *  - Take the server's checksum record for the package (see DigestAlgorithm for its format), as it was when the download
+ *    started (see setExpectedChecksumRecord), so a file is never judged against a record the server published later.
+ *  - Calculate the downloaded file's checksum with the fastest strong algorithm that record offers (or its tree
+ *    checksum, if it has no plain one; see ChecksumRecord).
+ *  - Record the result in memory and on disk (a "<apk>.verified" file next to the APK, so it survives restarts).
+ *
+ * InstallUpdatesThread then only needs to ask isVerifiedAndReady(), which is just a lookup and a stat() to make
+ * sure the file hasn't changed since it was verified. If nothing is known about a package yet (e.g. it was downloaded
+ * before this stage existed), asking about it queues it for verification. A package that has been pending for longer
+ * than PENDING_MAX_MS (e.g. this thread died mid-way; MonitorThreadsThread restarts it) is treated as unknown again.
+ *
+ * Verification file format (one tab-delimited line):
+ *  status <TAB> taggedChecksum <TAB> size <TAB> lastModifiedMS <TAB> inode <TAB> verifiedAtMS
+ *
+ * Expected record file format ("<apk>.expected", so it survives restarts too): the server's record text, as-is.
+ */
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.messagenetsystems.evolutionupdater.MainUpdaterService;
+import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumCache;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumRecord;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class DownloadVerificationThread extends Thread {
+    private static final String TAG = DownloadVerificationThread.class.getSimpleName();
+
+    public static final int STATUS_VERIFICATION_UNKNOWN = 0;
+    public static final int STATUS_VERIFICATION_PENDING = 1;
+    public static final int STATUS_VERIFICATION_VERIFIED = 2;
+    public static final int STATUS_VERIFICATION_FAILED = 3;
+
+    private static final long PENDING_MAX_MS = 30 * 60 * 1000;                                    //longer than hashing the largest APK could ever take at background priority
+
+    private static final String VERIFICATION_FILE_EXTENSION = ".verified";
+    private static final String EXPECTED_RECORD_FILE_EXTENSION = ".expected";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    // Shared by everyone (results are about files, not about any one thread instance)
+    private static final LinkedBlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private static final ConcurrentHashMap<String, Result> results = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> expectedRecords = new ConcurrentHashMap<>();
+
+    private SystemFunctions systemFunctions;
+    private UpdaterConfig updaterConfig;
+
+    /** Constructor */
+    public DownloadVerificationThread(Context context) {
+        this.systemFunctions = new SystemFunctions(context);
+        this.updaterConfig = UpdaterConfig.getInstance(context);                                   //(server is read from the current config for each package)
+        setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /** Main runnable routine (executes once whenever the initialized thread is commanded to start running) */
+    @Override
+    public void run() {
+        final String TAGG = "run: ";
+        Log.d(TAG, TAGG+"Invoked.");
+
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+        String packageName;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                packageName = queue.take();
+            } catch (InterruptedException e) {
+                Log.d(TAG, TAGG+"Interrupted while waiting for work. Thread stopping.");
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            try {
+                verify(updaterConfig.getSnapshot(), packageName);
+            } catch (Exception e) {
+                Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+                results.remove(packageName);    //unknown, so it'll be tried again next time it's asked about
+            }
+        }
+
+        systemFunctions.cleanup();
+    }
+
+    /** Queue the specified package's downloaded file for verification (no-op if it's already queued). */
+    public static void requestVerification(String packageName) {
+        final String TAGG = "requestVerification(\""+packageName+"\"): ";
+
+        Result existing = results.get(packageName);
+        if (existing != null && existing.status == STATUS_VERIFICATION_PENDING && !existing.isStalePending()) {
+            Log.v(TAG, TAGG+"Already pending.");
+            return;
+        }
+        results.put(packageName, Result.pending());
+
+        queue.offer(packageName);
+        Log.d(TAG, TAGG+"Queued for verification.");
+    }
+
+    /** Forget any verification of the specified package's downloaded file, and the record it was to be verified
+     * against (e.g. because it's about to be replaced). */
+    public static void invalidate(String packageName) {
+        results.remove(packageName);
+        expectedRecords.remove(packageName);
+        File verificationFile = getVerificationFile(packageName);
+        if (verificationFile.exists() && !verificationFile.delete()) {
+            Log.w(TAG, "invalidate(\""+packageName+"\"): Could not delete verification file.");
+        }
+        File expectedRecordFile = getExpectedRecordFile(packageName);
+        if (expectedRecordFile.exists() && !expectedRecordFile.delete()) {
+            Log.w(TAG, "invalidate(\""+packageName+"\"): Could not delete expected record file.");
+        }
+    }
+
+    /** Remember the server's checksum record for the specified package as it was when its download started, so the
+     * downloaded file is verified against that (null if the requester didn't have one, in which case the server's
+     * current record is read at verification time). */
+    public static void setExpectedChecksumRecord(String packageName, String record) {
+        final String TAGG = "setExpectedChecksumRecord(\""+packageName+"\"): ";
+
+        if (record == null) {
+            Log.d(TAG, TAGG+"No record provided, will read the server's at verification time.");
+            return;
+        }
+
+        final String normalizedRecord = record.trim().replaceAll("\\s+", " ");                          //(one line, so it can be read back as one)
+        expectedRecords.put(packageName, normalizedRecord);
+        writeFile(getExpectedRecordFile(packageName), normalizedRecord + "\n");
+    }
+
+    /** Returns the verification status of the specified package's downloaded file (one of the STATUS_VERIFICATION_* values).
+     * Only ever a lookup and a stat(), never any hashing. */
+    public static int getVerificationStatus(String packageName) {
+        final File apkFile = getApkFile(packageName);
+
+        Result result = results.get(packageName);
+        if (result == null) {
+            result = load(packageName);
+            if (result != null) {
+                results.putIfAbsent(packageName, result);
+            }
+        }
+        if (result == null) {
+            return STATUS_VERIFICATION_UNKNOWN;
+        }
+        if (result.status == STATUS_VERIFICATION_PENDING) {
+            if (result.isStalePending()) {
+                Log.w(TAG, "getVerificationStatus(\""+packageName+"\"): Pending for over "+(PENDING_MAX_MS / 1000)+"s, treating as unknown.");
+                results.remove(packageName, result);
+                return STATUS_VERIFICATION_UNKNOWN;
+            }
+            return STATUS_VERIFICATION_PENDING;
+        }
+
+        // Result only applies to the exact file that was verified
+        if (!result.identity.equals(ChecksumCache.FileIdentity.of(apkFile))) {
+            Log.d(TAG, "getVerificationStatus(\""+packageName+"\"): File has changed since it was verified.");
+            results.remove(packageName, result);
+            return STATUS_VERIFICATION_UNKNOWN;
+        }
+
+        return result.status;
+    }
+
+    /** Returns true if the specified package's downloaded file has been verified, and is unchanged since. */
+    public static boolean isVerifiedAndReady(String packageName) {
+        return getVerificationStatus(packageName) == STATUS_VERIFICATION_VERIFIED;
+    }
+
+    /** Verify the specified package's downloaded file against the server's checksum, and record the result.
+     * The provided config is only needed if no record was captured when the download started (to read the server's). */
+    private void verify(UpdaterConfig.Snapshot config, String packageName) {
+        final String TAGG = "verify(\""+packageName+"\"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        final long startedAt = System.nanoTime();
+        final File apkFile = getApkFile(packageName);
+
+        // Capture identity first, so we know exactly which file content our result is about
+        final ChecksumCache.FileIdentity identity = ChecksumCache.FileIdentity.of(apkFile);
+        if (identity == null) {
+            Log.i(TAG, TAGG+"No downloaded file to verify.");
+            results.remove(packageName);
+            return;
+        }
+
+        // Get what it should be (the server's record as it was when the download started, if we have that)
+        String record = getExpectedChecksumRecord(packageName);
+        if (record == null) {
+            Log.i(TAG, TAGG+"No record was captured when the download started, reading the server's current one.");
+            record = systemFunctions.readTextFromServerFile("http://"+config.serverIP+"/"+config.serverPath+"/"+packageName+".md5");
+        }
+        final ChecksumRecord expectedChecksums = ChecksumRecord.parse(record);
+        if (expectedChecksums.isEmpty() && expectedChecksums.unrecognized.isEmpty()) {
+            Log.w(TAG, TAGG+"Server checksum could not be determined (\""+record+"\"), will try again later.");
+            results.remove(packageName);
+            return;
+        }
+        final String expectedChecksum = expectedChecksums.chooseForIntegrity(systemFunctions.getDigestSelector());
+
+        // Calculate what it is (in the same form), unless the server gave us nothing that can verify integrity, in which
+        // case there's no point trying again until the file or record changes
+        final String actualChecksum;
+        if (expectedChecksum == null) {
+            Log.e(TAG, TAGG+"Server checksum record (\""+record+"\") has nothing we can verify integrity with, so this file can't be verified.");
+            actualChecksum = null;
+        } else {
+            actualChecksum = systemFunctions.calculateChecksumForLocalFileLike(apkFile.getPath(), expectedChecksum);
+        }
+
+        final int status = (expectedChecksum != null && expectedChecksum.equals(actualChecksum) ? STATUS_VERIFICATION_VERIFIED : STATUS_VERIFICATION_FAILED);
+        final Result result = new Result(status, String.valueOf(actualChecksum), identity);
+
+        // Don't record anything if the file changed while we were at it (we don't know which content we hashed)
+        if (!identity.equals(ChecksumCache.FileIdentity.of(apkFile))) {
+            Log.i(TAG, TAGG+"File changed while being verified, will try again later.");
+            results.remove(packageName);
+            return;
+        }
+
+        results.put(packageName, result);
+        save(packageName, result);
+
+        final long elapsedMS = (System.nanoTime() - startedAt) / 1000000;
+        if (status == STATUS_VERIFICATION_VERIFIED) {
+            Log.i(TAG, TAGG+"Verified and ready ("+result.taggedChecksum+", "+elapsedMS+"ms).");
+            systemFunctions.updateNotificationWithText("Verified \""+packageName.replace("com.messagenetsystems.", "")+"\" APK.");
+        } else {
+            Log.w(TAG, TAGG+"Verification FAILED (expected "+expectedChecksum+", got "+result.taggedChecksum+", "+elapsedMS+"ms).");
+        }
+    }
+
+    private static File getApkFile(String packageName) {
+        return new File(MainUpdaterService.localPath + "/" + packageName + ".apk");
+    }
+
+    private static File getVerificationFile(String packageName) {
+        return new File(MainUpdaterService.localPath + "/" + packageName + ".apk" + VERIFICATION_FILE_EXTENSION);
+    }
+
+    private static File getExpectedRecordFile(String packageName) {
+        return new File(MainUpdaterService.localPath + "/" + packageName + ".apk" + EXPECTED_RECORD_FILE_EXTENSION);
+    }
+
+    /** Returns the record captured when the specified package's download started (from memory, else from disk), or null if none was. */
+    private static String getExpectedChecksumRecord(String packageName) {
+        String ret = expectedRecords.get(packageName);
+        if (ret == null) {
+            ret = readFirstLine(getExpectedRecordFile(packageName));
+            if (ret != null) {
+                expectedRecords.putIfAbsent(packageName, ret);
+            }
+        }
+        return ret;
+    }
+
+    /** Save the result to disk, so it survives a restart. */
+    private static void save(String packageName, Result result) {
+        writeFile(getVerificationFile(packageName), result.status + FIELD_SEPARATOR
+                + result.taggedChecksum + FIELD_SEPARATOR
+                + result.identity.size + FIELD_SEPARATOR
+                + result.identity.lastModified + FIELD_SEPARATOR
+                + result.identity.inode + FIELD_SEPARATOR
+                + System.currentTimeMillis() + "\n");
+    }
+
+    /** Write the provided text to the file (via a temp file, so a reader never sees it half-written). */
+    private static void writeFile(File file, String text) {
+        final String TAGG = "writeFile(\""+file.getName()+"\"): ";
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileWriter fileWriter = null;
+
+        try {
+            fileWriter = new FileWriter(tempFile);
+            fileWriter.write(text);
+            fileWriter.close();
+            fileWriter = null;
+
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, TAGG+"Could not rename temp file.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Exception caught writing file: "+e.getMessage());
+        } finally {
+            if (fileWriter != null) {
+                try {
+                    fileWriter.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Returns the file's first line, or null if it doesn't exist or can't be read. */
+    private static String readFirstLine(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        BufferedReader bufferedReader = null;
+        try {
+            bufferedReader = new BufferedReader(new FileReader(file));
+            return bufferedReader.readLine();
+        } catch (IOException e) {
+            Log.w(TAG, "readFirstLine(\""+file.getName()+"\"): Exception caught: "+e.getMessage());
+            return null;
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    //(nothing to do)
+                }
+            }
+        }
+    }
+
+    /** Load a saved result from disk, or return null if there isn't a usable one. */
+    private static Result load(String packageName) {
+        final String TAGG = "load(\""+packageName+"\"): ";
+
+        File verificationFile = getVerificationFile(packageName);
+        if (!verificationFile.exists()) {
+            return null;
+        }
+
+        Result ret = null;
+        BufferedReader bufferedReader = null;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(verificationFile));
+            String line = bufferedReader.readLine();
+            String[] fields = (line == null ? new String[0] : line.split(FIELD_SEPARATOR));
+            if (fields.length == 6) {
+                ret = new Result(Integer.parseInt(fields[0]), fields[1], new ChecksumCache.FileIdentity(Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                if (ret.status != STATUS_VERIFICATION_VERIFIED && ret.status != STATUS_VERIFICATION_FAILED) {
+                    ret = null;
+                }
+            } else {
+                Log.w(TAG, TAGG+"Malformed verification file, ignoring it.");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, TAGG+"Exception caught reading verification file: "+e.getMessage());
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing verification file: "+e.getMessage());
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** Outcome of verifying a downloaded file (immutable). */
+    private static class Result {
+        final int status;
+        final String taggedChecksum;
+        final ChecksumCache.FileIdentity identity;
+        final long createdAtElapsedMS;
+
+        Result(int status, String taggedChecksum, ChecksumCache.FileIdentity identity) {
+            this.status = status;
+            this.taggedChecksum = taggedChecksum;
+            this.identity = identity;
+            this.createdAtElapsedMS = SystemClock.elapsedRealtime();
+        }
+
+        static Result pending() {
+            return new Result(STATUS_VERIFICATION_PENDING, null, null);
+        }
+
+        /** Returns true if this has been pending for too long to still be waiting on (it was probably lost). */
+        boolean isStalePending() {
+            return status == STATUS_VERIFICATION_PENDING && SystemClock.elapsedRealtime() - createdAtElapsedMS > PENDING_MAX_MS;
+        }
+    }
+}
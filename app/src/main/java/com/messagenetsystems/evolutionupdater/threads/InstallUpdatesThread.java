@@ -5,7 +5,7 @@ package com.messagenetsystems.evolutionupdater.threads;
  * Thread for monitoring downloaded updates status and installing as necessary.
  *
  * It should run fairly frequently (every minute for ideal time resolution), and keep in mind that
- * it will obey the time window defined in strings.xml (only updating within that window).
+ * it will obey the install time window in the current UpdaterConfig (only updating within that window).
  *
  * DEV-NOTES:
  *  To add more packages: Initialize package names, add to allDownloadedUpdatesMatchInstalledPackages
@@ -21,11 +21,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.messagenetsystems.evolutionupdater.InstalledPackageIndex;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.TimeWindow;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
+import com.messagenetsystems.evolutionupdater.WorkScheduler;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 
 public class InstallUpdatesThread extends Thread {
@@ -35,10 +44,9 @@ public class InstallUpdatesThread extends Thread {
     private SystemFunctions systemFunctions;
     private int initialWaitPeriodMS;
     private int workCycleRestPeriodMS;
-    private String timeWindowOpen_strings, timeWindowClose_strings;
-    private String timeWindowOpen_runtime = null;
-    private String timeWindowClose_runtime = null;
-    private String timeWindowOpen, timeWindowClose;
+    private UpdaterConfig updaterConfig;
+    private WorkScheduler workScheduler;
+    private final List<String> systemAppUpdatesThisCycle = new ArrayList<>();                       //verified system-app updates, installed together at the end of the cycle
     public static volatile String packageIsUpdating;
 
     /** Constructor */
@@ -49,14 +57,16 @@ public class InstallUpdatesThread extends Thread {
 
         // Update-process stuff
         packageIsUpdating = null;
-        populateTimeWindow_fromRuntimeFile(systemFunctions);
-        populateTimeWindow_fromStrings(context);
-        populateTimeWindow_toUse();
+        updaterConfig = UpdaterConfig.getInstance(context);                                         //(time window, etc. are read from the current config each cycle)
+
+        // Between work cycles, we park until there could be work for us (woken early on config changes or server requests)
+        workScheduler = new WorkScheduler(MonitorThreadsThread.THREADNAME_installUpdatesThread);
+        MainUpdaterService.workScheduler_installUpdatesThread = workScheduler;
 
         // Initialize default rest period values from strings
         try {
             initialWaitPeriodMS = context.getResources().getInteger(R.integer.threadInitialWait_checkForUpdateInstall_seconds) * 1000;
-            workCycleRestPeriodMS = context.getResources().getInteger(R.integer.threadInterval_checkForUpdateInstall_seconds) * 1000;
+            workCycleRestPeriodMS = updaterConfig.getSnapshot().installIntervalMS;
         } catch (Exception e) {
             Log.w(TAG, "Exception caught trying to get thread configuration parameters from strings.xml. Falling back to hard-coded values.\n"+e.getMessage());
             initialWaitPeriodMS = 35 * 1000;        //NOTE: we start this thread 30 seconds after the CheckForUpdatesThread starts, so they are more likely to run in a staggered manner
@@ -74,8 +84,6 @@ public class InstallUpdatesThread extends Thread {
         long pid = Thread.currentThread().getId();
         Log.i(TAG, TAGG+"Thread now running with process ID = "+ pid);
 
-        String currentTime;
-
         String thisPackageName;
         int thisPackageDownloadStatus;
 
@@ -86,7 +94,8 @@ public class InstallUpdatesThread extends Thread {
             if (cycleNumber == 0) {
                 try {
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEPING);
-                    java.lang.Thread.sleep(initialWaitPeriodMS);
+                    MainUpdaterService.threadNextRunDate_installUpdatesThread = new Date(System.currentTimeMillis() + initialWaitPeriodMS);
+                    workScheduler.park(initialWaitPeriodMS);
                 } catch (InterruptedException e) {
                     //Log.e(TAG, TAGG + "Exception caught trying to sleep for first-run (" + workCycleRestPeriodMS + "ms). Broadcasting this error status and stopping.\n" + e.getMessage());
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEP_ERROR);
@@ -94,12 +103,21 @@ public class InstallUpdatesThread extends Thread {
                     Thread.currentThread().interrupt();
                 }
             } else {
-                // Take a rest before next iteration (to make sure this thread doesn't run full tilt)...
+                // Park until there could be work for us (our window opens, or our next interval if it's open), or until we're woken (config change, server request)...
+                final UpdaterConfig.Snapshot nextConfig = updaterConfig.getSnapshot();
+                workCycleRestPeriodMS = (int) WorkScheduler.getMillisUntilWorkPossible(nextConfig.installWindow, nextConfig.installDisallowed, nextConfig.installIntervalMS);
+                MainUpdaterService.threadNextRunDate_installUpdatesThread = new Date(System.currentTimeMillis() + workCycleRestPeriodMS);
+                if (workCycleRestPeriodMS > nextConfig.installIntervalMS) {
+                    Log.d(TAG, TAGG+"Nothing to do until "+MainUpdaterService.threadNextRunDate_installUpdatesThread+" (window "+nextConfig.installWindow+(nextConfig.installDisallowed ? ", disallowed" : "")+"), parking.");
+                }
                 try {
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEPING);
-                    Thread.sleep(workCycleRestPeriodMS);
+                    final String wokenBy = workScheduler.park(workCycleRestPeriodMS);
+                    if (wokenBy != null) {
+                        Log.d(TAG, TAGG+"Woken early ("+wokenBy+").");
+                    }
                 } catch (InterruptedException e) {
-                    Log.e(TAG, TAGG+"Exception caught trying to sleep for interval ("+workCycleRestPeriodMS+"ms). Thread stopping.\n" + e.getMessage());
+                    Log.e(TAG, TAGG+"Exception caught trying to park for interval ("+workCycleRestPeriodMS+"ms). Thread stopping.\n" + e.getMessage());
                     //updateCurrentStatus(Thread.THREAD_STATUS_SLEEP_ERROR);
                     Thread.currentThread().interrupt();
                 }
@@ -116,22 +134,18 @@ public class InstallUpdatesThread extends Thread {
             Log.v(TAG, TAGG+"=======================================(start)");
             Log.v(TAG, TAGG+"BEGINNING WORK CYCLE #"+cycleNumber+"...");
 
-            // Get current time
-            currentTime = systemFunctions.getCurrentTime24();
-
-            // Read runtime values (in case they've updated since last iteration)
-            if (systemFunctions.getRuntimeFlag_asBoolean("UPDATE_INSTALL_DISALLOW")) {
-                Log.i(TAG, TAGG+"Runtime flag is currently set to disallow update installation, so nothing to do this iteration. Reset flag to allow update installations again.");
-                systemFunctions.updateNotificationWithText("Runtime flag is disallowing update installations.");
+            // Take the current config (picks up runtime flag or server changes since last iteration)
+            final UpdaterConfig.Snapshot config = updaterConfig.getSnapshot();
+            if (config.installDisallowed) {
+                Log.i(TAG, TAGG+"Config ("+UpdaterConfig.layerName(config.getSource(UpdaterConfig.KEY_INSTALL_DISALLOW))+") is currently set to disallow update installation, so nothing to do this iteration. Reset flag to allow update installations again.");
+                systemFunctions.updateNotificationWithText("Config is disallowing update installations.");
                 continue;
             }
-            populateTimeWindow_fromRuntimeFile();
-            populateTimeWindow_toUse();
 
             // Check whether we're within our time window for doing updates.
             // If so, then see if we're eligible to actually install updates (all updates are downloaded)
-            if (systemFunctions.timeIsWithinTimeWindow(currentTime, timeWindowOpen, timeWindowClose)) {
-                Log.d(TAG, TAGG+"Current time ("+currentTime+") is within our time window ("+timeWindowOpen+"-"+timeWindowClose+").");
+            if (config.installWindow.isOpen()) {
+                Log.d(TAG, TAGG+"Current time ("+TimeWindow.formatMinuteOfDay(TimeWindow.currentMinuteOfDay())+") is within our time window ("+config.installWindow+").");
 
                 // If package is not currently trying to download (hopefully already downloaded and ready to test)...
                 thisPackageName = MainUpdaterService.packageName_evolution;
@@ -140,7 +154,7 @@ public class InstallUpdatesThread extends Thread {
                     // If downloaded package is different than what's actually installed, update installed package!
                     if (!downloadedPackageMatchesInstalledPackage(thisPackageName)) {
                         Log.i(TAG, TAGG+"Downloaded package ("+thisPackageName+") is different than that installed. Update is warranted!");
-                        initiateUpdate(thisPackageName);
+                        initiateUpdateIfVerified(thisPackageName);
                     }
                 }
 
@@ -151,7 +165,7 @@ public class InstallUpdatesThread extends Thread {
                     // If downloaded package is different than what's actually installed, update installed package!
                     if (!downloadedPackageMatchesInstalledPackage(thisPackageName)) {
                         Log.i(TAG, TAGG+"Downloaded package ("+thisPackageName+") is different than that installed. Update is warranted!");
-                        initiateUpdate(thisPackageName);
+                        initiateUpdateIfVerified(thisPackageName);
                     }
                 }
 
@@ -162,7 +176,7 @@ public class InstallUpdatesThread extends Thread {
                     // If downloaded package is different than what's actually installed, update installed package!
                     if (!downloadedPackageMatchesInstalledPackage(thisPackageName)) {
                         Log.i(TAG, TAGG+"Downloaded package ("+thisPackageName+") is different than that installed. Update is warranted!");
-                        initiateUpdate(thisPackageName);
+                        initiateUpdateIfVerified(thisPackageName);
                     }
                 }
 
@@ -173,12 +187,15 @@ public class InstallUpdatesThread extends Thread {
                     // If downloaded package is different than what's actually installed, update installed package!
                     if (!downloadedPackageMatchesInstalledPackage(thisPackageName)) {
                         Log.i(TAG, TAGG+"Downloaded package ("+thisPackageName+") is different than that installed. Update is warranted!");
-                        initiateUpdate(thisPackageName);
+                        initiateUpdateIfVerified(thisPackageName);
                     }
                 }
 
+                // Install any system-app updates found above, all under one remount (and one reboot)
+                installSystemAppUpdates();
+
             } else {
-                Log.d(TAG, TAGG+"Current time ("+currentTime+") is outside of our time window ("+timeWindowOpen+"-"+timeWindowClose+"). Nothing to do here.");
+                Log.d(TAG, TAGG+"Current time ("+TimeWindow.formatMinuteOfDay(TimeWindow.currentMinuteOfDay())+") is outside of our time window ("+config.installWindow+"). Nothing to do here.");
             }
 
             /* END MAIN THREAD-WORK */
@@ -200,10 +217,26 @@ public class InstallUpdatesThread extends Thread {
         boolean ret = false;
 
         try {
-            String checksumDownloaded = systemFunctions.calculateChecksumForLocalFile(MainUpdaterService.localPath+"/"+packageName+".apk");
-            String checksumInstalled = systemFunctions.calculateChecksumForLocalFile(systemFunctions.getPathForInstalledAPK(packageName));
-            if (String.valueOf(checksumDownloaded).equals(String.valueOf(checksumInstalled))) {
-                ret = true;
+            // Index compares APK fingerprints (only reads their tails), and keeps the installed one until the package changes
+            // (MainUpdaterService builds it before starting any threads)
+            final InstalledPackageIndex installedPackageIndex = MainUpdaterService.installedPackageIndex;
+            String downloadedPackageApkFile = MainUpdaterService.localPath+"/"+packageName+".apk";
+            if (installedPackageIndex.isInstalled(packageName)) {
+                switch (installedPackageIndex.compareInstalledPackageToFile(packageName, downloadedPackageApkFile)) {
+                    case InstalledPackageIndex.COMPARISON_SAME:
+                        ret = true;
+                        break;
+                    case InstalledPackageIndex.COMPARISON_DIFFERENT:
+                        ret = false;
+                        break;
+                    default:
+                        //can't tell (e.g. an APK couldn't be read), so leave it alone rather than update on a guess (tried again next cycle)
+                        Log.w(TAG, TAGG+"Could not determine whether the downloaded package matches what's installed, not updating it this cycle.");
+                        ret = true;
+                        break;
+                }
+            } else {
+                ret = !new File(downloadedPackageApkFile).exists();     //nothing installed and nothing downloaded is nothing to do
             }
         } catch (Exception e) {
             Log.w(TAG, TAGG+"Exception caught: "+e.getMessage());
@@ -213,6 +246,32 @@ public class InstallUpdatesThread extends Thread {
         return ret;
     }
 
+    /** Only start updating if the downloaded package has already been verified (see DownloadVerificationThread).
+     * We never hash anything here, so the install window is only spent installing. */
+    private void initiateUpdateIfVerified(String packageName) {
+        final String TAGG = "initiateUpdateIfVerified("+packageName+"): ";
+
+        switch (DownloadVerificationThread.getVerificationStatus(packageName)) {
+            case DownloadVerificationThread.STATUS_VERIFICATION_VERIFIED:
+                if (SystemFunctions.isSystemAppPackage(packageName)) {
+                    systemAppUpdatesThisCycle.add(packageName);     //(see installSystemAppUpdates)
+                } else {
+                    initiateUpdate(packageName);
+                }
+                break;
+            case DownloadVerificationThread.STATUS_VERIFICATION_PENDING:
+                Log.i(TAG, TAGG+"Downloaded package is still being verified. Will check again next cycle.");
+                break;
+            case DownloadVerificationThread.STATUS_VERIFICATION_FAILED:
+                Log.w(TAG, TAGG+"Downloaded package failed verification, not installing it (it should be downloaded again).");
+                break;
+            default:
+                Log.i(TAG, TAGG+"Downloaded package has not been verified yet. Requesting verification, will check again next cycle.");
+                DownloadVerificationThread.requestVerification(packageName);
+                break;
+        }
+    }
+
     private void initiateUpdate(String packageName) {
         final String TAGG = "initiateUpdate("+packageName+"): ";
         Log.v(TAG, TAGG+"Invoked.");
@@ -230,55 +289,76 @@ public class InstallUpdatesThread extends Thread {
         broadcastIntentToStartUpdateInstallation(packageName);
     }
 
-    private void broadcastIntentToStartUpdateInstallation(String packageName) {
-        final String TAGG = "broadcastIntentToStartUpdateInstallation("+packageName+"): ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        Intent intent = new Intent(context.getResources().getString(R.string.intentAction_triggerOmniUpdater_applyUpdates));
-        intent.putExtra("appPackageName", packageName);
-        intent.putExtra("notifyWhenDone", "installUpdatesThread");  //inform the AsyncTask to notify us when it's done (so we know whether we can download any other files or not)
-        context.sendBroadcast(intent);
-    }
-
-    private void populateTimeWindow_fromRuntimeFile() {
-        populateTimeWindow_fromRuntimeFile(systemFunctions);
-    }
-    private void populateTimeWindow_fromRuntimeFile(SystemFunctions systemFunctions) {
-        final String TAGG = "populateTimeWindow_fromRuntimeFile: ";
-        Log.v(TAG, TAGG+"Invoked.");
-
-        timeWindowOpen_runtime = systemFunctions.getRuntimeFlag("UPDATE_INSTALL_WINDOW_START");
-        timeWindowClose_runtime = systemFunctions.getRuntimeFlag("UPDATE_INSTALL_WINDOW_END");
+    /** Install the system-app updates found this cycle (see installSystemAppUpdates(Context, SystemFunctions, List)). */
+    private void installSystemAppUpdates() {
+        if (systemAppUpdatesThisCycle.isEmpty()) {
+            return;
+        }
+        if (!installSystemAppUpdates(context, systemFunctions, systemAppUpdatesThisCycle)) {
+            Log.i(TAG, "installSystemAppUpdates: Will install system-app updates in a later cycle.");
+        }
+        systemAppUpdatesThisCycle.clear();
     }
 
-    private void populateTimeWindow_fromStrings(Context context) {
-        final String TAGG = "populateTimeWindow_fromStrings: ";
-        Log.v(TAG, TAGG+"Invoked.");
+    /** Install the specified system apps' (already downloaded and verified) updates together: one remount of the system
+     * partition for all their copies (see SystemFunctions.installPackages_systemApp), then one reboot for them all to
+     * finish installing. This is the only way system-app updates are installed (both by this thread, and when the server
+     * asks for one; see ApplyUpdatesReceiver).
+     * Returns false without doing anything while another update is ongoing, since the reboot would cut it short. */
+    public static synchronized boolean installSystemAppUpdates(Context context, SystemFunctions systemFunctions, List<String> packageNames) {
+        final String TAG = InstallUpdatesThread.class.getSimpleName();     //(static, so not the running thread's)
+        final String TAGG = "installSystemAppUpdates("+packageNames+"): ";
 
-        timeWindowOpen_strings = context.getResources().getString(R.string.timeWindow_install_opens);;
-        timeWindowClose_strings = context.getResources().getString(R.string.timeWindow_install_closes);
-    }
+        if (packageIsUpdating != null) {
+            Log.i(TAG, TAGG+"Flag packageIsUpdating is set (\""+String.valueOf(packageIsUpdating)+"\"). Not installing now, so the reboot doesn't interrupt it.");
+            return false;
+        }
 
-    private void populateTimeWindow_toUse() {
-        final String TAGG = "populateTimeWindow_toUse: ";
-        Log.v(TAG, TAGG+"Invoked.");
+        // Set flags
+        // DEV-NOTE: you must remember to reset these if update fails or completes!
+        packageIsUpdating = packageNames.toString();
+        systemFunctions.updateNotificationWithText(context.getResources().getString(R.string.notification_text_updateInstallationUnderway) + " (" + packageNames.size() + " system apps)");
 
-        if (timeWindowOpen_runtime != null) {
-            Log.v(TAG, "Value for runtime flag for window-start available.");
-            timeWindowOpen = timeWindowOpen_runtime;
-        } else {
-            Log.v(TAG, "Value for runtime flag for window-start unavailable. Using strings.xml value instead.");
-            timeWindowOpen = timeWindowOpen_strings;
+        final Map<String, String> packageFiles = new LinkedHashMap<>();                             //package name -> full path of its downloaded APK
+        for (String packageName : packageNames) {
+            packageFiles.put(packageName, MainUpdaterService.localPath+"/"+packageName+".apk");
+        }
+        final Map<String, String> results = systemFunctions.installPackages_systemApp(packageFiles);
+
+        // Record each package's result, and reboot if any can now finish installing
+        boolean anySucceeded = false;
+        for (String packageName : packageNames) {
+            final String result = String.valueOf(results.get(packageName));
+            if (result.contains(SystemFunctions.INSTALL_PACKAGE_RESULT_SUCCESS)) {
+                anySucceeded = true;
+                systemFunctions.saveInstallationAttemptResultInfo(packageName, systemFunctions.UPDATE_INSTALLATION_RESULT_SUCCESS, result);
+            } else {
+                Log.w(TAG, TAGG+"Could not install \""+packageName+"\" ("+result+"), will try again next cycle.");
+                systemFunctions.saveInstallationAttemptResultInfo(packageName, systemFunctions.UPDATE_INSTALLATION_RESULT_FAILURE, result);
+            }
         }
-        Log.d(TAG, TAGG+"Setting value \""+timeWindowOpen+"\" for window-open.");
 
-        if (timeWindowClose_runtime != null) {
-            Log.v(TAG, "Value for runtime flag for window-end available.");
-            timeWindowClose = timeWindowClose_runtime;
+        if (anySucceeded) {
+            Log.i(TAG, TAGG+"Updates succeeded, rebooting device so they can finish installing.");
+            systemFunctions.updateNotificationWithText(context.getResources().getString(R.string.notification_text_runningPID) + android.os.Process.myPid());
+            systemFunctions.doReboot();
         } else {
-            Log.v(TAG, "Value for runtime flag for window-end unavailable. Using strings.xml value instead.");
-            timeWindowClose = timeWindowClose_strings;
+            systemFunctions.updateNotificationWithText(context.getResources().getString(R.string.notification_text_updateInstallationFailed) + " (system apps)");
         }
-        Log.d(TAG, TAGG+"Setting value \""+timeWindowClose+"\" for window-close.");
+
+        // Reset the flag so other updates can happen
+        packageIsUpdating = null;
+        return true;
     }
+
+    private void broadcastIntentToStartUpdateInstallation(String packageName) {
+        final String TAGG = "broadcastIntentToStartUpdateInstallation("+packageName+"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        Intent intent = new Intent(context.getResources().getString(R.string.intentAction_triggerOmniUpdater_applyUpdates));
+        intent.putExtra("appPackageName", packageName);
+        intent.putExtra("notifyWhenDone", "installUpdatesThread");  //inform the AsyncTask to notify us when it's done (so we know whether we can download any other files or not)
+        context.sendBroadcast(intent);
+    }
+
 }
@@ -17,6 +17,9 @@ import android.util.Log;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.TimeWindow;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
+import com.messagenetsystems.evolutionupdater.WorkScheduler;
 
 import java.util.Date;
 
@@ -30,9 +33,9 @@ public class MonitorThreadsThread extends Thread {
     // Names of the thread instances used in MainUpdaterService...
     public static final String THREADNAME_checkForUpdatesThread = "checkForUpdatesThread";
     public static final String THREADNAME_installUpdatesThread = "installUpdatesThread";
+    public static final String THREADNAME_downloadVerificationThread = "downloadVerificationThread";
 
-    private int workCycleRestPeriodMS_CheckForUpdatesThread;
-    private int workCycleRestPeriodMS_InstallUpdatesThread;
+    private UpdaterConfig updaterConfig;                                                            //(for the monitored threads' current intervals)
 
     private String key_command;
     private String cmd_startThread;
@@ -59,21 +62,8 @@ public class MonitorThreadsThread extends Thread {
             workCycleRestPeriodMS = 60 * 1000;
         }
 
-        // Initialize default rest period values from strings (for CheckForUpdatesThread)
-        try {
-            workCycleRestPeriodMS_CheckForUpdatesThread = context.getResources().getInteger(R.integer.threadInterval_checkForUpdateDownload_seconds) * 1000;
-        } catch (Exception e) {
-            Log.w(TAG, "Exception caught trying to get CheckForUpdatesThread configuration parameters from strings.xml. Falling back to hard-coded values.\n"+e.getMessage());
-            workCycleRestPeriodMS_CheckForUpdatesThread = 60 * 1000;
-        }
-
-        // Initialize default rest period values from strings (for InstallUpdatesThread)
-        try {
-            workCycleRestPeriodMS_InstallUpdatesThread = context.getResources().getInteger(R.integer.threadInterval_checkForUpdateInstall_seconds) * 1000;
-        } catch (Exception e) {
-            Log.w(TAG, "Exception caught trying to get InstallUpdatesThread configuration parameters from strings.xml. Falling back to hard-coded values.\n"+e.getMessage());
-            workCycleRestPeriodMS_InstallUpdatesThread = 60 * 1000;
-        }
+        // The monitored threads' intervals are read from the current config each cycle (they may change at runtime)
+        updaterConfig = UpdaterConfig.getInstance(context);
     }
 
     /** Main runnable routine (executes once whenever the initialized thread is commanded to start running) */
@@ -105,11 +95,12 @@ public class MonitorThreadsThread extends Thread {
                     Thread.currentThread().interrupt();
                 }
             } else {
-                // Take a rest before continuing with this iteration (to make sure this thread doesn't run full tilt)...
+                // Take a rest before continuing with this iteration (until the monitored threads could next be late, since they park between windows)...
+                final long restMS = getMsUntilNextCheck(updaterConfig.getSnapshot());
                 try {
-                    Thread.sleep(workCycleRestPeriodMS);
+                    Thread.sleep(restMS);
                 } catch (InterruptedException e) {
-                    Log.e(TAG, TAGG + "Exception caught trying to sleep for interval (" + workCycleRestPeriodMS + "ms). Thread stopping.\n" + e.getMessage());
+                    Log.e(TAG, TAGG + "Exception caught trying to sleep for interval (" + restMS + "ms). Thread stopping.\n" + e.getMessage());
                     Thread.currentThread().interrupt();
                 }
             }
@@ -122,6 +113,8 @@ public class MonitorThreadsThread extends Thread {
             Log.v(TAG, TAGG + "=======================================(start)");
             Log.v(TAG, TAGG + "BEGINNING WORK CYCLE #" + cycleNumber + "...");
 
+            final UpdaterConfig.Snapshot config = updaterConfig.getSnapshot();
+
             // Check CheckForUpdatesThread...
             Log.i(TAG, TAGG+"Checking thread: MainUpdaterService."+THREADNAME_checkForUpdatesThread+"...");
             if (MainUpdaterService.threadLastRunDate_checkForUpdatesThread == null) {
@@ -134,10 +127,10 @@ public class MonitorThreadsThread extends Thread {
                     threadLastRunDateIsNullCount_checkForUpdatesThread = 0;     //reset counter
                 }
             } else {
-                //there's a last-run Date, so investigate it for timeliness (defined as no more than twice its run-interval)
+                //there's a last-run Date, so investigate it for timeliness (defined as no more than its run-interval past when it expected to run next)
                 threadLastRunSecondsAgoCurrent_checkForUpdatesThread = getMsSinceLastRunDateUpdate(THREADNAME_checkForUpdatesThread);
-                if (threadLastRunSecondsAgoCurrent_checkForUpdatesThread > workCycleRestPeriodMS_CheckForUpdatesThread * 2) {
-                    Log.w(TAG, TAGG+" The "+THREADNAME_checkForUpdatesThread+" has not run in "+threadLastRunSecondsAgoCurrent_checkForUpdatesThread+" milliseconds.");
+                if (isThreadOverdue(THREADNAME_checkForUpdatesThread, config.downloadIntervalMS)) {
+                    Log.w(TAG, TAGG+" The "+THREADNAME_checkForUpdatesThread+" has not run in "+threadLastRunSecondsAgoCurrent_checkForUpdatesThread+" milliseconds (expected at "+MainUpdaterService.threadNextRunDate_checkForUpdatesThread+").");
                     requestThreadStart(THREADNAME_checkForUpdatesThread);
                 } else {
                     Log.i(TAG, TAGG+" The "+THREADNAME_checkForUpdatesThread+" seems healthy (last ran "+threadLastRunSecondsAgoCurrent_checkForUpdatesThread/1000+"s ago).");
@@ -156,16 +149,26 @@ public class MonitorThreadsThread extends Thread {
                     threadLastRunDateIsNullCount_installUpdatesThread = 0;     //reset counter
                 }
             } else {
-                //there's a last-run Date, so investigate it for timeliness (defined as no more than twice its run-interval)
+                //there's a last-run Date, so investigate it for timeliness (defined as no more than its run-interval past when it expected to run next)
                 threadLastRunSecondsAgoCurrent_installUpdatesThread = getMsSinceLastRunDateUpdate(THREADNAME_installUpdatesThread);
-                if (threadLastRunSecondsAgoCurrent_installUpdatesThread > workCycleRestPeriodMS_InstallUpdatesThread * 2) {
-                    Log.w(TAG, TAGG+" The "+THREADNAME_installUpdatesThread+" has not run in "+threadLastRunSecondsAgoCurrent_installUpdatesThread+" milliseconds.");
+                if (isThreadOverdue(THREADNAME_installUpdatesThread, config.installIntervalMS)) {
+                    Log.w(TAG, TAGG+" The "+THREADNAME_installUpdatesThread+" has not run in "+threadLastRunSecondsAgoCurrent_installUpdatesThread+" milliseconds (expected at "+MainUpdaterService.threadNextRunDate_installUpdatesThread+").");
                     requestThreadStart(THREADNAME_installUpdatesThread);
                 } else {
                     Log.i(TAG, TAGG+" The "+THREADNAME_installUpdatesThread+" seems healthy (last ran "+threadLastRunSecondsAgoCurrent_installUpdatesThread/1000+"s ago).");
                 }
             }
 
+            // Check DownloadVerificationThread...
+            // (it just waits for downloads to verify, so it has no run dates; it only needs to still be alive)
+            Log.i(TAG, TAGG+"Checking thread: MainUpdaterService."+THREADNAME_downloadVerificationThread+"...");
+            if (MainUpdaterService.isDownloadVerificationThreadAlive()) {
+                Log.i(TAG, TAGG+" The "+THREADNAME_downloadVerificationThread+" seems healthy (running).");
+            } else if (!Thread.currentThread().isInterrupted()) {                                   //(not if we're stopping, since it was likely stopped too)
+                Log.w(TAG, TAGG+" The "+THREADNAME_downloadVerificationThread+" is not running.");
+                requestThreadStart(THREADNAME_downloadVerificationThread);
+            }
+
             /* END MAIN THREAD-WORK */
         }//end while
 
@@ -235,6 +238,53 @@ public class MonitorThreadsThread extends Thread {
         return ret;
     }
 
+    /** Returns true if the specified thread is more than the specified grace period past when it said it would next run
+     * (or, if it hasn't said, more than twice that since it last ran). */
+    private boolean isThreadOverdue(String threadName, long graceMS) {
+        Date nextRunDate = null;
+        if (THREADNAME_checkForUpdatesThread.equals(threadName)) {
+            nextRunDate = MainUpdaterService.threadNextRunDate_checkForUpdatesThread;
+        } else if (THREADNAME_installUpdatesThread.equals(threadName)) {
+            nextRunDate = MainUpdaterService.threadNextRunDate_installUpdatesThread;
+        }
+
+        if (nextRunDate == null) {
+            return getMsSinceLastRunDateUpdate(threadName) > graceMS * 2;
+        }
+        return System.currentTimeMillis() - nextRunDate.getTime() > graceMS;
+    }
+
+    /** Returns how long until one of the monitored threads could next be overdue (never less than our own interval).
+     * Only while they're both parked outside their windows (or disallowed) may that be as long as the longest they park,
+     * so we don't wake every interval just to find them all parked; while either is active, it's capped at that one's
+     * check interval, so a hung work cycle is noticed about as soon as it would have been without parking. */
+    private long getMsUntilNextCheck(UpdaterConfig.Snapshot config) {
+        final Date nextRunDate_checkForUpdatesThread = MainUpdaterService.threadNextRunDate_checkForUpdatesThread;
+        final Date nextRunDate_installUpdatesThread = MainUpdaterService.threadNextRunDate_installUpdatesThread;
+        if (nextRunDate_checkForUpdatesThread == null || nextRunDate_installUpdatesThread == null) {
+            return workCycleRestPeriodMS;       //(not both running yet, so keep an eye on them)
+        }
+
+        final long now = System.currentTimeMillis();
+        final long untilOverdue = Math.min(
+                nextRunDate_checkForUpdatesThread.getTime() + config.downloadIntervalMS - now,
+                nextRunDate_installUpdatesThread.getTime() + config.installIntervalMS - now);
+
+        long capMS = WorkScheduler.MAX_PARK_MS + Math.max(config.downloadIntervalMS, config.installIntervalMS);
+        if (isActive(config.downloadWindow, config.downloadDisallowed)) {
+            capMS = Math.min(capMS, config.downloadIntervalMS);
+        }
+        if (isActive(config.installWindow, config.installDisallowed)) {
+            capMS = Math.min(capMS, config.installIntervalMS);
+        }
+        return Math.max(workCycleRestPeriodMS, Math.min(untilOverdue + 1000, capMS));
+    }
+
+    /** Returns true if a thread with the specified window is active (inside its window and allowed), rather than parked until it opens. */
+    private static boolean isActive(TimeWindow window, boolean disallowed) {
+        return !disallowed && window.getMillisUntilOpen() == 0;
+    }
+
     private void requestThreadStart(String threadName) {
         final String TAGG = "requestThreadStart(\"" + String.valueOf(threadName) + "\"): ";
 
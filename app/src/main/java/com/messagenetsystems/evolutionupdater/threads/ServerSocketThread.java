@@ -15,6 +15,7 @@ import android.util.Log;
 import com.messagenetsystems.evolutionupdater.MainUpdaterService;
 import com.messagenetsystems.evolutionupdater.R;
 import com.messagenetsystems.evolutionupdater.SystemFunctions;
+import com.messagenetsystems.evolutionupdater.UpdaterConfig;
 
 import org.json.JSONObject;
 
@@ -24,11 +25,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 //public class ServerSocketThread implements Runnable {
 public class ServerSocketThread extends Thread {
@@ -42,6 +49,7 @@ public class ServerSocketThread extends Thread {
     private SystemFunctions systemFunctions;
 
     private int socketPort;
+    private String socketPassword;                  //password the server must send for requests that change things (empty means none are accepted)
 
     private int socketMaxBacklog;                   //maximum length of the queue of incoming connections before socket rejects incoming requests
     private int socketPerfPrefConnectionTime;       //an int expressing the relative importance of a short connection time
@@ -57,6 +65,7 @@ public class ServerSocketThread extends Thread {
     public ServerSocketThread(Context appContext) {
         this.appContext = appContext;
         this.socketPort = appContext.getResources().getInteger(R.integer.socket_server_port);
+        this.socketPassword = appContext.getResources().getString(R.string.socket_server_password);
         this.systemFunctions = new SystemFunctions(appContext);
     }
 
@@ -370,6 +379,20 @@ public class ServerSocketThread extends Thread {
                                 myIntent.putExtra("appPackageName", "com.messagenetsystems.evolutionwatchdog");
                                 appContext.sendBroadcast(myIntent);
                                 bufOut.write("update installation started"); bufOut.newLine(); bufOut.flush(); bufOut.close();     //send a response back to server
+                            } else if ((readLine.contains("GET /checkNow?password=") || readLine.contains("GET /config?password="))
+                                    && !isPasswordValid(scriptNameParams)) {
+                                //these change what we do, so only the server (which knows the password) may ask for them
+                                Log.w(TAG, TAGG+"Rejecting request with a missing or wrong password: "+scriptNameParams.replaceAll("password=[^&]*", "password=***"));
+                                bufOut.write("error: bad password"); bufOut.newLine(); bufOut.flush(); bufOut.close();     //send a response back to server
+                            } else if (readLine.contains("GET /checkNow?password=")) {
+                                //request from server to have the work threads check right away, rather than waiting for their next interval (they still obey their windows)
+                                Log.i(TAG, TAGG+"Server is requesting we check for work now. Returning acknowledgement.");
+                                MainUpdaterService.wakeWorkThreads("server request");
+                                bufOut.write("checking now"); bufOut.newLine(); bufOut.flush(); bufOut.close();     //send a response back to server
+                            } else if (readLine.contains("GET /config?password=")) {
+                                //request from server to read (and optionally override) our config, e.g. "/config?password=x&UPDATE_INSTALL_WINDOW_START=1:00" (empty value removes an override, "reset" removes them all)
+                                Log.i(TAG, TAGG+"Server is requesting our config.");
+                                bufOut.write(handleConfigRequest(scriptNameParams)); bufOut.flush(); bufOut.close();     //send a response back to server
                             } else {
                                 //unknown kind of request
                                 Log.w(TAG, TAGG+"The received request is not recognized. Ignoring.");
@@ -404,5 +427,90 @@ public class ServerSocketThread extends Thread {
                 Log.e(TAG, TAGG+"Exception caught closing client socket connection: "+ e.getMessage());
             }
         }//end run()
+
+        /** Apply any overrides in the request's query (everything but password), and return the resulting config, one
+         * "key=value (layer)" per line, after a "config v<version>" line. If any override isn't allowed (see
+         * UpdaterConfig.SERVER_OVERRIDABLE_KEYS) or valid, none are applied, and "error: <why>" lines are returned instead. */
+        private String handleConfigRequest(String scriptNameParams) {
+            final String TAGG = "handleConfigRequest: ";
+            UpdaterConfig updaterConfig = UpdaterConfig.getInstance(appContext);
+            UpdaterConfig.Snapshot config = updaterConfig.getSnapshot();
+
+            final int queryStart = scriptNameParams.indexOf('?');
+            final String query = (queryStart < 0 ? "" : scriptNameParams.substring(queryStart + 1));
+            final Map<String, String> overrides = new LinkedHashMap<>();
+            boolean reset = false;
+            final StringBuilder errors = new StringBuilder();
+            for (String param : query.split("&")) {
+                final int equals = param.indexOf('=');
+                final String key = decode(equals < 0 ? param : param.substring(0, equals));
+                final String value = (equals < 0 ? "" : decode(param.substring(equals + 1)));
+                if (key.isEmpty() || key.equals("password")) {
+                    continue;
+                } else if (key.equals("reset")) {
+                    reset = true;
+                    overrides.clear();     //(reset applies first, so anything before it in the query would be lost anyway)
+                } else {
+                    final String problem = UpdaterConfig.validateServerOverride(key, value);
+                    if (problem != null) {
+                        errors.append("error: ").append(problem).append('\n');
+                    } else {
+                        overrides.put(key, value);
+                    }
+                }
+            }
+
+            if (errors.length() > 0) {
+                Log.w(TAG, TAGG+"Rejecting request, nothing applied:\n"+errors);
+                return errors.toString();
+            }
+
+            if (reset) {
+                config = updaterConfig.clearServerOverrides();
+            }
+            for (Map.Entry<String, String> override : overrides.entrySet()) {
+                config = updaterConfig.setServerOverride(override.getKey(), override.getValue());
+            }
+
+            final StringBuilder response = new StringBuilder();
+            response.append("config v").append(config.version).append('\n');
+            for (Map.Entry<String, String> entry : new TreeMap<>(config.values).entrySet()) {
+                response.append(entry.getKey()).append('=').append(entry.getValue())
+                        .append(" (").append(UpdaterConfig.layerName(config.getSource(entry.getKey()))).append(")\n");
+            }
+            return response.toString();
+        }
+
+        /** Return whether the request's query has a "password" that matches ours (compared in constant time). If we have no
+         * password configured, nothing matches. */
+        private boolean isPasswordValid(String scriptNameParams) {
+            if (socketPassword == null || socketPassword.isEmpty()) {
+                return false;
+            }
+
+            final int queryStart = scriptNameParams.indexOf('?');
+            final String query = (queryStart < 0 ? "" : scriptNameParams.substring(queryStart + 1));
+            for (String param : query.split("&")) {
+                final int equals = param.indexOf('=');
+                if (equals >= 0 && decode(param.substring(0, equals)).equals("password")) {
+                    try {
+                        return MessageDigest.isEqual(decode(param.substring(equals + 1)).getBytes("UTF-8"), socketPassword.getBytes("UTF-8"));
+                    } catch (UnsupportedEncodingException e) {
+                        Log.e(TAG, TAGG+"UnsupportedEncodingException caught: "+e.getMessage());
+                        return false;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private String decode(String s) {
+            try {
+                return URLDecoder.decode(s, "UTF-8").trim();
+            } catch (Exception e) {
+                Log.w(TAG, TAGG+"Exception caught decoding \""+s+"\": "+e.getMessage());
+                return s.trim();
+            }
+        }
     }//end CommunicationThread
 }
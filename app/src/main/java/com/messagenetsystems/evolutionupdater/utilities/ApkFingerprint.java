@@ -0,0 +1,195 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ApkFingerprint
+ * Derives a stable identity for an APK file by reading only the tail of it, rather than hashing the whole thing.
+ *
+ * An APK is a ZIP file, and its tail already describes all of its content:
+ *  - End Of Central Directory (EOCD) record:   Locates the central directory.
+ *  - Central directory:                        Every entry's name, sizes and CRC-32 (so any change to any entry changes it).
+ *  - APK Signing Block (v2/v3, if present):    Sits just before the central directory and contains the signer's digests
+ *                                              of the entire APK contents.
+ * We digest those parts (plus the file's length) into a fingerprint. Two APKs with equal fingerprints are the same
+ * APK, for the purpose of deciding whether something needs to be downloaded or installed. That typically means
+ * reading a few hundred KB, instead of 30-60MB.
+ *
+ * NOTE: This is only an equality check! Full-file hashing is still what should be used to verify integrity of a
+ * download before installing it (a corrupted body would not necessarily show up in the tail).
+ *
+ * Fingerprints are returned as "apkfp:<hex>", so they can never be mistaken for (or compared equal to) a plain MD5.
+ * Returns null for anything we can't parse (not a ZIP, ZIP64, etc.); callers should fall back to a full-file hash.
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ApkFingerprint {
+    private static final String TAG = ApkFingerprint.class.getSimpleName();
+
+    public static final String FINGERPRINT_PREFIX = "apkfp:";
+    public static final String ALGORITHM_APKFP = "APKFP";                                           //name used when caching fingerprints alongside real checksums
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int EOCD_MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int EOCD_OFFSET_CD_SIZE = 12;
+    private static final int EOCD_OFFSET_CD_OFFSET = 16;
+    private static final int EOCD_OFFSET_COMMENT_LENGTH = 20;
+
+    private static final long APK_SIG_BLOCK_MAGIC_LO = 0x20676953204b5041L;                         //"APK Sig " (little-endian)
+    private static final long APK_SIG_BLOCK_MAGIC_HI = 0x3234206b636f6c42L;                         //"Block 42" (little-endian)
+    private static final int APK_SIG_BLOCK_MIN_SIZE = 32;
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;                         //sanity limits, so a malformed file can't make us allocate something huge
+    private static final int MAX_SIGNING_BLOCK_SIZE = 16 * 1024 * 1024;
+
+    /** Calculate the fingerprint of the specified APK file.
+     * Returns "apkfp:<hex>", or null if the file isn't something we can fingerprint. */
+    public static String calculate(File file) throws IOException {
+        final String TAGG = "calculate(\""+file.getPath()+"\"): ";
+
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest algorithm not available: "+ChecksumEngine.ALGORITHM_MD5, e);
+        }
+
+        final long startedAt = System.nanoTime();
+        RandomAccessFile randomAccessFile = null;
+        long bytesRead = 0;
+
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            final long fileLength = randomAccessFile.length();
+
+            // Find the EOCD record (it's at the very end, unless there's a trailing comment)
+            final int tailLength = (int) Math.min(fileLength, EOCD_MIN_SIZE + EOCD_MAX_COMMENT_SIZE);
+            final ByteBuffer tail = readAt(randomAccessFile, fileLength - tailLength, tailLength);
+            bytesRead += tailLength;
+
+            final int eocdPosition = findEocd(tail);
+            if (eocdPosition < 0) {
+                Log.d(TAG, TAGG+"No EOCD record found, not a ZIP/APK.");
+                return null;
+            }
+
+            final long eocdOffset = fileLength - tailLength + eocdPosition;
+            final long cdSize = tail.getInt(eocdPosition + EOCD_OFFSET_CD_SIZE) & 0xFFFFFFFFL;
+            final long cdOffset = tail.getInt(eocdPosition + EOCD_OFFSET_CD_OFFSET) & 0xFFFFFFFFL;
+
+            if (cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) {
+                Log.d(TAG, TAGG+"ZIP64 archive, not supported.");
+                return null;
+            }
+            if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE || cdOffset + cdSize != eocdOffset) {
+                Log.d(TAG, TAGG+"Central directory location is not sane (offset "+cdOffset+", size "+cdSize+", EOCD at "+eocdOffset+").");
+                return null;
+            }
+
+            // Digest the file length, then the signing block's signature-scheme blocks (if any), the central directory, and the EOCD
+            messageDigest.update(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, fileLength));
+
+            bytesRead += digestSigningBlock(randomAccessFile, cdOffset, messageDigest);
+
+            final ByteBuffer centralDirectory = readAt(randomAccessFile, cdOffset, (int) cdSize);
+            messageDigest.update(centralDirectory);
+            bytesRead += cdSize;
+
+            tail.position(eocdPosition);
+            messageDigest.update(tail);
+        } finally {
+            if (randomAccessFile != null) {
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+
+        final String ret = FINGERPRINT_PREFIX + ChecksumEngine.toHex(messageDigest.digest());
+
+        Log.v(TAG, TAGG+"Calculated "+ret+" from "+bytesRead+" bytes in "+((System.nanoTime() - startedAt) / 1000000)+"ms.");
+        return ret;
+    }
+
+    /** Returns true if the provided value is an APK fingerprint (as opposed to some other kind of checksum). */
+    public static boolean isFingerprint(String value) {
+        return value != null && value.startsWith(FINGERPRINT_PREFIX);
+    }
+
+    /** Return the position of the EOCD record within the provided tail of the file, or -1 if there isn't one.
+     * Searches backward, and only accepts a record whose comment length exactly accounts for the rest of the file. */
+    private static int findEocd(ByteBuffer tail) {
+        final int limit = tail.capacity();
+
+        for (int position = limit - EOCD_MIN_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == EOCD_SIGNATURE) {
+                final int commentLength = tail.getShort(position + EOCD_OFFSET_COMMENT_LENGTH) & 0xFFFF;
+                if (position + EOCD_MIN_SIZE + commentLength == limit) {
+                    return position;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /** If there's an APK Signing Block right before the central directory, feed its v2/v3 signature-scheme blocks
+     * (which contain the signer's content digests) into the provided digest.
+     * Returns the number of bytes read from the file. */
+    private static long digestSigningBlock(RandomAccessFile randomAccessFile, long cdOffset, MessageDigest messageDigest) throws IOException {
+        if (cdOffset < APK_SIG_BLOCK_MIN_SIZE) {
+            return 0;
+        }
+
+        // Block ends with: size of block (uint64), magic (16 bytes)
+        final ByteBuffer footer = readAt(randomAccessFile, cdOffset - 24, 24);
+        if (footer.getLong(8) != APK_SIG_BLOCK_MAGIC_LO || footer.getLong(16) != APK_SIG_BLOCK_MAGIC_HI) {
+            return 24;      //not v2/v3 signed (v1-only), the central directory alone will have to do
+        }
+
+        final long blockSize = footer.getLong(0);
+        if (blockSize < 24 || blockSize > MAX_SIGNING_BLOCK_SIZE || blockSize + 8 > cdOffset) {
+            return 24;
+        }
+
+        // Block is: size of block (uint64), ID-value pairs, size of block (uint64), magic -- we want the pairs
+        final ByteBuffer pairs = readAt(randomAccessFile, cdOffset - blockSize, (int) (blockSize - 24));
+
+        while (pairs.remaining() >= 12) {
+            final long pairLength = pairs.getLong();
+            if (pairLength < 4 || pairLength > pairs.remaining()) {
+                break;
+            }
+            final int id = pairs.getInt();
+            final int valueLength = (int) (pairLength - 4);
+            if (id == APK_SIGNATURE_SCHEME_V2_BLOCK_ID || id == APK_SIGNATURE_SCHEME_V3_BLOCK_ID) {
+                final ByteBuffer value = pairs.slice();
+                value.limit(valueLength);
+                messageDigest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, id));
+                messageDigest.update(value);
+            }
+            pairs.position(pairs.position() + valueLength);
+        }
+
+        return blockSize;
+    }
+
+    /** Read the specified range of the file into a (little-endian, as ZIP is) buffer. */
+    private static ByteBuffer readAt(RandomAccessFile randomAccessFile, long offset, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        randomAccessFile.seek(offset);
+        randomAccessFile.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,289 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ChecksumCache
+ * Remembers checksums we've already calculated, so the same (unchanged) file never needs to be hashed again.
+ *
+ * Entries are keyed by path and algorithm, and are only valid as long as the file's identity (size, modified-time
+ * and inode) is exactly what it was when the checksum was calculated. Any difference invalidates the entry.
+ *
+ * Entries are persisted to a small tab-delimited index file, so a service restart doesn't force a full rehash of
+ * every APK. Format of each line:
+ *  path <TAB> size <TAB> lastModifiedMS <TAB> inode <TAB> algorithm <TAB> checksum
+ *
+ * Usage:
+ *  FileIdentity identity = FileIdentity.of(file);          //capture BEFORE hashing
+ *  String checksum = checksumCache.get(file, identity, algorithm);
+ *  if (checksum == null) {
+ *      checksum = [calculate it];
+ *      checksumCache.put(file, identity, algorithm, checksum);
+ *  }
+ */
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ChecksumCache {
+    private static final String TAG = ChecksumCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 64;                                                      //we only manage a handful of packages (downloaded and installed), so this is plenty
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private final File indexFile;
+    private final LinkedHashMap<String, Entry> entries;
+    private boolean isLoaded = false;
+
+    /** Constructor */
+    public ChecksumCache(File indexFile) {
+        this.indexFile = indexFile;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** Return the cached checksum for the file, or null if there is none (or the file has changed since).
+     * Provide the identity you captured for the file (or null to have it captured now). */
+    public synchronized String get(File file, FileIdentity identity, String algorithm) {
+        final String TAGG = "get(\""+file.getPath()+"\"): ";
+
+        if (identity == null) {
+            identity = FileIdentity.of(file);
+        }
+        if (identity == null) {
+            Log.v(TAG, TAGG+"File identity unavailable, cannot use cache.");
+            return null;
+        }
+
+        loadIfNecessary();
+
+        final String key = makeKey(file, algorithm);
+        final Entry entry = entries.get(key);
+
+        if (entry == null) {
+            Log.v(TAG, TAGG+"No cached entry.");
+            return null;
+        }
+
+        if (!entry.identity.equals(identity)) {
+            Log.d(TAG, TAGG+"File has changed since its checksum was cached ("+entry.identity+" -> "+identity+"). Invalidating.");
+            entries.remove(key);
+            save();
+            return null;
+        }
+
+        Log.v(TAG, TAGG+"Cache hit ("+entry.checksum+").");
+        return entry.checksum;
+    }
+
+    /** Save the checksum for the file.
+     * Provide the identity captured BEFORE the checksum was calculated. If the file has changed since then
+     * (e.g. it was still being written), nothing is cached, since we can't know which content the checksum is for. */
+    public synchronized void put(File file, FileIdentity identityBeforeHashing, String algorithm, String checksum) {
+        final String TAGG = "put(\""+file.getPath()+"\"): ";
+
+        if (identityBeforeHashing == null || checksum == null || checksum.isEmpty()) {
+            return;
+        }
+        if (file.getPath().contains(FIELD_SEPARATOR) || file.getPath().contains("\n")) {
+            Log.w(TAG, TAGG+"Path can't be stored in the index, not caching.");
+            return;
+        }
+        if (!identityBeforeHashing.equals(FileIdentity.of(file))) {
+            Log.i(TAG, TAGG+"File changed while its checksum was being calculated, not caching.");
+            return;
+        }
+
+        loadIfNecessary();
+
+        final Entry existing = entries.put(makeKey(file, algorithm), new Entry(file.getPath(), identityBeforeHashing, algorithm, checksum));
+        if (existing != null && existing.identity.equals(identityBeforeHashing) && existing.checksum.equals(checksum)) {
+            return;     //nothing changed, no need to rewrite the index
+        }
+
+        while (entries.size() > MAX_ENTRIES) {
+            Iterator<String> iterator = entries.keySet().iterator();
+            iterator.next();
+            iterator.remove();      //least-recently used
+        }
+
+        save();
+    }
+
+    /** Forget any cached checksums for the specified file. */
+    public synchronized void invalidate(File file) {
+        loadIfNecessary();
+
+        boolean removed = false;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().path.equals(file.getPath())) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+
+        if (removed) {
+            save();
+        }
+    }
+
+    private static String makeKey(File file, String algorithm) {
+        return algorithm + ":" + file.getPath();
+    }
+
+    /** Read in persisted entries (only once). */
+    private void loadIfNecessary() {
+        final String TAGG = "loadIfNecessary: ";
+
+        if (isLoaded) {
+            return;
+        }
+        isLoaded = true;
+
+        if (!indexFile.exists()) {
+            Log.d(TAG, TAGG+"No index file yet ("+indexFile.getPath()+").");
+            return;
+        }
+
+        BufferedReader bufferedReader = null;
+        String line;
+        String[] fields;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(indexFile));
+            while ((line = bufferedReader.readLine()) != null) {
+                fields = line.split(FIELD_SEPARATOR);
+                if (fields.length != 6) {
+                    Log.w(TAG, TAGG+"Skipping malformed index line: \""+line+"\".");
+                    continue;
+                }
+                try {
+                    FileIdentity identity = new FileIdentity(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                    entries.put(makeKey(new File(fields[0]), fields[4]), new Entry(fields[0], identity, fields[4], fields[5]));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, TAGG+"Skipping unparsable index line: \""+line+"\".");
+                }
+            }
+            Log.d(TAG, TAGG+"Loaded "+entries.size()+" cached checksums.");
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Exception caught reading index: "+e.getMessage());
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing index: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Write all entries out to the index file (via temp file and rename, so a crash can't leave a partial index). */
+    private void save() {
+        final String TAGG = "save: ";
+
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        BufferedWriter bufferedWriter = null;
+
+        try {
+            bufferedWriter = new BufferedWriter(new FileWriter(tempFile));
+            for (Entry entry : entries.values()) {
+                bufferedWriter.write(entry.path + FIELD_SEPARATOR
+                        + entry.identity.size + FIELD_SEPARATOR
+                        + entry.identity.lastModified + FIELD_SEPARATOR
+                        + entry.identity.inode + FIELD_SEPARATOR
+                        + entry.algorithm + FIELD_SEPARATOR
+                        + entry.checksum);
+                bufferedWriter.newLine();
+            }
+            bufferedWriter.close();
+            bufferedWriter = null;
+
+            if (!tempFile.renameTo(indexFile)) {
+                Log.w(TAG, TAGG+"Could not rename temp file to index file.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Exception caught writing index: "+e.getMessage());
+        } finally {
+            if (bufferedWriter != null) {
+                try {
+                    bufferedWriter.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing index: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** A cached checksum and the identity of the file it was calculated from. */
+    private static class Entry {
+        final String path;
+        final FileIdentity identity;
+        final String algorithm;
+        final String checksum;
+
+        Entry(String path, FileIdentity identity, String algorithm, String checksum) {
+            this.path = path;
+            this.identity = identity;
+            this.algorithm = algorithm;
+            this.checksum = checksum;
+        }
+    }
+
+    /** Identity of a file's content, as far as we can cheaply tell without reading it. */
+    public static class FileIdentity {
+        public final long size;
+        public final long lastModified;
+        public final long inode;
+
+        public FileIdentity(long size, long lastModified, long inode) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.inode = inode;
+        }
+
+        /** Capture the current identity of the specified file.
+         * Returns null if the file doesn't exist or can't be stat'ed by us. */
+        public static FileIdentity of(File file) {
+            try {
+                StructStat structStat = Os.stat(file.getPath());
+                return new FileIdentity(structStat.st_size, file.lastModified(), structStat.st_ino);
+            } catch (ErrnoException e) {
+                return null;
+            } catch (Exception e) {
+                Log.w(TAG, "FileIdentity.of(\""+file.getPath()+"\"): Exception caught: "+e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof FileIdentity)) return false;
+            FileIdentity other = (FileIdentity) o;
+            return size == other.size && lastModified == other.lastModified && inode == other.inode;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (inode ^ (inode >>> 32));
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "size="+size+" mtime="+lastModified+" inode="+inode;
+        }
+    }
+}
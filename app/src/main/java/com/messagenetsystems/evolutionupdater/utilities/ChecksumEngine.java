@@ -0,0 +1,189 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ChecksumEngine
+ * Calculates file checksums in-process, by streaming the file's bytes through a MessageDigest.
+ *
+ * This replaces having to fork a root shell and run md5sum (then parse its output) every time we need a checksum.
+ * The returned value is the same lowercase hex string that md5sum would print, so results are interchangeable with
+ * the server-side .md5 files and anything that was calculated the old way.
+ *
+ * Two read strategies are available:
+ *  - MODE_STREAM:  Reads the file through a large, per-thread, reusable buffer (no allocation per call).
+ *  - MODE_MMAP:    Maps the file in windows with a FileChannel and feeds those directly to the digest.
+ *
+ * NOTE: This can only read files that our own UID has access to. Callers should fall back to a root method if not.
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ChecksumEngine {
+    private static final String TAG = ChecksumEngine.class.getSimpleName();
+
+    public static final String ALGORITHM_MD5 = "MD5";
+
+    public static final int MODE_STREAM = 0;
+    public static final int MODE_MMAP = 1;
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;                                       //large enough to keep syscall count low for 30-60MB APKs, small enough to not matter for memory
+    public static final long DEFAULT_MMAP_WINDOW_SIZE = 32L * 1024 * 1024;                         //mapped in windows so we don't need a huge contiguous chunk of (32-bit) address space
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Each thread gets its own reusable read buffer, so concurrent callers don't need to synchronize or allocate
+    private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFAULT_BUFFER_SIZE];
+        }
+    };
+
+    /** Calculate the MD5 checksum of the specified file, as a lowercase hex string. */
+    public static String calculateMD5(File file) throws IOException {
+        return calculate(file, ALGORITHM_MD5, MODE_STREAM);
+    }
+
+    /** Calculate the checksum of the specified file using the specified MessageDigest algorithm and read mode.
+     * Returns the digest as a lowercase hex string. */
+    public static String calculate(File file, String algorithm, int mode) throws IOException {
+        final String TAGG = "calculate(\""+file.getPath()+"\", "+algorithm+"): ";
+
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest algorithm not available: "+algorithm, e);
+        }
+
+        final long startedAt = System.nanoTime();
+
+        if (mode == MODE_MMAP) {
+            digestMapped(file, messageDigest, DEFAULT_MMAP_WINDOW_SIZE);
+        } else {
+            digestStream(file, messageDigest);
+        }
+
+        final String ret = toHex(messageDigest.digest());
+
+        Log.v(TAG, TAGG+"Calculated "+ret+" from "+file.length()+" bytes in "+((System.nanoTime() - startedAt) / 1000000)+"ms.");
+        return ret;
+    }
+
+    /** Calculate the checksum of the specified file using the specified algorithm (see DigestAlgorithm).
+     * Returns the bare (untagged) value as a lowercase hex string. */
+    public static String calculate(File file, DigestAlgorithm algorithm) throws IOException {
+        final String TAGG = "calculate(\""+file.getPath()+"\", "+algorithm+"): ";
+
+        final long startedAt = System.nanoTime();
+        final String ret;
+        InputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+            ret = calculate(inputStream, algorithm);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+
+        Log.v(TAG, TAGG+"Calculated "+ret+" from "+file.length()+" bytes in "+((System.nanoTime() - startedAt) / 1000000)+"ms.");
+        return ret;
+    }
+
+    /** Calculate the checksum of everything left in the provided stream using the specified algorithm, reading it
+     * through this thread's reusable buffer. Returns the digest as a lowercase hex string. (The stream is not closed.) */
+    public static String calculate(InputStream inputStream, DigestAlgorithm algorithm) throws IOException {
+        final Hasher hasher = algorithm.newHasher();
+        digestStream(inputStream, hasher, readBuffer.get());
+        return toHex(hasher.digest());
+    }
+
+    /** Feed the whole file into the provided digest, using this thread's reusable buffer. */
+    public static void digestStream(File file, MessageDigest messageDigest) throws IOException {
+        digestStream(file, messageDigest, readBuffer.get());
+    }
+
+    /** Feed the whole file into the provided digest, reading it through the provided buffer (its size is the read size). */
+    public static void digestStream(File file, MessageDigest messageDigest, byte[] buffer) throws IOException {
+        InputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+            digestStream(inputStream, new DigestAlgorithm.MessageDigestHasher(messageDigest), buffer);
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "digestStream: Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Feed everything left in the provided stream into the provided hasher, reading it through the provided buffer (its
+     * size is the read size). This is the one read loop every stream-mode calculation goes through. */
+    private static void digestStream(InputStream inputStream, Hasher hasher, byte[] buffer) throws IOException {
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            hasher.update(buffer, 0, count);
+        }
+    }
+
+    /** Feed the whole file into the provided digest, by memory-mapping it one window at a time. */
+    public static void digestMapped(File file, MessageDigest messageDigest, long windowSize) throws IOException {
+        FileInputStream fileInputStream = null;
+        FileChannel channel;
+        MappedByteBuffer mappedByteBuffer;
+        long position = 0;
+        long size;
+
+        try {
+            fileInputStream = new FileInputStream(file);
+            channel = fileInputStream.getChannel();
+            size = channel.size();
+
+            while (position < size) {
+                final long length = Math.min(windowSize, size - position);
+                mappedByteBuffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                messageDigest.update(mappedByteBuffer);
+                position += length;
+            }
+        } finally {
+            if (fileInputStream != null) {
+                try {
+                    fileInputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "digestMapped: Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+    }
+
+    /** Convert the provided bytes to a lowercase hex string (same format md5sum prints). */
+    public static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        int v;
+
+        for (int i = 0; i < bytes.length; i++) {
+            v = bytes[i] & 0xFF;
+            chars[i * 2] = HEX_DIGITS[v >>> 4];
+            chars[i * 2 + 1] = HEX_DIGITS[v & 0x0F];
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,147 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ChecksumRecord
+ * A checksum record (e.g. a server's "<package>.md5" file), parsed once into the kinds of value it can contain:
+ *  - Plain digests:        "<hex>" (MD5) or "<tag>:<hex>" (see DigestAlgorithm), of that algorithm's length
+ *  - APK fingerprint:      "apkfp:<hex>" (see ApkFingerprint; only good for telling whether two APKs are the same)
+ *  - Tree digest:          "tree:md5:<segmentSizeKiB>:<hex>" (see TreeHasher; a whole-file hash, calculated in parallel)
+ * Values are separated by whitespace, commas or semicolons, and may be in any order. Anything else is kept as
+ * unrecognized, and logged (once per record), so a record we can't use doesn't just quietly look empty.
+ *
+ * Callers pick which value to compare with (choosing by purpose), then calculate the local file's value in the same
+ * form (SystemFunctions.calculateChecksumForLocalFileLike), so the two strings can just be compared.
+ *
+ * Usage:
+ *  ChecksumRecord record = ChecksumRecord.parse(text);
+ *  String expected = record.chooseForIntegrity(digestSelector);           //null if nothing in it can verify integrity
+ *  List<String> candidates = record.choicesForChangeDetection(digestSelector);
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+public class ChecksumRecord {
+    private static final String TAG = ChecksumRecord.class.getSimpleName();
+
+    private static volatile String lastRecordWithUnrecognizedValues = null;                         //so a record we can't fully use is only complained about once
+
+    public final Map<DigestAlgorithm, String> digests;                                              //unmodifiable, bare lowercase hex by algorithm (in the order they appear)
+    public final String apkFingerprint;                                                             //"apkfp:<hex>", or null if the record has none
+    public final String treeDigest;                                                                 //"tree:md5:<KiB>:<hex>", or null if the record has none (we can produce)
+    public final List<String> unrecognized;                                                         //unmodifiable, values we couldn't make sense of
+
+    private ChecksumRecord(Map<DigestAlgorithm, String> digests, String apkFingerprint, String treeDigest, List<String> unrecognized) {
+        this.digests = digests;
+        this.apkFingerprint = apkFingerprint;
+        this.treeDigest = treeDigest;
+        this.unrecognized = unrecognized;
+    }
+
+    /** Parse the provided record (null is just an empty record). */
+    public static ChecksumRecord parse(String record) {
+        final Map<DigestAlgorithm, String> digests = new LinkedHashMap<>();
+        final List<String> unrecognized = new ArrayList<>();
+        String apkFingerprint = null;
+        String treeDigest = null;
+
+        if (record != null) {
+            for (String token : record.trim().split("[\\s,;]+")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+
+                if (ApkFingerprint.isFingerprint(token)) {
+                    final String hex = token.substring(ApkFingerprint.FINGERPRINT_PREFIX.length());
+                    if (isHex(hex, DigestAlgorithm.MD5)) {
+                        if (apkFingerprint == null) {
+                            apkFingerprint = ApkFingerprint.FINGERPRINT_PREFIX + hex.toLowerCase(Locale.US);
+                        }
+                        continue;
+                    }
+                } else if (TreeHasher.isTreeDigest(token)) {
+                    if (TreeHasher.parseSegmentSize(token) > 0 && isHex(token.substring(token.lastIndexOf(DigestAlgorithm.TAG_SEPARATOR) + 1), DigestAlgorithm.MD5)) {
+                        if (treeDigest == null) {
+                            treeDigest = token.toLowerCase(Locale.US);
+                        }
+                        continue;
+                    }
+                } else {
+                    final int separatorIndex = token.indexOf(DigestAlgorithm.TAG_SEPARATOR);
+                    final DigestAlgorithm algorithm = (separatorIndex < 0 ? DigestAlgorithm.MD5 : DigestAlgorithm.fromTag(token.substring(0, separatorIndex)));
+                    final String hex = token.substring(separatorIndex + 1);
+                    if (algorithm != null && isHex(hex, algorithm)) {
+                        if (!digests.containsKey(algorithm)) {
+                            digests.put(algorithm, hex.toLowerCase(Locale.US));
+                        }
+                        continue;
+                    }
+                }
+
+                unrecognized.add(token);
+            }
+        }
+
+        final ChecksumRecord ret = new ChecksumRecord(Collections.unmodifiableMap(digests), apkFingerprint, treeDigest, Collections.unmodifiableList(unrecognized));
+        if (!unrecognized.isEmpty() && !record.equals(lastRecordWithUnrecognizedValues)) {
+            lastRecordWithUnrecognizedValues = record;
+            Log.w(TAG, "parse: Values we don't recognize ("+unrecognized+"), leaving "+(ret.isEmpty() ? "nothing usable" : ret.toString())+".");
+        }
+        return ret;
+    }
+
+    /** Returns true if there's nothing usable in the record. */
+    public boolean isEmpty() {
+        return digests.isEmpty() && apkFingerprint == null && treeDigest == null;
+    }
+
+    /** Returns the value (tagged) to verify a file's integrity against: the best plain digest for that, else the tree
+     * digest. Returns null if the record has neither (an APK fingerprint alone can't verify integrity). */
+    public String chooseForIntegrity(DigestSelector digestSelector) {
+        final DigestAlgorithm algorithm = digestSelector.choose(DigestSelector.PURPOSE_INTEGRITY, digests.keySet());
+        if (algorithm != null) {
+            return algorithm.toTagged(digests.get(algorithm));
+        }
+        return treeDigest;
+    }
+
+    /** Returns the values (tagged) that could tell whether a file has changed, cheapest to calculate first: the APK
+     * fingerprint, the best plain digest for that, then the tree digest. Empty if the record has none of those. */
+    public List<String> choicesForChangeDetection(DigestSelector digestSelector) {
+        final List<String> ret = new ArrayList<>(3);
+        if (apkFingerprint != null) {
+            ret.add(apkFingerprint);
+        }
+        final DigestAlgorithm algorithm = digestSelector.choose(DigestSelector.PURPOSE_CHANGE_DETECTION, digests.keySet());
+        if (algorithm != null) {
+            ret.add(algorithm.toTagged(digests.get(algorithm)));
+        }
+        if (treeDigest != null) {
+            ret.add(treeDigest);
+        }
+        return ret;
+    }
+
+    /** Returns true if the provided string is a hex value of the provided algorithm's length. */
+    private static boolean isHex(String s, DigestAlgorithm algorithm) {
+        if (s.length() != algorithm.getHexLength()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "digests " + digests + (apkFingerprint != null ? ", " + apkFingerprint : "") + (treeDigest != null ? ", " + treeDigest : "");
+    }
+}
@@ -0,0 +1,43 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** Crc32cHasher
+ * CRC-32C (Castagnoli) in software, using a lookup table.
+ *
+ * Android's java.util.zip.CRC32C only exists as of API 26, and we need to support older devices.
+ * It's only suitable for detecting accidental change, never for integrity against tampering.
+ */
+
+public class Crc32cHasher implements Hasher {
+
+    private static final int POLYNOMIAL_REFLECTED = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = ((c & 1) != 0) ? (c >>> 1) ^ POLYNOMIAL_REFLECTED : (c >>> 1);
+            }
+            TABLE[n] = c;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        int c = crc;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            c = TABLE[(c ^ buffer[i]) & 0xFF] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    @Override
+    public byte[] digest() {
+        final int value = ~crc;
+        crc = 0xFFFFFFFF;
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+}
@@ -0,0 +1,112 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** DigestAlgorithm
+ * The checksum algorithms we know how to calculate, and how their values are written down.
+ *
+ * Checksum values (in sidecars, server records, etc.) declare their algorithm with a tag prefix:
+ *  "<tag>:<hex>"       e.g. "sha256:9f86d08...", "xxh64:44bc2cf5ad770999"
+ * A bare hex value with no tag is MD5, since that's what everything was before algorithms were pluggable
+ * (so existing ".md5" files on the server remain valid as-is).
+ *
+ * A record (e.g. a server's "<package>.md5" file) may contain several values for different algorithms, separated by
+ * whitespace, commas or semicolons (see ChecksumRecord). The device then picks whichever one suits the job best
+ * (see DigestSelector).
+ *
+ * Only "strong" (cryptographic, not known-broken) algorithms should be relied on for integrity before installing.
+ * The others are fine for telling whether something has changed.
+ */
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+public enum DigestAlgorithm {
+    MD5     ("md5",     "MD5",      16,     false),
+    SHA256  ("sha256",  "SHA-256",  32,     true),
+    SHA512  ("sha512",  "SHA-512",  64,     true),
+    CRC32C  ("crc32c",  null,       4,      false),
+    XXH64   ("xxh64",   null,       8,      false);
+
+    public static final String TAG_SEPARATOR = ":";
+
+    private final String tag;
+    private final String javaName;
+    private final int digestLength;                                                                 //bytes
+    private final boolean isStrong;
+
+    DigestAlgorithm(String tag, String javaName, int digestLength, boolean isStrong) {
+        this.tag = tag;
+        this.javaName = javaName;
+        this.digestLength = digestLength;
+        this.isStrong = isStrong;
+    }
+
+    /** Returns the tag used to declare this algorithm in checksum values (e.g. "sha256"). */
+    public String getTag() {
+        return tag;
+    }
+
+    /** Returns how many hex digits this algorithm's values have (e.g. 32 for MD5). */
+    public int getHexLength() {
+        return digestLength * 2;
+    }
+
+    /** Returns true if this algorithm is acceptable for verifying integrity (not just for detecting change). */
+    public boolean isStrong() {
+        return isStrong;
+    }
+
+    /** Returns a new, ready-to-use hasher for this algorithm. */
+    public Hasher newHasher() {
+        switch (this) {
+            case CRC32C:
+                return new Crc32cHasher();
+            case XXH64:
+                return new Xxh64Hasher();
+            default:
+                try {
+                    return new MessageDigestHasher(MessageDigest.getInstance(javaName));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException("Digest algorithm not available: "+javaName, e);
+                }
+        }
+    }
+
+    /** Returns the provided hex value tagged with this algorithm (e.g. "sha256:<hex>"). */
+    public String toTagged(String hex) {
+        return tag + TAG_SEPARATOR + hex;
+    }
+
+    /** Returns the algorithm for the provided tag (case-insensitive), or null if we don't know it. */
+    public static DigestAlgorithm fromTag(String tag) {
+        if (tag == null) {
+            return null;
+        }
+        final String lowerTag = tag.trim().toLowerCase(Locale.US);
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.tag.equals(lowerTag)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /** Adapts a JCA MessageDigest to our Hasher interface. */
+    static class MessageDigestHasher implements Hasher {
+        private final MessageDigest messageDigest;
+
+        MessageDigestHasher(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int length) {
+            messageDigest.update(buffer, offset, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            return messageDigest.digest();
+        }
+    }
+}
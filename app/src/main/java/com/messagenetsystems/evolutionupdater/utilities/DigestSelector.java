@@ -0,0 +1,207 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** DigestSelector
+ * Picks which checksum algorithm to use for a job, based on how fast each one actually is on this device.
+ *
+ * Relative speeds vary a lot between devices (CPU, 32 vs 64-bit, whether the crypto provider is native, etc.),
+ * so rather than guessing, we measure each algorithm's throughput once (hashing an in-memory buffer, so storage
+ * speed doesn't factor in) and save the results to a small table file. It gets re-measured when it gets old.
+ *
+ * Jobs:
+ *  PURPOSE_CHANGE_DETECTION:   "Has this file changed?" -- any algorithm will do, so the fastest one is picked.
+ *  PURPOSE_INTEGRITY:          "Is this file exactly what it should be?" (before installing) -- the fastest strong
+ *                              algorithm is picked. If none of the candidates are strong, the fastest one is used
+ *                              (e.g. a server that only publishes MD5), since it's still better than not checking.
+ *
+ * Table file format (one line per algorithm):
+ *  tag <TAB> megabytesPerSecond
+ */
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+public class DigestSelector {
+    private static final String TAG = DigestSelector.class.getSimpleName();
+
+    public static final int PURPOSE_CHANGE_DETECTION = 0;
+    public static final int PURPOSE_INTEGRITY = 1;
+
+    private static final long TABLE_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;                         //re-measure monthly (firmware updates may change things)
+    private static final int BENCHMARK_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int BENCHMARK_PASSES = 3;
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private final File tableFile;
+    private Map<DigestAlgorithm, Double> throughputTable = null;                                    //megabytes per second
+
+    /** Constructor */
+    public DigestSelector(File tableFile) {
+        this.tableFile = tableFile;
+    }
+
+    /** Choose the best algorithm for the specified purpose, from among all the ones we support. */
+    public DigestAlgorithm choose(int purpose) {
+        return choose(purpose, Arrays.asList(DigestAlgorithm.values()));
+    }
+
+    /** Choose the best algorithm for the specified purpose, from among the provided candidates
+     * (e.g. the ones a server record has values for). Returns null if there are no candidates. */
+    public DigestAlgorithm choose(int purpose, Collection<DigestAlgorithm> candidates) {
+        final String TAGG = "choose("+(purpose == PURPOSE_INTEGRITY ? "integrity" : "change-detection")+", "+candidates+"): ";
+
+        final Map<DigestAlgorithm, Double> table = getThroughputTable();
+        DigestAlgorithm fastest = null;
+        DigestAlgorithm fastestStrong = null;
+
+        for (DigestAlgorithm algorithm : candidates) {
+            if (fastest == null || throughputOf(table, algorithm) > throughputOf(table, fastest)) {
+                fastest = algorithm;
+            }
+            if (algorithm.isStrong() && (fastestStrong == null || throughputOf(table, algorithm) > throughputOf(table, fastestStrong))) {
+                fastestStrong = algorithm;
+            }
+        }
+
+        DigestAlgorithm ret = fastest;
+        if (purpose == PURPOSE_INTEGRITY) {
+            if (fastestStrong != null) {
+                ret = fastestStrong;
+            } else if (fastest != null) {
+                Log.w(TAG, TAGG+"No strong algorithm available, having to use "+fastest+" for integrity.");
+            }
+        }
+
+        Log.v(TAG, TAGG+"Returning "+ret+".");
+        return ret;
+    }
+
+    /** Return the throughput table (MB/s per algorithm), loading or measuring it first if necessary. */
+    public synchronized Map<DigestAlgorithm, Double> getThroughputTable() {
+        final String TAGG = "getThroughputTable: ";
+
+        if (throughputTable != null) {
+            return throughputTable;
+        }
+
+        if (tableFile.exists() && System.currentTimeMillis() - tableFile.lastModified() < TABLE_MAX_AGE_MS) {
+            throughputTable = load();
+        }
+
+        if (throughputTable == null || throughputTable.size() != DigestAlgorithm.values().length) {
+            Log.i(TAG, TAGG+"No (complete and current) throughput table, measuring...");
+            throughputTable = measure();
+            save(throughputTable);
+        }
+
+        Log.d(TAG, TAGG+"Throughput (MB/s): "+throughputTable);
+        return throughputTable;
+    }
+
+    /** Measure each algorithm's throughput (MB/s), hashing an in-memory buffer (best of a few passes). */
+    public static Map<DigestAlgorithm, Double> measure() {
+        final byte[] buffer = new byte[BENCHMARK_BUFFER_SIZE];
+        new Random(0).nextBytes(buffer);
+
+        final Map<DigestAlgorithm, Double> ret = new EnumMap<>(DigestAlgorithm.class);
+
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            final Hasher hasher = algorithm.newHasher();
+            hasher.update(buffer, 0, buffer.length);      //warm-up (class loading, JIT)
+            hasher.digest();
+
+            long bestNanos = Long.MAX_VALUE;
+            for (int pass = 0; pass < BENCHMARK_PASSES; pass++) {
+                final long startedAt = System.nanoTime();
+                hasher.update(buffer, 0, buffer.length);
+                hasher.digest();
+                bestNanos = Math.min(bestNanos, System.nanoTime() - startedAt);
+            }
+
+            ret.put(algorithm, (buffer.length / (1024.0 * 1024.0)) / (Math.max(1, bestNanos) / 1000000000.0));
+        }
+
+        return ret;
+    }
+
+    private static double throughputOf(Map<DigestAlgorithm, Double> table, DigestAlgorithm algorithm) {
+        final Double ret = table.get(algorithm);
+        return (ret == null ? 0 : ret);
+    }
+
+    private Map<DigestAlgorithm, Double> load() {
+        final String TAGG = "load: ";
+
+        final Map<DigestAlgorithm, Double> ret = new EnumMap<>(DigestAlgorithm.class);
+        BufferedReader bufferedReader = null;
+        String line;
+        String[] fields;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(tableFile));
+            while ((line = bufferedReader.readLine()) != null) {
+                fields = line.split(FIELD_SEPARATOR);
+                DigestAlgorithm algorithm = (fields.length == 2 ? DigestAlgorithm.fromTag(fields[0]) : null);
+                if (algorithm == null) {
+                    Log.w(TAG, TAGG+"Skipping unusable table line: \""+line+"\".");
+                    continue;
+                }
+                ret.put(algorithm, Double.parseDouble(fields[1]));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, TAGG+"Exception caught reading table: "+e.getMessage());
+            return null;
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing table: "+e.getMessage());
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    private void save(Map<DigestAlgorithm, Double> table) {
+        final String TAGG = "save: ";
+
+        File tempFile = new File(tableFile.getPath() + ".tmp");
+        BufferedWriter bufferedWriter = null;
+
+        try {
+            bufferedWriter = new BufferedWriter(new FileWriter(tempFile));
+            for (Map.Entry<DigestAlgorithm, Double> entry : table.entrySet()) {
+                bufferedWriter.write(entry.getKey().getTag() + FIELD_SEPARATOR + entry.getValue());
+                bufferedWriter.newLine();
+            }
+            bufferedWriter.close();
+            bufferedWriter = null;
+
+            if (!tempFile.renameTo(tableFile)) {
+                Log.w(TAG, TAGG+"Could not rename temp file to table file.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Exception caught writing table: "+e.getMessage());
+        } finally {
+            if (bufferedWriter != null) {
+                try {
+                    bufferedWriter.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing table: "+e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** DigestSidecar
+ * Small file saved next to a downloaded file (e.g. "/sdcard/com.messagenetsystems.evolution.apk.digest"), recording
+ * the checksum that was calculated while the file was being written.
+ *
+ * This lets the rest of the updater know a freshly downloaded file's checksum without reading it back in full.
+ * A sidecar is only trusted while its file's identity (size, modified-time, inode) still matches what was recorded,
+ * so a file that was replaced or modified afterward is never matched with a stale checksum.
+ *
+ * Format (one tab-delimited line):
+ *  algorithm <TAB> checksum <TAB> size <TAB> lastModifiedMS <TAB> inode
+ */
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class DigestSidecar {
+    private static final String TAG = DigestSidecar.class.getSimpleName();
+
+    public static final String SIDECAR_EXTENSION = ".digest";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    /** Return the sidecar file that corresponds to the specified file. */
+    public static File sidecarFor(File file) {
+        return new File(file.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /** Record the checksum for the specified file.
+     * Call this only after the file has been completely written and closed. */
+    public static boolean write(File file, String algorithm, String checksum) {
+        final String TAGG = "write(\""+file.getPath()+"\"): ";
+
+        ChecksumCache.FileIdentity identity = ChecksumCache.FileIdentity.of(file);
+        if (identity == null) {
+            Log.w(TAG, TAGG+"File identity unavailable, not writing sidecar.");
+            return false;
+        }
+
+        File sidecarFile = sidecarFor(file);
+        File tempFile = new File(sidecarFile.getPath() + ".tmp");
+        FileWriter fileWriter = null;
+        boolean ret = false;
+
+        try {
+            fileWriter = new FileWriter(tempFile);
+            fileWriter.write(algorithm + FIELD_SEPARATOR
+                    + checksum + FIELD_SEPARATOR
+                    + identity.size + FIELD_SEPARATOR
+                    + identity.lastModified + FIELD_SEPARATOR
+                    + identity.inode + "\n");
+            fileWriter.close();
+            fileWriter = null;
+
+            ret = tempFile.renameTo(sidecarFile);
+            if (ret) {
+                Log.d(TAG, TAGG+"Recorded "+algorithm+" "+checksum+" ("+identity+").");
+            } else {
+                Log.w(TAG, TAGG+"Could not rename temp file to sidecar file.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, TAGG+"Exception caught writing sidecar: "+e.getMessage());
+        } finally {
+            if (fileWriter != null) {
+                try {
+                    fileWriter.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing sidecar: "+e.getMessage());
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** Return the recorded checksum for the specified file, if there is a sidecar for it that can still be trusted.
+     * Provide the file's current identity (or null to have it captured now).
+     * Returns null if there's no sidecar, it's for a different algorithm, or the file has changed since (stale sidecars are deleted). */
+    public static String read(File file, ChecksumCache.FileIdentity identity, String algorithm) {
+        final String TAGG = "read(\""+file.getPath()+"\"): ";
+
+        File sidecarFile = sidecarFor(file);
+        if (!sidecarFile.exists()) {
+            return null;
+        }
+
+        if (identity == null) {
+            identity = ChecksumCache.FileIdentity.of(file);
+        }
+        if (identity == null) {
+            return null;
+        }
+
+        String ret = null;
+        BufferedReader bufferedReader = null;
+
+        try {
+            bufferedReader = new BufferedReader(new FileReader(sidecarFile));
+            String line = bufferedReader.readLine();
+            String[] fields = (line == null ? new String[0] : line.split(FIELD_SEPARATOR));
+
+            if (fields.length != 5) {
+                Log.w(TAG, TAGG+"Malformed sidecar, ignoring it.");
+            } else {
+                ChecksumCache.FileIdentity recordedIdentity = new ChecksumCache.FileIdentity(Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4]));
+                if (!recordedIdentity.equals(identity)) {
+                    Log.d(TAG, TAGG+"File has changed since sidecar was recorded ("+recordedIdentity+" -> "+identity+"). Deleting stale sidecar.");
+                    bufferedReader.close();
+                    bufferedReader = null;
+                    delete(file);
+                } else if (!fields[0].equals(algorithm)) {
+                    Log.v(TAG, TAGG+"Sidecar is for "+fields[0]+", not "+algorithm+".");
+                } else {
+                    ret = fields[1];
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, TAGG+"Exception caught reading sidecar: "+e.getMessage());
+        } finally {
+            if (bufferedReader != null) {
+                try {
+                    bufferedReader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing sidecar: "+e.getMessage());
+                }
+            }
+        }
+
+        Log.v(TAG, TAGG+"Returning: \""+ret+"\".");
+        return ret;
+    }
+
+    /** Remove any sidecar for the specified file (e.g. when the file is about to be overwritten). */
+    public static void delete(File file) {
+        File sidecarFile = sidecarFor(file);
+        if (sidecarFile.exists() && !sidecarFile.delete()) {
+            Log.w(TAG, "delete(\""+file.getPath()+"\"): Could not delete sidecar.");
+        }
+    }
+}
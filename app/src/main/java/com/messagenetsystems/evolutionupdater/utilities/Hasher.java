@@ -0,0 +1,15 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** Hasher
+ * Minimal incremental-hash interface, so checksum code doesn't need to care which algorithm (or implementation) it's
+ * feeding. Instances are obtained from DigestAlgorithm.newHasher(), and are not thread-safe.
+ */
+
+public interface Hasher {
+
+    /** Feed the specified bytes into the hash. */
+    void update(byte[] buffer, int offset, int length);
+
+    /** Finish and return the hash value (big-endian bytes), and reset so the instance can be reused. */
+    byte[] digest();
+}
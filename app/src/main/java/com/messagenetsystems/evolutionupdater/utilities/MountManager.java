@@ -0,0 +1,311 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** MountManager
+ * Knows whether mount points (e.g. /system) are read-only or read-write, by parsing /proc/mounts in-process (no fork,
+ * no root), and groups writes to a read-only mount point into a single remount transaction:
+ *
+ *  1. Remount read-write (skipped if it already is), and confirm that from /proc/mounts.
+ *  2. Copy each file (see VerifiedCopy), however many there are (without each one syncing).
+ *  3. Sync once, and remount read-only again (only if it was read-only to begin with), and confirm that.
+ *
+ * Timings for each phase are recorded in the returned TransactionResult.
+ *
+ * The mount state is cached, and only re-read from /proc/mounts when we remount something (or invalidate() is called),
+ * since nothing else on our devices remounts partitions.
+ *
+ * A transaction's mount point doesn't have to be a mount point itself: the mount it's on is used. So on system-as-root
+ * devices (where /system is just a directory on the root mount), a "/system" transaction remounts "/".
+ *
+ * Usage:
+ *  MountManager.Transaction transaction = MountManager.getInstance().newTransaction("/system");
+ *  transaction.addCopy(new File("/sdcard/x.apk"), new File("/system/priv-app/x.apk"));
+ *  transaction.addCopy(...);
+ *  MountManager.TransactionResult result = transaction.commit();
+ *  if (result.isSuccess()) ...
+ */
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MountManager {
+    private static final String TAG = MountManager.class.getSimpleName();
+
+    public static final String SYSTEM_MOUNT_POINT = "/system";
+
+    private static final String PROC_MOUNTS = "/proc/mounts";
+    private static final long REMOUNT_TIMEOUT_MS = 30 * 1000;
+    private static final long SYNC_AND_REMOUNT_TIMEOUT_MS = 60 * 1000;                              //sync may have a lot to flush after big copies
+
+    private static MountManager instance = null;
+
+    private Map<String, Mount> mounts = null;                                                       //keyed by mount point (null until first read)
+
+    /** Return the shared mount manager. */
+    public static synchronized MountManager getInstance() {
+        if (instance == null) {
+            instance = new MountManager();
+        }
+        return instance;
+    }
+
+    /** Returns the specified mount point's current mount, or null if nothing is mounted there. */
+    public synchronized Mount getMount(String mountPoint) {
+        if (mounts == null) {
+            mounts = readMounts();
+        }
+        return mounts.get(mountPoint);
+    }
+
+    /** Returns the mount the specified path is on (the mount at its longest mount point prefix), e.g. "/" for "/system"
+     * on system-as-root devices. Returns null only if nothing is mounted (at "/" either). */
+    public synchronized Mount getMountFor(String path) {
+        File file = new File(path);
+        while (file != null) {
+            final Mount mount = getMount(file.getPath());
+            if (mount != null) {
+                return mount;
+            }
+            file = file.getParentFile();
+        }
+        return null;
+    }
+
+    /** Returns true if the specified mount point is currently mounted read-write. */
+    public boolean isReadWrite(String mountPoint) {
+        Mount mount = getMount(mountPoint);
+        return mount != null && mount.isReadWrite;
+    }
+
+    /** Forget the cached mount state, so it's read again next time it's needed. */
+    public synchronized void invalidate() {
+        mounts = null;
+    }
+
+    /** Start a new (empty) transaction for writing files to the specified mount point. */
+    public Transaction newTransaction(String mountPoint) {
+        return new Transaction(mountPoint);
+    }
+
+    /** Remount the specified mount point read-write or read-only (optionally syncing first), and confirm it took.
+     * Returns true if it's now mounted as requested. */
+    private synchronized boolean remount(Mount mount, boolean readWrite, boolean syncFirst) {
+        final String TAGG = "remount(\""+mount.mountPoint+"\", "+(readWrite ? "rw" : "ro")+"): ";
+
+        ShellResult result = ShellExecutor.runAsRoot((syncFirst ? "/system/bin/sync && " : "")
+                + "/system/bin/mount -o " + (readWrite ? "rw" : "ro") + ",remount -t " + mount.type + " " + mount.mountPoint,
+                (syncFirst ? SYNC_AND_REMOUNT_TIMEOUT_MS : REMOUNT_TIMEOUT_MS));
+        for (String line : result.stderr) {
+            Log.w(TAG, TAGG+"stderr line: "+line);
+        }
+
+        invalidate();
+        final boolean ret = (isReadWrite(mount.mountPoint) == readWrite);
+        if (!ret) {
+            Log.w(TAG, TAGG+"Mount point is not "+(readWrite ? "read-write" : "read-only")+" after remount ("+result+").");
+        }
+        return ret;
+    }
+
+    /** Parse /proc/mounts (lines like "/dev/block/mmcblk0p5 /system ext4 ro,seclabel,relatime 0 0").
+     * If a mount point has several mounts stacked on it, the last one (the one in effect) wins. */
+    private static Map<String, Mount> readMounts() {
+        final String TAGG = "readMounts: ";
+
+        final Map<String, Mount> ret = new HashMap<>();
+        BufferedReader br = null;
+
+        try {
+            br = new BufferedReader(new FileReader(new File(PROC_MOUNTS)));
+            String line;
+            while ((line = br.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length < 4) {
+                    continue;
+                }
+                final String mountPoint = unescape(fields[1]);
+                final List<String> options = Arrays.asList(fields[3].split(","));
+                ret.put(mountPoint, new Mount(unescape(fields[0]), mountPoint, fields[2], options.contains("rw")));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+        } finally {
+            if (br != null) {
+                try {
+                    br.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing reader: "+e.getMessage());
+                }
+            }
+        }
+
+        Log.v(TAG, TAGG+"Read "+ret.size()+" mounts.");
+        return ret;
+    }
+
+    /** Decode the octal escapes (e.g. "\040" for a space) that /proc/mounts uses in device names and mount points. */
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0) {
+            return field;
+        }
+        final StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c == '\\' && i + 3 < field.length()) {
+                try {
+                    sb.append((char) Integer.parseInt(field.substring(i + 1, i + 4), 8));
+                    i += 3;
+                    continue;
+                } catch (NumberFormatException e) {
+                    //(not an escape after all, keep it as-is)
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /** One entry from /proc/mounts. Immutable. */
+    public static class Mount {
+        public final String device;
+        public final String mountPoint;
+        public final String type;
+        public final boolean isReadWrite;
+
+        Mount(String device, String mountPoint, String type, boolean isReadWrite) {
+            this.device = device;
+            this.mountPoint = mountPoint;
+            this.type = type;
+            this.isReadWrite = isReadWrite;
+        }
+    }
+
+    /** A group of file copies to a mount point, done under a single remount. */
+    public class Transaction {
+        private final String mountPoint;
+        private final List<File[]> copies = new ArrayList<>();                                      //each is {source, destination}
+        private boolean committed = false;
+
+        Transaction(String mountPoint) {
+            this.mountPoint = mountPoint;
+        }
+
+        /** Add a file to be copied (the destination must be on the transaction's mount point). */
+        public Transaction addCopy(File source, File destination) {
+            if (committed) {
+                throw new IllegalStateException("Transaction has already been committed.");
+            }
+            copies.add(new File[]{source, destination});
+            return this;
+        }
+
+        /** Remount read-write, do all the copies, then sync and put the mount back the way it was.
+         * Never throws; see the returned TransactionResult. */
+        public TransactionResult commit() {
+            final String TAGG = "commit(\""+mountPoint+"\", "+copies.size()+" copies): ";
+
+            if (committed) {
+                throw new IllegalStateException("Transaction has already been committed.");
+            }
+            committed = true;
+
+            final TransactionResult result = new TransactionResult();
+            final long startedAt = System.nanoTime();
+
+            synchronized (MountManager.this) {
+                final Mount mount = getMountFor(mountPoint);
+                if (mount == null) {
+                    result.error = "Nothing is mounted at "+mountPoint;
+                    Log.e(TAG, TAGG+result.error);
+                    return result;
+                }
+                if (!mount.mountPoint.equals(mountPoint)) {
+                    Log.d(TAG, TAGG+mountPoint+" is on the "+mount.mountPoint+" mount (e.g. system-as-root), using that.");
+                }
+                result.wasReadWrite = mount.isReadWrite;
+
+                // Phase 1: remount read-write (if it isn't already)
+                long phaseStartedAt = System.nanoTime();
+                if (!mount.isReadWrite && !remount(mount, true, false)) {
+                    result.error = "Could not remount "+mount.mountPoint+" read-write";
+                    Log.e(TAG, TAGG+result.error);
+                    return result;
+                }
+                result.remountReadWriteMS = (System.nanoTime() - phaseStartedAt) / 1000000;
+
+                // Phase 2: copies (each left unsynced, since we sync once for all of them below)
+                phaseStartedAt = System.nanoTime();
+                for (File[] copy : copies) {
+                    result.copyResults.add(VerifiedCopy.copy(copy[0], copy[1], false));
+                }
+                result.copyMS = (System.nanoTime() - phaseStartedAt) / 1000000;
+
+                // Phase 3: sync and remount read-only (if that's how we found it), or just sync
+                phaseStartedAt = System.nanoTime();
+                if (!mount.isReadWrite) {
+                    result.restored = remount(mount, false, true);
+                    if (!result.restored) {
+                        Log.w(TAG, TAGG+"Could not remount "+mount.mountPoint+" read-only again (will be after reboot).");
+                    }
+                } else {
+                    final ShellResult syncResult = ShellExecutor.runAsRoot("/system/bin/sync", SYNC_AND_REMOUNT_TIMEOUT_MS);
+                    if (syncResult.exitCode != 0) {
+                        Log.w(TAG, TAGG+"Sync failed ("+syncResult+").");
+                    }
+                    result.restored = true;
+                }
+                result.syncAndRemountReadOnlyMS = (System.nanoTime() - phaseStartedAt) / 1000000;
+            }
+
+            result.totalMS = (System.nanoTime() - startedAt) / 1000000;
+            Log.i(TAG, TAGG+result);
+            return result;
+        }
+    }
+
+    /** Outcome and timings of a transaction. */
+    public static class TransactionResult {
+        public boolean wasReadWrite = false;
+        public boolean restored = false;                                                            //mount is back the way we found it
+        public final List<VerifiedCopy.Result> copyResults = new ArrayList<>();                     //in the order the copies were added
+        public long remountReadWriteMS = -1;
+        public long copyMS = -1;
+        public long syncAndRemountReadOnlyMS = -1;
+        public long totalMS = -1;
+        public String error = null;
+
+        /** Returns true if the mount could be made writable and every copy was verified. */
+        public boolean isSuccess() {
+            if (error != null) {
+                return false;
+            }
+            for (VerifiedCopy.Result copyResult : copyResults) {
+                if (!copyResult.isVerified()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public List<VerifiedCopy.Result> getCopyResults() {
+            return Collections.unmodifiableList(copyResults);
+        }
+
+        @Override
+        public String toString() {
+            return (isSuccess() ? "Succeeded" : "Failed" + (error != null ? " (" + error + ")" : ""))
+                    + ": " + copyResults.size() + " copies, remount-rw " + remountReadWriteMS + "ms"
+                    + (wasReadWrite ? " (was already rw)" : "") + ", copy " + copyMS + "ms, sync/remount-ro "
+                    + syncAndRemountReadOnlyMS + "ms" + (restored ? "" : " (NOT restored)") + ", total " + totalMS + "ms";
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ProcessTable
+ * Snapshot of which processes are running, keyed by package (process) name, read straight from /proc/<pid>/cmdline.
+ * Replaces forking "su -c ps | grep" for every "is this app running?" check.
+ *
+ * One snapshot serves every query until it's older than the max-age (short, since processes come and go), so checking
+ * several apps in a row (or the same app from several places) costs one /proc scan, and each lookup is just a map lookup.
+ *
+ * Where /proc is mounted with hidepid (Android 7+), other apps' processes aren't readable by us (decided by whether we
+ * can read init's cmdline, since with hidepid=1 its directory is still there), so the processes are listed as root
+ * through the shared RootShell session instead (one round trip per snapshot, not per check).
+ *
+ * An Android app's process name is its package name, or "<package>:<name>" for its extra (android:process) processes.
+ * Both count as that package running.
+ *
+ * Usage:
+ *  if (ProcessTable.getInstance().isRunning("com.example")) ...
+ *  ProcessTable.getInstance().invalidate();     //after starting/stopping something, so the next check sees it
+ *  ProcessTable.getInstance().waitForExit(pids, 5000);     //returns as soon as they're all gone
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ProcessTable {
+    private static final String TAG = ProcessTable.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_AGE_MS = 1000;
+
+    private static final String PROC_DIR = "/proc";
+    private static final int CMDLINE_MAX_BYTES = 256;                                               //plenty for a package/process name (the only part we keep)
+    private static final long ROOT_SCAN_TIMEOUT_MS = 10 * 1000;
+    private static final long EXIT_POLL_INTERVAL_MS = 10;                                           //checking for /proc/<pid> costs microseconds
+    private static final long EXIT_POLL_INTERVAL_MS_ROOT = 50;                                      //each check is a root shell round trip
+
+    private static ProcessTable instance = null;
+
+    private final String procDir;
+    private final byte[] cmdlineBuffer = new byte[CMDLINE_MAX_BYTES];
+    private volatile Snapshot snapshot = null;
+    private Boolean needsRoot = null;                                                               //decided on first use
+
+    /** Return the shared process table. */
+    public static synchronized ProcessTable getInstance() {
+        if (instance == null) {
+            instance = new ProcessTable();
+        }
+        return instance;
+    }
+
+    private ProcessTable() {
+        this(PROC_DIR);
+    }
+
+    /** Constructor, reading the process table from the specified directory instead of /proc (for tests). */
+    ProcessTable(String procDir) {
+        this.procDir = procDir;
+    }
+
+    /** Returns true if any process of the specified package is running (as of a snapshot no older than the default max-age). */
+    public boolean isRunning(String packageName) {
+        return getSnapshot(DEFAULT_MAX_AGE_MS).isRunning(packageName);
+    }
+
+    /** Returns the PIDs of the specified package's processes (empty if none), as of a snapshot no older than the default max-age. */
+    public List<Integer> getPids(String packageName) {
+        return getSnapshot(DEFAULT_MAX_AGE_MS).getPids(packageName);
+    }
+
+    /** Return a snapshot no older than the specified max-age (taking a new one if needed). 0 always takes a new one. */
+    public Snapshot getSnapshot(long maxAgeMS) {
+        Snapshot current = snapshot;
+        if (current != null && current.getAgeMS() < maxAgeMS) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = snapshot;
+            if (current != null && current.getAgeMS() < maxAgeMS) {
+                return current;     //(another thread just took one while we waited)
+            }
+            snapshot = current = scan();
+            return current;
+        }
+    }
+
+    /** Forget the current snapshot, so the next query takes a new one. */
+    public void invalidate() {
+        snapshot = null;
+    }
+
+    /** Wait (up to the specified timeout) for all of the provided processes to exit, returning as soon as they have.
+     * Returns true if they're all gone, false if the deadline passed first.
+     * (Polls for /proc/<pid>, in-process if we can see it, else as root; no pidfd at our API level.) */
+    public boolean waitForExit(List<Integer> pids, long timeoutMS) throws InterruptedException {
+        final String TAGG = "waitForExit("+pids+"): ";
+
+        final long startedAt = System.nanoTime();
+        final long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        List<Integer> remaining = new ArrayList<>(pids);
+
+        while (true) {
+            remaining = (needsRoot() ? getAlive_su(remaining) : getAlive(remaining));
+            if (remaining.isEmpty()) {
+                invalidate();
+                Log.d(TAG, TAGG+"All exited after "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt)+"ms.");
+                return true;
+            }
+            if (System.nanoTime() >= deadline) {
+                Log.w(TAG, TAGG+"Deadline ("+timeoutMS+"ms) passed with "+remaining+" still running.");
+                return false;
+            }
+            Thread.sleep(needsRoot() ? EXIT_POLL_INTERVAL_MS_ROOT : EXIT_POLL_INTERVAL_MS);
+        }
+    }
+
+    private List<Integer> getAlive(List<Integer> pids) {
+        final List<Integer> ret = new ArrayList<>(pids.size());
+        for (Integer pid : pids) {
+            if (new File(procDir, String.valueOf(pid)).exists()) {
+                ret.add(pid);
+            }
+        }
+        return ret;
+    }
+
+    private static List<Integer> getAlive_su(List<Integer> pids) {
+        final StringBuilder commandLine = new StringBuilder("for p in");
+        for (Integer pid : pids) {
+            commandLine.append(' ').append(pid);
+        }
+        commandLine.append("; do [ -d " + PROC_DIR + "/$p ] && echo $p; done; true");
+
+        final ShellResult result = ShellExecutor.runAsRoot(commandLine.toString(), ROOT_SCAN_TIMEOUT_MS);
+        if (!result.isSuccess()) {
+            return pids;     //(don't know, so assume nothing has exited yet)
+        }
+
+        final List<Integer> ret = new ArrayList<>(pids.size());
+        for (String line : result.stdout) {
+            try {
+                ret.add(Integer.valueOf(line.trim()));
+            } catch (NumberFormatException e) {
+                //(not one of ours, skip it)
+            }
+        }
+        return ret;
+    }
+
+    private synchronized boolean needsRoot() {
+        if (needsRoot == null) {
+            // With hidepid we can't read init's cmdline (hidepid=1 still lists /proc/1, it just won't let us into it; hidepid=2
+            // hides it), and neither can we if SELinux keeps us out of other processes; if we can, we can read everything we need to
+            needsRoot = (readProcessName("1") == null);
+            Log.d(TAG, "needsRoot: Process table is "+(needsRoot ? "hidden (hidepid), so will read it as root." : "visible, so will read it in-process."));
+        }
+        return needsRoot;
+    }
+
+    private Snapshot scan() {
+        final String TAGG = "scan: ";
+
+        final long startedAt = System.nanoTime();
+        final Map<String, List<Integer>> pidsByPackage = new HashMap<>();
+
+        if (needsRoot()) {
+            scan_su(pidsByPackage);
+        } else {
+            scanInProcess(pidsByPackage);
+        }
+
+        final Snapshot ret = new Snapshot(pidsByPackage);
+        Log.v(TAG, TAGG+"Found "+pidsByPackage.size()+" process names in "+TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt)+"us.");
+        return ret;
+    }
+
+    private void scanInProcess(Map<String, List<Integer>> pidsByPackage) {
+        final String[] procEntries = new File(procDir).list();
+        if (procEntries == null) {
+            Log.w(TAG, "scanInProcess: Could not list "+procDir+".");
+            return;
+        }
+
+        for (String procEntry : procEntries) {
+            if (procEntry.isEmpty() || !Character.isDigit(procEntry.charAt(0))) {
+                continue;
+            }
+            final String name = readProcessName(procEntry);
+            if (name != null) {
+                put(pidsByPackage, name, procEntry);
+            }
+        }
+    }
+
+    /** Read the process's name (argv[0], up to the first NUL) from its cmdline, or null if it has none (kernel thread) or is gone. */
+    private String readProcessName(String pid) {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(procDir + "/" + pid + "/cmdline");
+            final int count = fis.read(cmdlineBuffer);
+            int length = 0;
+            while (length < count && cmdlineBuffer[length] != 0) {
+                length++;
+            }
+            return (length > 0 ? new String(cmdlineBuffer, 0, length, StandardCharsets.UTF_8) : null);
+        } catch (IOException e) {
+            return null;     //(process went away, or isn't ours to look at)
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    //(nothing to do)
+                }
+            }
+        }
+    }
+
+    /** List processes as root, in one round trip, with ps (one fork, rather than one per process to read each cmdline).
+     * Toybox ps (Android 8+) needs "-A" to list every process, and prints "PID NAME" lines with our "-o" format; older
+     * toolbox ps takes no such options (treats "-A" as a name filter, so lists nothing), but plain "ps" lists everything
+     * as "USER PID PPID VSIZE RSS WCHAN PC [S] NAME". We run both and take whatever lines we can parse. */
+    private void scan_su(Map<String, List<Integer>> pidsByPackage) {
+        final ShellResult result = ShellExecutor.runAsRoot("/system/bin/ps -A -o PID,NAME 2>/dev/null; /system/bin/ps", ROOT_SCAN_TIMEOUT_MS);
+        if (result.stdout.isEmpty()) {
+            Log.w(TAG, "scan_su: Could not list processes as root ("+result+").");
+            return;
+        }
+        parsePsOutput(result.stdout, pidsByPackage);
+    }
+
+    /** Add the processes in ps's output (either format; see scan_su) to the provided map, each only once. */
+    static void parsePsOutput(List<String> stdout, Map<String, List<Integer>> pidsByPackage) {
+        final Map<String, Integer> seen = new HashMap<>();
+        for (String line : stdout) {
+            final String[] fields = line.trim().split("\\s+");
+            final String pid = (fields.length == 2 ? fields[0] : (fields.length > 2 ? fields[1] : ""));
+            final String name = fields[fields.length - 1];
+            if (pid.isEmpty() || !Character.isDigit(pid.charAt(0)) || seen.put(pid + " " + name, 0) != null) {
+                continue;     //(header line, or already have it from the other listing)
+            }
+            put(pidsByPackage, name, pid);
+        }
+    }
+
+    private static void put(Map<String, List<Integer>> pidsByPackage, String processName, String pid) {
+        final int colon = processName.indexOf(':');
+        final String packageName = (colon > 0 ? processName.substring(0, colon) : processName);
+        try {
+            List<Integer> pids = pidsByPackage.get(packageName);
+            if (pids == null) {
+                pids = new ArrayList<>(1);
+                pidsByPackage.put(packageName, pids);
+            }
+            pids.add(Integer.valueOf(pid));
+        } catch (NumberFormatException e) {
+            //(not a process entry, skip it)
+        }
+    }
+
+    /** One scan of the process table. Immutable. */
+    public static class Snapshot {
+        private final long takenAt = System.nanoTime();
+        private final Map<String, List<Integer>> pidsByPackage;
+
+        Snapshot(Map<String, List<Integer>> pidsByPackage) {
+            this.pidsByPackage = pidsByPackage;
+        }
+
+        /** Returns true if any process of the specified package was running. */
+        public boolean isRunning(String packageName) {
+            return pidsByPackage.containsKey(packageName);
+        }
+
+        /** Returns the PIDs of the specified package's processes (empty if none). */
+        public List<Integer> getPids(String packageName) {
+            final List<Integer> pids = pidsByPackage.get(packageName);
+            return (pids == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(pids));
+        }
+
+        public long getAgeMS() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - takenAt);
+        }
+    }
+}
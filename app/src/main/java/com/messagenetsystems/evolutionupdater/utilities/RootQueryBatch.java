@@ -0,0 +1,189 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** RootQueryBatch
+ * Collects several root shell queries (e.g. "pm path" for each of our packages, "md5sum" for each of some files) and
+ * runs them all in a single round trip through the shared RootShell session, instead of one round trip (or, before
+ * RootShell, one su fork) per query.
+ *
+ * Each query's output is framed on stdout with marker lines that include a random nonce (new for each batch), so
+ * nothing a query prints (file names, file contents, etc.) can be mistaken for a boundary:
+ *
+ *  @@Q <nonce> <index> BEGIN
+ *  ...query's stdout...
+ *  @@Q <nonce> <index> END <exitCode>
+ *
+ * A query whose END marker never shows up (e.g. the batch timed out) is left with an exit code of EXIT_CODE_FAILED.
+ * Queries' stderr isn't separated per query; it's just logged for the batch as a whole.
+ *
+ * Usage:
+ *  RootQueryBatch batch = new RootQueryBatch();
+ *  RootQueryBatch.Query pathQuery = batch.add("/system/bin/pm path com.example");
+ *  RootQueryBatch.Query md5Query = batch.add("/system/bin/md5sum /data/app/x.apk");
+ *  batch.execute();
+ *  if (pathQuery.isSuccess()) ... pathQuery.getLastStdoutLine() ...
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class RootQueryBatch {
+    private static final String TAG = RootQueryBatch.class.getSimpleName();
+
+    public static final int EXIT_CODE_FAILED = ShellResult.EXIT_CODE_FAILED;
+
+    private static final String MARKER_PREFIX = "@@Q ";
+    private static final String MARKER_BEGIN = "BEGIN";
+    private static final String MARKER_END = "END";
+
+    final String markerPrefix = MARKER_PREFIX + Long.toHexString(new Random().nextLong()) + " ";   //(package-private for tests)
+    private final List<Query> queries = new ArrayList<>();
+    private boolean executed = false;
+
+    /** Add a query (shell command line) to the batch. Its results are available from the returned Query after execute(). */
+    public Query add(String command) {
+        if (executed) {
+            throw new IllegalStateException("Batch has already been executed.");
+        }
+        Query query = new Query(queries.size(), command);
+        queries.add(query);
+        return query;
+    }
+
+    /** Returns how many queries are in the batch. */
+    public int size() {
+        return queries.size();
+    }
+
+    /** Run all the queries in one round trip, waiting up to the default timeout. */
+    public void execute() {
+        execute(ShellExecutor.DEFAULT_TIMEOUT_MS);
+    }
+
+    /** Run all the queries in one round trip, waiting up to the specified timeout (for the whole batch). */
+    public void execute(long timeoutMS) {
+        final String TAGG = "execute: ";
+
+        if (executed) {
+            throw new IllegalStateException("Batch has already been executed.");
+        }
+        executed = true;
+
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        final StringBuilder script = new StringBuilder();
+        for (Query query : queries) {
+            script.append("echo \"").append(markerPrefix).append(query.index).append(' ').append(MARKER_BEGIN).append("\"\n")
+                    .append("{\n").append(query.command).append("\n} </dev/null\n")
+                    .append("echo \"").append(markerPrefix).append(query.index).append(' ').append(MARKER_END).append(" $?\"\n");
+        }
+
+        ShellResult result = ShellExecutor.runAsRoot(script.toString(), timeoutMS);
+
+        parse(result.stdout);
+
+        for (String line : result.stderr) {
+            Log.w(TAG, TAGG+"stderr line: "+line);
+        }
+
+        Log.d(TAG, TAGG+"Ran "+queries.size()+" queries in one round trip ("+result.durationMS+"ms).");
+    }
+
+    /** Assign the output lines between each query's markers to that query. (Package-private for tests.) */
+    void parse(List<String> stdout) {
+        final String TAGG = "parse: ";
+
+        Query current = null;
+
+        for (String line : stdout) {
+            final int markerIndex = line.indexOf(markerPrefix);
+            if (markerIndex < 0) {
+                if (current != null) {
+                    current.stdout.add(line);
+                } else {
+                    Log.v(TAG, TAGG+"Ignoring line outside of any query: \""+line+"\".");
+                }
+                continue;
+            }
+
+            if (markerIndex > 0 && current != null) {
+                current.stdout.add(line.substring(0, markerIndex));                                 //(query's last output had no newline)
+            }
+
+            final String[] fields = line.substring(markerIndex + markerPrefix.length()).trim().split(" ");
+            final Query query = getQuery(fields[0]);
+            if (query == null) {
+                Log.w(TAG, TAGG+"Ignoring malformed marker: \""+line+"\".");
+                continue;
+            }
+
+            if (MARKER_BEGIN.equals(fields.length > 1 ? fields[1] : null)) {
+                current = query;
+            } else if (MARKER_END.equals(fields.length > 1 ? fields[1] : null) && query == current) {
+                try {
+                    query.exitCode = Integer.parseInt(fields.length > 2 ? fields[2] : "");
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, TAGG+"Could not parse exit code from \""+line+"\".");
+                }
+                query.completed = true;
+                current = null;
+            }
+        }
+    }
+
+    private Query getQuery(String indexField) {
+        try {
+            final int index = Integer.parseInt(indexField);
+            return (index >= 0 && index < queries.size() ? queries.get(index) : null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** One query in the batch, and (after the batch is executed) its results. */
+    public static class Query {
+        private final int index;
+        private final String command;
+        private final List<String> stdout = new ArrayList<>();
+        private int exitCode = EXIT_CODE_FAILED;
+        private boolean completed = false;
+
+        Query(int index, String command) {
+            this.index = index;
+            this.command = command;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /** Returns true if the query ran to completion (regardless of its exit code). */
+        public boolean isCompleted() {
+            return completed;
+        }
+
+        /** Returns the query's exit code, or EXIT_CODE_FAILED if it didn't complete. */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /** Returns true if the query completed with a zero exit code. */
+        public boolean isSuccess() {
+            return completed && exitCode == 0;
+        }
+
+        public List<String> getStdout() {
+            return Collections.unmodifiableList(stdout);
+        }
+
+        /** Returns the last line the query printed to stdout, or null if it printed nothing. */
+        public String getLastStdoutLine() {
+            return (stdout.isEmpty() ? null : stdout.get(stdout.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** RootShell
+ * A single long-lived root ("su") shell session that commands are run in, rather than starting a new su process for
+ * every command (on our SuperSU-based images, each of those costs 100-300ms before the command even begins).
+ *
+ * Each command is written to the shell followed by a sentinel (unique per command) echoed to both stdout and stderr,
+ * with the command's exit code appended to the stdout one:
+ *
+ *  { <command>
+ *  } </dev/null
+ *  echo "<sentinel> $?"; echo "<sentinel>" >&2
+ *
+ * Output is collected until both sentinels show up, so we know exactly where each command's output ends, without
+ * having to close the shell. Commands get their stdin from /dev/null, so nothing can read our framing lines as input.
+ *
+ * Callers are serialized (one command at a time). Commands that can take minutes (e.g. pm install) go to a second,
+ * separate session (getLongRunningInstance), so they don't hold up the quick root queries everything else makes.
+ * If the shell dies, it's restarted for the next command. If a command
+ * passes its deadline (or the caller is interrupted), the shell is in an unknown state, so the shell and everything it
+ * started are killed (see ShellExecutor.killProcessTree) and a new shell is started for the next command.
+ * When a shell starts, it reports its PID (which is how we know what to kill), which also confirms su granted it.
+ *
+ * NOTES:
+ *  - Commands run in the session's own shell, so things like "cd" and variables persist. Don't rely on (or "exit") that.
+ *  - A command with unbalanced quotes will swallow the framing, and just time out.
+ *  - Not for streaming binary data to a command's stdin (see VerifiedCopy for that).
+ *  - The su binary can be overridden with the "evolutionupdater.su" system property, so this (and everything else
+ *    that runs things as root) can be exercised on a desktop against a stand-in (see benchmark/fakesu).
+ *
+ * Usage:
+ *  ShellResult result = RootShell.getInstance().run("/system/bin/pm path com.example");
+ *  if (result.isSuccess()) { ... result.stdout ... }
+ */
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class RootShell {
+    private static final String TAG = RootShell.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MS = 60 * 1000;                                        //generous, since the very first command may have to wait for su to grant us
+
+    static final String SU_BINARY = System.getProperty("evolutionupdater.su", "su");                //(overridable only for running off-device, e.g. benchmark/fakesu)
+
+    private static RootShell instance = null;
+    private static RootShell longRunningInstance = null;
+
+    private final String sessionToken = Long.toHexString(new Random().nextLong());
+    private long commandSequence = 0;
+
+    private Process process = null;
+    private int shellPid = -1;
+    private OutputStream stdin = null;
+    private LinkedBlockingQueue<Line> outputLines = null;                                           //both streams, in arrival order (new queue for each shell)
+
+    /** Return the shared root shell session (the shell itself is only started when the first command is run). */
+    public static synchronized RootShell getInstance() {
+        if (instance == null) {
+            instance = new RootShell();
+        }
+        return instance;
+    }
+
+    /** Return the session for commands that can take minutes (e.g. pm install), kept apart from the shared session so
+     * quick root queries aren't stuck waiting behind them (the shell itself is only started when the first command is run). */
+    public static synchronized RootShell getLongRunningInstance() {
+        if (longRunningInstance == null) {
+            longRunningInstance = new RootShell();
+        }
+        return longRunningInstance;
+    }
+
+    /** End every root shell session that has been started (a new one is started if another command is run). */
+    public static void closeAll() {
+        final RootShell shared;
+        final RootShell longRunning;
+        synchronized (RootShell.class) {
+            shared = instance;
+            longRunning = longRunningInstance;
+        }
+        if (shared != null) {
+            shared.close();
+        }
+        if (longRunning != null) {
+            longRunning.close();
+        }
+    }
+
+    /** Run the provided command line as root, waiting up to the default timeout. Never throws; see the returned ShellResult. */
+    public ShellResult run(String command) {
+        return run(command, DEFAULT_TIMEOUT_MS);
+    }
+
+    /** Run the provided command line as root, waiting up to the specified timeout. Never throws; see the returned ShellResult. */
+    public synchronized ShellResult run(String command, long timeoutMS) {
+        final String TAGG = "run(\""+command+"\"): ";
+
+        final long startedAt = System.nanoTime();
+        final long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        final String sentinel = "__ROOTSHELL_" + sessionToken + "_" + (++commandSequence) + "__";
+        ShellResult result;
+
+        try {
+            try {
+                ensureStarted(deadline);
+                write(command, sentinel);
+            } catch (IOException e) {
+                // The shell may have died since the last command (we only find out when we write to it), so try a fresh one
+                Log.i(TAG, TAGG+"Shell is not usable ("+e.getMessage()+"), restarting it...");
+                destroy();
+                ensureStarted(deadline);
+                write(command, sentinel);
+            }
+
+            result = collect(sentinel, deadline, startedAt);
+        } catch (IOException e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            result = ShellResult.failed(Collections.<String>emptyList(), Collections.singletonList(String.valueOf(e.getMessage())), elapsedMS(startedAt), false);
+        } catch (InterruptedException e) {
+            Log.w(TAG, TAGG+"Interrupted while waiting for command to finish.");
+            Thread.currentThread().interrupt();
+            result = ShellResult.failed(Collections.<String>emptyList(), Collections.<String>emptyList(), elapsedMS(startedAt), false);
+        }
+
+        if (result.exitCode == ShellResult.EXIT_CODE_FAILED) {
+            kill();     //(don't know what state it's in, or what it's still running, so next command gets a new one)
+        }
+
+        Log.v(TAG, TAGG+"Returning "+result+".");
+        return result;
+    }
+
+    /** End the shell session (a new one is started if another command is run). */
+    public synchronized void close() {
+        if (process == null) {
+            return;
+        }
+
+        try {
+            stdin.write("exit\n".getBytes());
+            stdin.flush();
+        } catch (IOException e) {
+            Log.v(TAG, "close: Shell was already gone ("+e.getMessage()+").");
+        }
+        destroy();
+    }
+
+    /** Start a new shell if there isn't a live one, and have it tell us its PID (before the deadline). */
+    private void ensureStarted(long deadline) throws IOException, InterruptedException {
+        if (process != null && isAlive(process)) {
+            return;
+        }
+        destroy();
+
+        final long startedAt = System.nanoTime();
+        process = Runtime.getRuntime().exec(SU_BINARY);
+        stdin = process.getOutputStream();
+        outputLines = new LinkedBlockingQueue<>();
+        startReader(process.getInputStream(), false, outputLines);
+        startReader(process.getErrorStream(), true, outputLines);
+
+        final String sentinel = "__ROOTSHELL_" + sessionToken + "_START__";
+        write("echo $$", sentinel);
+        final ShellResult result = collect(sentinel, deadline, startedAt);
+        try {
+            shellPid = Integer.parseInt(String.valueOf(result.getLastStdoutLine()).trim());
+        } catch (NumberFormatException e) {
+            kill();
+            throw new IOException("Root shell did not start ("+result+")");
+        }
+
+        Log.d(TAG, "ensureStarted: Started root shell (PID "+shellPid+") in "+elapsedMS(startedAt)+"ms.");
+    }
+
+    private void write(String command, String sentinel) throws IOException {
+        stdin.write(("{\n" + command + "\n} </dev/null\n"
+                + "echo \"" + sentinel + " $?\"; echo \"" + sentinel + "\" >&2\n").getBytes());
+        stdin.flush();
+    }
+
+    /** Gather the command's output until both streams' sentinels arrive, the shell goes away, or the deadline passes. */
+    private ShellResult collect(String sentinel, long deadline, long startedAt) throws InterruptedException {
+        final String TAGG = "collect: ";
+
+        final List<String> stdout = new ArrayList<>();
+        final List<String> stderr = new ArrayList<>();
+        boolean stdoutDone = false;
+        boolean stderrDone = false;
+        int exitCode = ShellResult.EXIT_CODE_FAILED;
+        Line line;
+
+        while (!stdoutDone || !stderrDone) {
+            line = outputLines.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (line == null) {
+                Log.w(TAG, TAGG+"Deadline passed waiting for command to finish.");
+                return ShellResult.failed(stdout, stderr, elapsedMS(startedAt), true);
+            }
+            if (line.text == null) {
+                Log.w(TAG, TAGG+"Shell went away before command finished.");
+                return ShellResult.failed(stdout, stderr, elapsedMS(startedAt), false);
+            }
+
+            final int sentinelIndex = line.text.indexOf(sentinel);
+            final List<String> destination = (line.isStderr ? stderr : stdout);
+
+            if (sentinelIndex < 0) {
+                destination.add(line.text);
+                continue;
+            }
+            if (sentinelIndex > 0) {
+                destination.add(line.text.substring(0, sentinelIndex));                             //(command's last output had no newline)
+            }
+
+            if (line.isStderr) {
+                stderrDone = true;
+            } else {
+                stdoutDone = true;
+                try {
+                    exitCode = Integer.parseInt(line.text.substring(sentinelIndex + sentinel.length()).trim());
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, TAGG+"Could not parse exit code from \""+line.text+"\".");
+                }
+            }
+        }
+
+        return new ShellResult(exitCode, stdout, stderr, elapsedMS(startedAt), false);
+    }
+
+    /** Kill the shell and anything it's still running, then clean up. */
+    private void kill() {
+        if (shellPid > 0) {
+            ShellExecutor.killProcessTree(shellPid, true);
+        }
+        destroy();
+    }
+
+    private void destroy() {
+        if (process != null) {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                //(nothing to do, it's going away anyway)
+            }
+            process.destroy();
+            Log.d(TAG, "destroy: Root shell destroyed.");
+        }
+        process = null;
+        shellPid = -1;
+        stdin = null;
+        outputLines = null;
+    }
+
+    /** Start a daemon thread that moves the stream's lines to the queue, followed by an end-of-stream marker. */
+    private static void startReader(final InputStream inputStream, final boolean isStderr, final LinkedBlockingQueue<Line> queue) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
+                String text;
+                try {
+                    while ((text = br.readLine()) != null) {
+                        queue.offer(new Line(isStderr, text));
+                    }
+                } catch (IOException e) {
+                    //(stream closed, e.g. shell was destroyed)
+                } finally {
+                    queue.offer(new Line(isStderr, null));
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        //(nothing to do)
+                    }
+                }
+            }
+        }, TAG + (isStderr ? "-stderr" : "-stdout"));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static long elapsedMS(long startedAt) {
+        return (System.nanoTime() - startedAt) / 1000000;
+    }
+
+    /** One line of output (text is null at end of stream). */
+    private static class Line {
+        final boolean isStderr;
+        final String text;
+
+        Line(boolean isStderr, String text) {
+            this.isStderr = isStderr;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ShellExecutor
+ * Runs shell commands, each with a deadline, returning a ShellResult (exit code, stdout and stderr lines, and duration),
+ * either right away (run*) or as a Future (submit*), so the caller can get on with other things meanwhile.
+ *
+ * Two kinds of commands:
+ *  - Root commands (runAsRoot/submitAsRoot) go through the shared RootShell session (no fork per command). Ones that
+ *    can take minutes (submitLongAsRoot) go through a separate session, so they don't hold up the shared one.
+ *  - One-off processes (run/submit) get their own process, for things that can't share a session.
+ *
+ * For one-off processes, stdout and stderr are drained concurrently (on pool threads), so a command can never wedge
+ * because it filled one pipe's buffer while we were waiting on the other (the old read-stdout-to-EOF, then stderr,
+ * then waitFor() pattern could). The deadline covers the process exiting too, not just its streams closing, so one
+ * that closes them and carries on is still stopped. If the deadline passes, the process and everything it started are killed.
+ *
+ * Callers that need to feed a one-off process's stdin (e.g. VerifiedCopy) can use startDraining and awaitExit directly.
+ *
+ * Killing a process tree (killProcessTree):
+ *  We snapshot every process's PID and parent PID from /proc, collect all descendants of the target, and SIGKILL
+ *  all of them (collected first, since killing a parent reparents its children to init). Root process trees are
+ *  listed and killed by a separate one-off su, since the shared session may be the very thing that's wedged.
+ *
+ * Usage:
+ *  ShellResult result = ShellExecutor.runAsRoot("/system/bin/pm list packages", 30 * 1000);
+ *  if (result.isSuccess()) { ... }
+ *
+ *  Future<ShellResult> future = ShellExecutor.submitLongAsRoot("/system/bin/pm install -r /sdcard/x.apk", 5 * 60 * 1000);
+ *  while ((result = ShellExecutor.await(future, 15 * 1000)) == null) { ...still going, show progress... }
+ */
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class ShellExecutor {
+    private static final String TAG = ShellExecutor.class.getSimpleName();
+
+    public static final long DEFAULT_TIMEOUT_MS = RootShell.DEFAULT_TIMEOUT_MS;
+
+    private static final String SU_BINARY = RootShell.SU_BINARY;
+    private static final long KILL_HELPER_TIMEOUT_MS = 10 * 1000;
+    private static final long EXIT_POLL_INTERVAL_MS = 10;                                           //(Process.waitFor with a timeout needs API 26)
+
+    private static ExecutorService executor = null;
+
+    /** Run the provided command (argv, no shell involved) as a one-off process, and wait for its result. */
+    public static ShellResult run(String[] command, long timeoutMS) {
+        return execute(command, timeoutMS);
+    }
+
+    /** Run the provided command line as root (in the shared RootShell session), and wait for its result. */
+    public static ShellResult runAsRoot(String commandLine) {
+        return RootShell.getInstance().run(commandLine, DEFAULT_TIMEOUT_MS);
+    }
+
+    /** Run the provided command line as root (in the shared RootShell session), and wait up to the specified timeout for its result. */
+    public static ShellResult runAsRoot(String commandLine, long timeoutMS) {
+        return RootShell.getInstance().run(commandLine, timeoutMS);
+    }
+
+    /** Start the provided command (argv, no shell involved) as a one-off process. */
+    public static Future<ShellResult> submit(final String[] command, final long timeoutMS) {
+        return getExecutor().submit(new Callable<ShellResult>() {
+            @Override
+            public ShellResult call() {
+                return execute(command, timeoutMS);
+            }
+        });
+    }
+
+    /** Start the provided command line as root (in the shared RootShell session). */
+    public static Future<ShellResult> submitAsRoot(final String commandLine, final long timeoutMS) {
+        return getExecutor().submit(new Callable<ShellResult>() {
+            @Override
+            public ShellResult call() {
+                return RootShell.getInstance().run(commandLine, timeoutMS);
+            }
+        });
+    }
+
+    /** Start the provided command line as root in the separate long-running session (see RootShell.getLongRunningInstance),
+     * so a command that takes minutes (e.g. pm install) doesn't hold up other root queries. */
+    public static Future<ShellResult> submitLongAsRoot(final String commandLine, final long timeoutMS) {
+        return getExecutor().submit(new Callable<ShellResult>() {
+            @Override
+            public ShellResult call() {
+                return RootShell.getLongRunningInstance().run(commandLine, timeoutMS);
+            }
+        });
+    }
+
+    /** Wait for a submitted command's result (its own deadline still applies). Never throws; an interrupted wait gives a failed result. */
+    public static ShellResult await(Future<ShellResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "await: Exception caught: "+e.getMessage());
+        }
+        return ShellResult.failed(Collections.<String>emptyList(), Collections.<String>emptyList(), 0, false);
+    }
+
+    /** Wait up to the specified time for a submitted command's result, returning null if it's still running (so the caller
+     * can do something meanwhile, then wait again). Never throws; an interrupted wait gives a failed result. */
+    public static ShellResult await(Future<ShellResult> future, long waitMS) {
+        try {
+            return future.get(waitMS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "await: Exception caught: "+e.getMessage());
+        }
+        return ShellResult.failed(Collections.<String>emptyList(), Collections.<String>emptyList(), 0, false);
+    }
+
+    /** Run a one-off process, draining both of its streams concurrently, and kill its process tree if the deadline passes. */
+    private static ShellResult execute(String[] command, long timeoutMS) {
+        final String TAGG = "execute(\""+command[command.length - 1]+"\"): ";
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command).start();
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            return ShellResult.failed(Collections.<String>emptyList(), Collections.singletonList(String.valueOf(e.getMessage())), 0, false);
+        }
+
+        final ShellResult result = awaitExit(process, startDraining(process), timeoutMS);
+        Log.v(TAG, TAGG+"Returning "+result+".");
+        return result;
+    }
+
+    /** Start draining the provided process's stdout and stderr in the background (do this right after starting it,
+     * before feeding it any stdin, so it can never block on a full output pipe). Then use awaitExit to get the result. */
+    public static Drains startDraining(Process process) {
+        return new Drains(getExecutor().submit(drain(process.getInputStream())), getExecutor().submit(drain(process.getErrorStream())));
+    }
+
+    /** Wait (up to the specified timeout) for the provided process to exit and its output to be drained.
+     * If the deadline passes, the process and everything it started are killed. Never throws; see the returned ShellResult. */
+    public static ShellResult awaitExit(Process process, Drains drains, long timeoutMS) {
+        final String TAGG = "awaitExit: ";
+
+        final long startedAt = System.nanoTime();
+        final long deadline = startedAt + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        ShellResult result;
+
+        try {
+            // Streams reach their ends when the process (and anything else holding them) exits
+            final List<String> stdout = drains.stdout.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            final List<String> stderr = drains.stderr.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            final int exitCode = waitForExit(process, deadline);
+
+            result = new ShellResult(exitCode, stdout, stderr, elapsedMS(startedAt), false);
+        } catch (TimeoutException e) {
+            Log.w(TAG, TAGG+"Deadline ("+timeoutMS+"ms) passed, killing process.");
+            killProcessTree(getPid(process), false);
+            result = ShellResult.failed(Collections.<String>emptyList(), Collections.<String>emptyList(), elapsedMS(startedAt), true);
+        } catch (InterruptedException e) {
+            Log.w(TAG, TAGG+"Interrupted while waiting, killing process.");
+            killProcessTree(getPid(process), false);
+            Thread.currentThread().interrupt();
+            result = ShellResult.failed(Collections.<String>emptyList(), Collections.<String>emptyList(), elapsedMS(startedAt), false);
+        } catch (ExecutionException e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            result = ShellResult.failed(Collections.<String>emptyList(), Collections.singletonList(String.valueOf(e.getMessage())), elapsedMS(startedAt), false);
+        } finally {
+            process.destroy();     //(also closes its streams, which ends any drains still running)
+            drains.stdout.cancel(true);
+            drains.stderr.cancel(true);
+        }
+
+        return result;
+    }
+
+    /** Wait until the provided process exits, or the deadline (System.nanoTime) passes, in which case TimeoutException is thrown
+     * (its streams closing doesn't mean it has exited; it may have closed them and carried on). */
+    private static int waitForExit(Process process, long deadline) throws InterruptedException, TimeoutException {
+        while (true) {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                //(still running)
+            }
+            final long remainingMS = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMS <= 0) {
+                throw new TimeoutException();
+            }
+            Thread.sleep(Math.min(EXIT_POLL_INTERVAL_MS, remainingMS));
+        }
+    }
+
+    /** Kill the process with the specified PID and all of its descendants.
+     * If asRoot, the processes are listed and killed as root (with a one-off su, not the shared session). */
+    public static void killProcessTree(int pid, boolean asRoot) {
+        final String TAGG = "killProcessTree("+pid+(asRoot ? ", as root" : "")+"): ";
+
+        if (pid <= 0) {
+            Log.w(TAG, TAGG+"No PID to kill.");
+            return;
+        }
+
+        final Map<Integer, Integer> parentPids = (asRoot ? readParentPids_su() : readParentPids());
+        final List<Integer> pids = new ArrayList<>();
+        pids.add(pid);
+        for (int i = 0; i < pids.size(); i++) {
+            for (Map.Entry<Integer, Integer> entry : parentPids.entrySet()) {
+                if (entry.getValue().equals(pids.get(i)) && !pids.contains(entry.getKey())) {
+                    pids.add(entry.getKey());
+                }
+            }
+        }
+
+        Log.i(TAG, TAGG+"Killing "+pids+".");
+
+        if (asRoot) {
+            StringBuilder commandLine = new StringBuilder("kill -9");
+            for (Integer p : pids) {
+                commandLine.append(' ').append(p);
+            }
+            execute(new String[]{SU_BINARY, "-c", commandLine.toString()}, KILL_HELPER_TIMEOUT_MS);
+        } else {
+            for (Integer p : pids) {
+                try {
+                    Os.kill(p, OsConstants.SIGKILL);
+                } catch (ErrnoException e) {
+                    Log.v(TAG, TAGG+"Could not kill "+p+" ("+e.getMessage()+"), probably already gone.");
+                }
+            }
+        }
+    }
+
+    /** Returns the PID -> parent PID of every process we can see in /proc. */
+    private static Map<Integer, Integer> readParentPids() {
+        final Map<Integer, Integer> ret = new HashMap<>();
+        final File[] procEntries = new File("/proc").listFiles();
+        if (procEntries == null) {
+            return ret;
+        }
+
+        for (File procEntry : procEntries) {
+            if (!isNumeric(procEntry.getName())) {
+                continue;
+            }
+            BufferedReader br = null;
+            try {
+                br = new BufferedReader(new FileReader(new File(procEntry, "stat")));
+                parseStatLine(br.readLine(), ret);
+            } catch (IOException e) {
+                //(process went away, or isn't ours to look at)
+            } finally {
+                if (br != null) {
+                    try {
+                        br.close();
+                    } catch (IOException e) {
+                        //(nothing to do)
+                    }
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /** Returns the PID -> parent PID of every process, as seen by root (with a one-off su). */
+    private static Map<Integer, Integer> readParentPids_su() {
+        final Map<Integer, Integer> ret = new HashMap<>();
+        final ShellResult result = execute(new String[]{SU_BINARY, "-c", "for f in /proc/[0-9]*/stat; do read -r l < $f && echo \"$l\"; done"}, KILL_HELPER_TIMEOUT_MS);
+        for (String line : result.stdout) {
+            parseStatLine(line, ret);
+        }
+        return ret;
+    }
+
+    /** Parse a /proc/<pid>/stat line ("pid (comm) state ppid ...") into the map.
+     * The command name can contain spaces and parentheses, so fields are found after its LAST closing parenthesis. */
+    private static void parseStatLine(String line, Map<Integer, Integer> map) {
+        if (line == null) {
+            return;
+        }
+        final int commEnd = line.lastIndexOf(')');
+        final int pidEnd = line.indexOf(' ');
+        if (commEnd < 0 || pidEnd < 0) {
+            return;
+        }
+        final String[] fields = line.substring(commEnd + 1).trim().split(" ");
+        try {
+            map.put(Integer.parseInt(line.substring(0, pidEnd)), Integer.parseInt(fields[1]));
+        } catch (Exception e) {
+            //(malformed, skip it)
+        }
+    }
+
+    /** Returns the PID of the provided process, or -1 if it can't be determined.
+     * (Process has no public PID accessor at our API level, but every implementation keeps it in a "pid" field.) */
+    static int getPid(Process process) {
+        if (process == null) {
+            return -1;
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            Log.w(TAG, "getPid: Could not determine PID: "+e.getMessage());
+            return -1;
+        }
+    }
+
+    private static Callable<List<String>> drain(final InputStream inputStream) {
+        return new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                final List<String> lines = new ArrayList<>();
+                final BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
+                String line;
+                try {
+                    while ((line = br.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } finally {
+                    br.close();
+                }
+                return lines;
+            }
+        };
+    }
+
+    /** A process's stdout and stderr, being drained in the background (see startDraining). */
+    public static class Drains {
+        final Future<List<String>> stdout;
+        final Future<List<String>> stderr;
+
+        Drains(Future<List<String>> stdout, Future<List<String>> stderr) {
+            this.stdout = stdout;
+            this.stderr = stderr;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int threadNumber = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG + "-" + (++threadNumber));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static boolean isNumeric(String s) {
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long elapsedMS(long startedAt) {
+        return (System.nanoTime() - startedAt) / 1000000;
+    }
+}
@@ -0,0 +1,48 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ShellResult
+ * Outcome of a shell command (see ShellExecutor and RootShell): exit code, output lines, and how long it took.
+ * Immutable.
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+public class ShellResult {
+    public static final int EXIT_CODE_FAILED = -1;                                                  //command didn't complete (couldn't start, shell died, or deadline passed)
+
+    public final int exitCode;
+    public final List<String> stdout;
+    public final List<String> stderr;
+    public final long durationMS;
+    public final boolean timedOut;
+
+    ShellResult(int exitCode, List<String> stdout, List<String> stderr, long durationMS, boolean timedOut) {
+        this.exitCode = exitCode;
+        this.stdout = Collections.unmodifiableList(stdout);
+        this.stderr = Collections.unmodifiableList(stderr);
+        this.durationMS = durationMS;
+        this.timedOut = timedOut;
+    }
+
+    /** Returns a result for a command that didn't complete. */
+    static ShellResult failed(List<String> stdout, List<String> stderr, long durationMS, boolean timedOut) {
+        return new ShellResult(EXIT_CODE_FAILED, stdout, stderr, durationMS, timedOut);
+    }
+
+    /** Returns true if the command completed with a zero exit code. */
+    public boolean isSuccess() {
+        return exitCode == 0;
+    }
+
+    /** Returns the last line the command printed to stdout, or null if it printed nothing. */
+    public String getLastStdoutLine() {
+        return (stdout.isEmpty() ? null : stdout.get(stdout.size() - 1));
+    }
+
+    @Override
+    public String toString() {
+        return "exit code " + exitCode + (timedOut ? " (timed out)" : "") + " after " + durationMS + "ms ("
+                + stdout.size() + " stdout lines, " + stderr.size() + " stderr lines)";
+    }
+}
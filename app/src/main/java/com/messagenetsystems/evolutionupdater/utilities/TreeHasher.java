@@ -0,0 +1,233 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** TreeHasher
+ * Calculates a chunked ("tree") digest of a file, using multiple cores.
+ *
+ * A plain MD5 has to be calculated serially, start to finish, on one core. For our larger APKs, that means the
+ * update cycle sits waiting for seconds while the other cores are idle. Instead, this splits the file into
+ * fixed-size segments, hashes the segments in parallel on a small bounded fork-join pool, and then combines the
+ * segment digests (in order) into a single root digest:
+ *
+ *  root = MD5( MD5(segment 0) || MD5(segment 1) || ... || MD5(segment n-1) )
+ *
+ * The result is NOT the same value as a plain MD5 of the file, so it's returned in its own tagged format, which
+ * also records the segment size (anyone producing one for comparison, like the server, must use the same size):
+ *
+ *  "tree:md5:<segmentSizeKiB>:<rootHex>"       e.g. "tree:md5:4096:9e107d9d372bb6826bd81d3542a419d6"
+ *
+ * An empty file has no segments, so its root is just the MD5 of nothing.
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class TreeHasher {
+    private static final String TAG = TreeHasher.class.getSimpleName();
+
+    public static final String TREE_PREFIX = "tree:";
+    public static final String TREE_ALGORITHM_MD5 = "md5";
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int MAX_PARALLELISM = 4;                                                    //our boards are quad-core at most, and we don't want to starve everything else anyway
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private static ForkJoinPool pool = null;
+
+    // Each pool thread gets its own reusable read buffer
+    private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+    };
+
+    /** Calculate the tree digest of the specified file, using the default segment size. */
+    public static String calculate(File file) throws IOException {
+        return calculate(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Calculate the tree digest of the specified file, using the specified segment size (must be a whole number of KiB).
+     * Returns the digest in "tree:md5:<segmentSizeKiB>:<rootHex>" format. */
+    public static String calculate(File file, int segmentSize) throws IOException {
+        final String TAGG = "calculate(\""+file.getPath()+"\", "+segmentSize+"): ";
+
+        if (segmentSize <= 0 || segmentSize % 1024 != 0) {
+            throw new IllegalArgumentException("Segment size must be a positive whole number of KiB: "+segmentSize);
+        }
+
+        final long startedAt = System.nanoTime();
+        FileInputStream fileInputStream = null;
+        byte[][] segmentDigests;
+        long size;
+
+        try {
+            fileInputStream = new FileInputStream(file);
+            FileChannel channel = fileInputStream.getChannel();
+            size = channel.size();
+
+            final long segmentCount = (size + segmentSize - 1) / segmentSize;
+            if (segmentCount > Integer.MAX_VALUE) {
+                throw new IOException("File has too many segments: "+segmentCount);
+            }
+            segmentDigests = new byte[(int) segmentCount][];
+
+            try {
+                getPool().invoke(new SegmentsTask(channel, size, segmentSize, segmentDigests, 0, segmentDigests.length));
+            } catch (SegmentException e) {
+                //(the pool may have wrapped the exception thrown by the worker thread, so dig for the original)
+                Throwable cause = e.getCause();
+                while (cause != null && !(cause instanceof IOException)) {
+                    cause = cause.getCause();
+                }
+                throw (cause != null ? (IOException) cause : new IOException(e));
+            }
+        } finally {
+            if (fileInputStream != null) {
+                try {
+                    fileInputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, TAGG+"Exception caught closing file: "+e.getMessage());
+                }
+            }
+        }
+
+        // Combine the segment digests (in order) into the root digest
+        final MessageDigest rootDigest = newMD5();
+        for (byte[] segmentDigest : segmentDigests) {
+            rootDigest.update(segmentDigest);
+        }
+
+        final String ret = format(segmentSize, ChecksumEngine.toHex(rootDigest.digest()));
+
+        Log.v(TAG, TAGG+"Calculated "+ret+" from "+size+" bytes ("+segmentDigests.length+" segments) in "+((System.nanoTime() - startedAt) / 1000000)+"ms.");
+        return ret;
+    }
+
+    /** Returns true if the provided value is a tree digest (as opposed to a plain checksum). */
+    public static boolean isTreeDigest(String value) {
+        return value != null && value.startsWith(TREE_PREFIX);
+    }
+
+    /** Return the segment size (bytes) recorded in the provided tree digest, or -1 if it isn't a valid one we can produce. */
+    public static int parseSegmentSize(String value) {
+        if (!isTreeDigest(value)) {
+            return -1;
+        }
+
+        final String[] fields = value.trim().split(":");
+        if (fields.length != 4 || !fields[1].equals(TREE_ALGORITHM_MD5)) {
+            return -1;
+        }
+
+        try {
+            final int segmentSizeKiB = Integer.parseInt(fields[2]);
+            if (segmentSizeKiB <= 0 || segmentSizeKiB > Integer.MAX_VALUE / 1024) {
+                return -1;
+            }
+            return segmentSizeKiB * 1024;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Return the tree digest string for the specified segment size and root digest. */
+    public static String format(int segmentSize, String rootHex) {
+        return TREE_PREFIX + TREE_ALGORITHM_MD5 + ":" + (segmentSize / 1024) + ":" + rootHex;
+    }
+
+    /** Return the shared pool (created on first use), bounded to the number of cores we're allowed to use. */
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) {
+            final int parallelism = Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+            pool = new ForkJoinPool(parallelism);
+            Log.d(TAG, "getPool: Created pool with parallelism of "+parallelism+".");
+        }
+        return pool;
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm not available: "+ChecksumEngine.ALGORITHM_MD5, e);
+        }
+    }
+
+    /** Hashes a range of segments, splitting the range in half until each task only has one segment to do. */
+    private static class SegmentsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int segmentSize;
+        private final byte[][] segmentDigests;
+        private final int from, to;
+
+        SegmentsTask(FileChannel channel, long fileSize, int segmentSize, byte[][] segmentDigests, int from, int to) {
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.segmentSize = segmentSize;
+            this.segmentDigests = segmentDigests;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    segmentDigests[from] = hashSegment(from);
+                }
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(new SegmentsTask(channel, fileSize, segmentSize, segmentDigests, from, middle),
+                    new SegmentsTask(channel, fileSize, segmentSize, segmentDigests, middle, to));
+        }
+
+        /** Hash one segment, using positional reads (so threads don't fight over the channel's position). */
+        private byte[] hashSegment(int segment) {
+            final MessageDigest messageDigest = newMD5();
+            final ByteBuffer buffer = readBuffer.get();
+            long position = (long) segment * segmentSize;
+            final long end = Math.min(fileSize, position + segmentSize);
+            int count;
+
+            try {
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    count = channel.read(buffer, position);
+                    if (count < 0) {
+                        throw new IOException("Unexpected end of file at "+position+" (file shrank while hashing?)");
+                    }
+                    messageDigest.update(buffer.array(), 0, count);
+                    position += count;
+                }
+            } catch (IOException e) {
+                throw new SegmentException(e);
+            }
+
+            return messageDigest.digest();
+        }
+    }
+
+    /** Carries an IOException out of a fork-join task (which can't throw checked exceptions). */
+    private static class SegmentException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SegmentException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** VerifiedCopy
+ * Copies a file to a location only root can write to, hashing it along the way, and then verifies the copy.
+ *
+ * Rather than a shell "cp" followed by separately checksumming both the source and the destination (3 full reads of
+ * the file, each through a forked process), this:
+ *  1. Copy:    Reads the source once, in-process, feeding it to both the digest and a root "cat > destination".
+ *  2. Sync:    Has root set the destination's permissions and flush it to storage (unless the caller syncs once
+ *              for several copies itself, as MountManager's transactions do).
+ *  3. Verify:  Reads the destination once (in-process if we're allowed, otherwise via root md5sum), and compares
+ *              its checksum to the source checksum calculated in step 1.
+ * Bytes and timing for each phase are recorded in the returned Result.
+ *
+ * Usage:
+ *  VerifiedCopy.Result result = VerifiedCopy.copy(new File("/sdcard/x.apk"), new File("/system/priv-app/x.apk"));
+ *  if (result.isVerified()) ...
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class VerifiedCopy {
+    private static final String TAG = VerifiedCopy.class.getSimpleName();
+
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final long COPY_FINISH_TIMEOUT_MS = 60 * 1000;                                   //for cat to finish writing, once it has all the data
+    private static final String DESTINATION_MODE = "644";                                           //what Android expects for APKs in the system partition
+
+    /** Copy the source file to the destination (as root), and verify the copy. Never throws; see the returned Result. */
+    public static Result copy(File source, File destination) {
+        return copy(source, destination, true);
+    }
+
+    /** Copy the source file to the destination (as root), and verify the copy. If sync is false, it's left to the
+     * caller to flush the copy to storage (e.g. once, after several copies). Never throws; see the returned Result. */
+    public static Result copy(File source, File destination, boolean sync) {
+        final String TAGG = "copy(\""+source.getPath()+"\" -> \""+destination.getPath()+"\"): ";
+        Log.v(TAG, TAGG+"Invoked.");
+
+        Result result = new Result();
+
+        try {
+            // Phase 1: stream source through the digest and into root's cat
+            long startedAt = System.nanoTime();
+            result.sourceChecksum = copyAndHash(source, destination, result);
+            result.copyMS = (System.nanoTime() - startedAt) / 1000000;
+            Log.d(TAG, TAGG+"Copied "+result.bytesCopied+" bytes in "+result.copyMS+"ms (source "+result.sourceChecksum+").");
+
+            // Phase 2: set permissions and flush to storage (if we're the ones to)
+            startedAt = System.nanoTime();
+            int exitCode = runAsRoot("/system/bin/chmod " + DESTINATION_MODE + " " + quote(destination.getPath()) + (sync ? " && /system/bin/sync" : ""), null);
+            result.syncMS = (System.nanoTime() - startedAt) / 1000000;
+            if (exitCode != 0) {
+                throw new IOException("chmod"+(sync ? "/sync" : "")+" exited with "+exitCode);
+            }
+            Log.d(TAG, TAGG+(sync ? "Synced" : "Set permissions (sync left to caller)")+" in "+result.syncMS+"ms.");
+
+            // Phase 3: read back the destination once and compare
+            startedAt = System.nanoTime();
+            result.destinationChecksum = checksumDestination(destination, result);
+            result.verifyMS = (System.nanoTime() - startedAt) / 1000000;
+            Log.d(TAG, TAGG+"Verified "+result.bytesVerified+" bytes in "+result.verifyMS+"ms (destination "+result.destinationChecksum+").");
+        } catch (Exception e) {
+            Log.e(TAG, TAGG+"Exception caught: "+e.getMessage());
+            result.error = e.getMessage();
+        }
+
+        Log.i(TAG, TAGG+result);
+        return result;
+    }
+
+    /** Read the source once, writing every chunk both to root's stdin (cat'ed to the destination) and to the digest.
+     * Returns the source's checksum. */
+    private static String copyAndHash(File source, File destination, Result result) throws IOException {
+        final MessageDigest messageDigest = newMD5();
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        InputStream inputStream = null;
+        Process process = null;
+        int count;
+
+        try {
+            inputStream = new FileInputStream(source);
+            process = Runtime.getRuntime().exec(new String[]{RootShell.SU_BINARY, "-c", "/system/bin/cat > " + quote(destination.getPath())});
+            final ShellExecutor.Drains drains = ShellExecutor.startDraining(process);
+
+            OutputStream stdin = process.getOutputStream();
+            while ((count = inputStream.read(buffer)) != -1) {
+                stdin.write(buffer, 0, count);
+                messageDigest.update(buffer, 0, count);
+                result.bytesCopied += count;
+            }
+            stdin.flush();
+            stdin.close();
+
+            final ShellResult shellResult = ShellExecutor.awaitExit(process, drains, COPY_FINISH_TIMEOUT_MS);
+            for (String line : shellResult.stderr) {
+                Log.w(TAG, "copyAndHash: stderr line: "+line);
+            }
+            if (shellResult.exitCode != 0) {
+                throw new IOException("cat exited with "+shellResult.exitCode+(shellResult.timedOut ? " (timed out)" : ""));
+            }
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "copyAndHash: Exception caught closing source: "+e.getMessage());
+                }
+            }
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        return ChecksumEngine.toHex(messageDigest.digest());
+    }
+
+    /** Calculate the destination's checksum, reading it only once.
+     * In-process if our UID can read it (usual, since APKs are world-readable), otherwise via root md5sum. */
+    private static String checksumDestination(File destination, Result result) throws IOException {
+        if (destination.canRead()) {
+            result.bytesVerified = destination.length();
+            return ChecksumEngine.calculateMD5(destination);
+        }
+
+        Log.d(TAG, "checksumDestination: Destination is not readable without root, using md5sum.");
+        StringBuilder stdout = new StringBuilder();
+        int exitCode = runAsRoot("/system/bin/md5sum " + quote(destination.getPath()), stdout);
+        if (exitCode != 0 || stdout.length() < 32) {
+            throw new IOException("md5sum exited with "+exitCode);
+        }
+        result.bytesVerified = -1;     //(unknown, we didn't read it ourselves)
+        return stdout.substring(0, 32);
+    }
+
+    /** Run the provided command line in the shared root shell and wait for it to finish. Returns its exit code. */
+    private static int runAsRoot(String commandLine, StringBuilder stdout) {
+        ShellResult result = ShellExecutor.runAsRoot(commandLine);
+        for (String line : result.stdout) {
+            if (stdout != null) {
+                stdout.append(line).append("\n");
+            }
+        }
+        for (String line : result.stderr) {
+            Log.w(TAG, "runAsRoot: stderr line: "+line);
+        }
+        return result.exitCode;
+    }
+
+    /** Single-quote the provided string for the shell. */
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private static MessageDigest newMD5() throws IOException {
+        try {
+            return MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Digest algorithm not available: "+ChecksumEngine.ALGORITHM_MD5, e);
+        }
+    }
+
+    /** Outcome of a copy, with bytes and timings for each phase. */
+    public static class Result {
+        public long bytesCopied = 0;
+        public long bytesVerified = 0;
+        public long copyMS = -1;
+        public long syncMS = -1;
+        public long verifyMS = -1;
+        public String sourceChecksum = null;
+        public String destinationChecksum = null;
+        public String error = null;
+
+        /** Returns true only if every phase completed and the destination's checksum matches the source's. */
+        public boolean isVerified() {
+            return error == null && sourceChecksum != null && sourceChecksum.equals(destinationChecksum);
+        }
+
+        @Override
+        public String toString() {
+            return (isVerified() ? "Verified" : "NOT verified")
+                    + " (copy "+bytesCopied+" bytes/"+copyMS+"ms, sync "+syncMS+"ms, verify "+bytesVerified+" bytes/"+verifyMS+"ms"
+                    + ", source "+sourceChecksum+", destination "+destinationChecksum
+                    + (error == null ? "" : ", error: "+error) + ")";
+        }
+    }
+}
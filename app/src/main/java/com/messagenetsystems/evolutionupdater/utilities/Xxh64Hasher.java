@@ -0,0 +1,154 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** Xxh64Hasher
+ * XXH64 (xxHash, 64-bit, seed 0), a very fast non-cryptographic hash.
+ *
+ * It's only suitable for detecting accidental change, never for integrity against tampering.
+ * Output is the canonical (big-endian) representation, e.g. "" -> ef46db3751d8e999, "abc" -> 44bc2cf5ad770999.
+ */
+
+public class Xxh64Hasher implements Hasher {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final long SEED = 0;
+
+    private long v1, v2, v3, v4;
+    private long totalLength;
+    private final byte[] stripe = new byte[32];                                                     //holds input until we have a whole 32-byte stripe
+    private int stripeLength;
+
+    /** Constructor */
+    public Xxh64Hasher() {
+        reset();
+    }
+
+    private void reset() {
+        v1 = SEED + PRIME1 + PRIME2;
+        v2 = SEED + PRIME2;
+        v3 = SEED;
+        v4 = SEED - PRIME1;
+        totalLength = 0;
+        stripeLength = 0;
+    }
+
+    @Override
+    public void update(byte[] buffer, int offset, int length) {
+        totalLength += length;
+        final int end = offset + length;
+
+        // Top off any partial stripe from last time
+        if (stripeLength > 0) {
+            final int take = Math.min(32 - stripeLength, length);
+            System.arraycopy(buffer, offset, stripe, stripeLength, take);
+            stripeLength += take;
+            offset += take;
+            if (stripeLength < 32) {
+                return;
+            }
+            consumeStripe(stripe, 0);
+            stripeLength = 0;
+        }
+
+        // Whole stripes straight from the caller's buffer
+        while (end - offset >= 32) {
+            consumeStripe(buffer, offset);
+            offset += 32;
+        }
+
+        // Keep the rest for next time
+        if (offset < end) {
+            System.arraycopy(buffer, offset, stripe, 0, end - offset);
+            stripeLength = end - offset;
+        }
+    }
+
+    @Override
+    public byte[] digest() {
+        long h;
+
+        if (totalLength >= 32) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = mergeRound(h, v1);
+            h = mergeRound(h, v2);
+            h = mergeRound(h, v3);
+            h = mergeRound(h, v4);
+        } else {
+            h = SEED + PRIME5;
+        }
+
+        h += totalLength;
+
+        int i = 0;
+        while (i + 8 <= stripeLength) {
+            h ^= round(0, readLongLE(stripe, i));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+            i += 8;
+        }
+        if (i + 4 <= stripeLength) {
+            h ^= (readIntLE(stripe, i) & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        while (i < stripeLength) {
+            h ^= (stripe[i] & 0xFF) * PRIME5;
+            h = Long.rotateLeft(h, 11) * PRIME1;
+            i++;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+
+        reset();
+
+        final byte[] ret = new byte[8];
+        for (int b = 7; b >= 0; b--) {
+            ret[b] = (byte) h;
+            h >>>= 8;
+        }
+        return ret;
+    }
+
+    private void consumeStripe(byte[] buffer, int offset) {
+        v1 = round(v1, readLongLE(buffer, offset));
+        v2 = round(v2, readLongLE(buffer, offset + 8));
+        v3 = round(v3, readLongLE(buffer, offset + 16));
+        v4 = round(v4, readLongLE(buffer, offset + 24));
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME1 + PRIME4;
+    }
+
+    private static long readLongLE(byte[] b, int i) {
+        return (b[i] & 0xFFL)
+                | ((b[i + 1] & 0xFFL) << 8)
+                | ((b[i + 2] & 0xFFL) << 16)
+                | ((b[i + 3] & 0xFFL) << 24)
+                | ((b[i + 4] & 0xFFL) << 32)
+                | ((b[i + 5] & 0xFFL) << 40)
+                | ((b[i + 6] & 0xFFL) << 48)
+                | ((b[i + 7] & 0xFFL) << 56);
+    }
+
+    private static int readIntLE(byte[] b, int i) {
+        return (b[i] & 0xFF)
+                | ((b[i + 1] & 0xFF) << 8)
+                | ((b[i + 2] & 0xFF) << 16)
+                | ((b[i + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,137 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** TimeWindowTest
+ * Window membership (every minute of the 1440-bit set, ranges crossing midnight) and the clock anchor's expiry.
+ */
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimeWindowTest {
+    private static final long MS_PER_HOUR = 60 * 60 * 1000;
+
+    private TimeZone defaultTimeZone;
+
+    @Before
+    public void setUp() {
+        defaultTimeZone = TimeZone.getDefault();
+        TimeWindow.onClockChanged();
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+        TimeWindow.onClockChanged();
+    }
+
+    @Test
+    public void wholeDayWindowHasEveryMinute() {
+        final TimeWindow window = TimeWindow.compile("0:00", "23:59");
+        for (int minute = 0; minute < TimeWindow.MINUTES_PER_DAY; minute++) {
+            assertTrue("minute " + minute, window.isOpenAt(minute));
+        }
+    }
+
+    @Test
+    public void singleMinuteWindowsAtWordEdges() {
+        for (int minute : new int[] {0, 63, 64, 127, 128, 1407, 1408, 1439}) {
+            final TimeWindow window = TimeWindow.parse(TimeWindow.formatMinuteOfDay(minute) + "-" + TimeWindow.formatMinuteOfDay(minute));
+            for (int m = 0; m < TimeWindow.MINUTES_PER_DAY; m++) {
+                assertEquals(window + " at minute " + m, m == minute, window.isOpenAt(m));
+            }
+        }
+    }
+
+    @Test
+    public void rangeIsInclusiveOfBothEnds() {
+        final TimeWindow window = TimeWindow.compile("4:00", "4:59");
+        assertFalse(window.isOpenAt(3 * 60 + 59));
+        assertTrue(window.isOpenAt(4 * 60));
+        assertTrue(window.isOpenAt(4 * 60 + 59));
+        assertFalse(window.isOpenAt(5 * 60));
+    }
+
+    @Test
+    public void rangeCrossingMidnight() {
+        final TimeWindow window = TimeWindow.compile("22:00", "2:00");
+        assertFalse(window.isOpenAt(21 * 60 + 59));
+        assertTrue(window.isOpenAt(22 * 60));
+        assertTrue(window.isOpenAt(TimeWindow.MINUTES_PER_DAY - 1));
+        assertTrue(window.isOpenAt(0));
+        assertTrue(window.isOpenAt(2 * 60));
+        assertFalse(window.isOpenAt(2 * 60 + 1));
+        assertFalse(window.isOpenAt(12 * 60));
+        assertEquals("22:00-02:00", window.toString());
+    }
+
+    @Test
+    public void rangeCrossingMidnightAmongOthers() {
+        final TimeWindow window = TimeWindow.parse("23:30-0:30, 3:00-3:59");
+        assertTrue(window.isOpenAt(23 * 60 + 30));
+        assertTrue(window.isOpenAt(30));
+        assertFalse(window.isOpenAt(31));
+        assertTrue(window.isOpenAt(3 * 60 + 15));
+        assertFalse(window.isOpenAt(4 * 60));
+    }
+
+    @Test
+    public void malformedTimesAreRejected() {
+        for (String time : new String[] {null, "", "24:00", "1:60", "1:5", "100:00", "-1:00", "noon", ":30", "12:3x"}) {
+            try {
+                TimeWindow.parseMinuteOfDay(time);
+                fail("\"" + time + "\" should not parse");
+            } catch (IllegalArgumentException e) {
+                //(expected)
+            }
+        }
+        for (String ranges : new String[] {null, " ", "1:00", "1:00-2:00-3:00", "1:00-2:00,x", "1:00-25:00"}) {
+            try {
+                TimeWindow.parse(ranges);
+                fail("\"" + ranges + "\" should not parse");
+            } catch (IllegalArgumentException e) {
+                //(expected)
+            }
+        }
+    }
+
+    @Test
+    public void anchorIsKeptUntilItExpires() {
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+        final long anchored = TimeWindow.localMillisOfDayAt(0);
+
+        // A timezone change nobody told us about isn't seen while the anchor is fresh...
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+05:00"));
+        assertEquals(1000, differenceInDay(anchored, TimeWindow.localMillisOfDayAt(1000)));
+
+        // ...but is, once it's an hour old
+        final long expired = TimeWindow.localMillisOfDayAt(TimeWindow.ANCHOR_MAX_AGE_MS);
+        assertEquals(5 * MS_PER_HOUR, differenceInDay(anchored, expired), 5000);
+    }
+
+    @Test
+    public void anchorIsRetakenWhenTheClockChanges() {
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+        final long anchored = TimeWindow.localMillisOfDayAt(MS_PER_HOUR);
+
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT-03:00"));
+        TimeWindow.onClockChanged();
+        assertEquals(21 * MS_PER_HOUR, differenceInDay(anchored, TimeWindow.localMillisOfDayAt(MS_PER_HOUR)), 5000);
+
+        // (and when the monotonic clock goes backwards, e.g. the anchor is from before a reboot)
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+        assertEquals(0, differenceInDay(anchored, TimeWindow.localMillisOfDayAt(0)), 5000);
+    }
+
+    /** Returns how far after the first time of day the second one is (0 to just under a day). */
+    private static long differenceInDay(long first, long second) {
+        return ((second - first) % (24 * MS_PER_HOUR) + 24 * MS_PER_HOUR) % (24 * MS_PER_HOUR);
+    }
+}
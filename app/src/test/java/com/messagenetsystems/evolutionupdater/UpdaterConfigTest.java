@@ -0,0 +1,54 @@
+package com.messagenetsystems.evolutionupdater;
+
+/** UpdaterConfigTest
+ * Which server overrides are accepted (UpdaterConfig.validateServerOverride), before anything is applied.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class UpdaterConfigTest {
+
+    @Test
+    public void validOverridesAreAccepted() {
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_START, "1:00"));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_END, " 23:59 "));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_WINDOW_START, "22:00-2:00,3:00-3:59"));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_DISALLOW, "1"));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_DISALLOW, "FALSE"));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_INTERVAL_SECONDS, "1"));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_INTERVAL_SECONDS, String.valueOf(UpdaterConfig.MAX_INTERVAL_SECONDS)));
+    }
+
+    @Test
+    public void emptyValueRemovesAnOverride() {
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_START, ""));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_INTERVAL_SECONDS, "  "));
+        assertNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_DISALLOW, null));
+    }
+
+    @Test
+    public void malformedValuesAreRejected() {
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_START, "25:00"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_START, "1am"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_WINDOW_START, "22:00-"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_WINDOW_START, "1:00-2:00,x"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_WINDOW_END, "1:00-2:00"));     //(only the start may be a list)
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_DISALLOW, "yes"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_DISALLOW, "2"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_INTERVAL_SECONDS, "0"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_DOWNLOAD_INTERVAL_SECONDS, "-60"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_INTERVAL_SECONDS, "1.5"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_INTERVAL_SECONDS, String.valueOf(UpdaterConfig.MAX_INTERVAL_SECONDS + 1)));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_INSTALL_INTERVAL_SECONDS, "99999999999999999999"));
+    }
+
+    @Test
+    public void keysTheServerMayNotOverrideAreRejected() {
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_SERVER_IP, "10.0.0.1"));
+        assertNotNull(UpdaterConfig.validateServerOverride(UpdaterConfig.KEY_LOCAL_PATH, ""));
+        assertNotNull(UpdaterConfig.validateServerOverride("NO_SUCH_KEY", "1"));
+    }
+}
@@ -0,0 +1,68 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ChecksumRecordTest
+ * Parsing of checksum records: which values are recognized (by form and length), and which are kept as unrecognized.
+ */
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumRecordTest {
+    private static final String MD5 = "d41d8cd98f00b204e9800998ecf8427e";
+    private static final String SHA256 = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+    @Test
+    public void nullAndBlankAreEmpty() {
+        assertTrue(ChecksumRecord.parse(null).isEmpty());
+        assertTrue(ChecksumRecord.parse(" \n").isEmpty());
+        assertTrue(ChecksumRecord.parse(" \n").unrecognized.isEmpty());
+    }
+
+    @Test
+    public void untaggedHexIsMD5() {
+        final ChecksumRecord record = ChecksumRecord.parse(MD5.toUpperCase() + "\n");
+        assertEquals(MD5, record.digests.get(DigestAlgorithm.MD5));
+        assertEquals(1, record.digests.size());
+        assertTrue(record.unrecognized.isEmpty());
+    }
+
+    @Test
+    public void severalValuesInAnyOrderAndSeparator() {
+        final ChecksumRecord record = ChecksumRecord.parse("xxh64:44bc2cf5ad770999; sha256:" + SHA256 + ", " + MD5
+                + "\tapkfp:" + MD5 + " tree:md5:1024:" + MD5);
+        assertEquals(SHA256, record.digests.get(DigestAlgorithm.SHA256));
+        assertEquals("44bc2cf5ad770999", record.digests.get(DigestAlgorithm.XXH64));
+        assertEquals(MD5, record.digests.get(DigestAlgorithm.MD5));
+        assertEquals("apkfp:" + MD5, record.apkFingerprint);
+        assertEquals("tree:md5:1024:" + MD5, record.treeDigest);
+        assertTrue(record.unrecognized.isEmpty());
+    }
+
+    @Test
+    public void firstValueForAnAlgorithmWins() {
+        final String other = "0123456789abcdef0123456789abcdef";
+        assertEquals(MD5, ChecksumRecord.parse(MD5 + " md5:" + other).digests.get(DigestAlgorithm.MD5));
+    }
+
+    @Test
+    public void hexOfTheWrongLengthIsUnrecognized() {
+        final String tooShort = MD5.substring(1);
+        final ChecksumRecord record = ChecksumRecord.parse(tooShort + " " + MD5 + "0 sha256:" + MD5 + " crc32c:1234567 xxh64:" + SHA256
+                + " apkfp:" + SHA256 + " tree:md5:1024:abc");
+        assertTrue(record.isEmpty());
+        assertEquals(Arrays.asList(tooShort, MD5 + "0", "sha256:" + MD5, "crc32c:1234567", "xxh64:" + SHA256,
+                "apkfp:" + SHA256, "tree:md5:1024:abc"), record.unrecognized);
+    }
+
+    @Test
+    public void malformedValuesAreUnrecognized() {
+        final ChecksumRecord record = ChecksumRecord.parse("md5sum: " + MD5.replace('d', 'g') + " whirlpool:" + MD5 + " sha256: " + SHA256);
+        assertNull(record.digests.get(DigestAlgorithm.SHA256));
+        assertEquals(Arrays.asList("md5sum:", MD5.replace('d', 'g'), "whirlpool:" + MD5, "sha256:", SHA256), record.unrecognized);
+    }
+}
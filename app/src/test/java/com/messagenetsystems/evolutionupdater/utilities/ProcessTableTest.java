@@ -0,0 +1,111 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** ProcessTableTest
+ * Reading the process table: from /proc/<pid>/cmdline (pointed at a fake /proc), and from ps output (either format).
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessTableTest {
+
+    @Rule
+    public TemporaryFolder procDir = new TemporaryFolder();
+
+    @Test
+    public void processesAreReadFromCmdline() throws IOException {
+        writeCmdline("1", "/init\0");
+        writeCmdline("812", "com.messagenetsystems.evolution\0");
+        writeCmdline("813", "com.messagenetsystems.evolution:remote\0");
+        writeCmdline("920", "/system/bin/sh\0-c\0com.messagenetsystems.evolutionupdater\0");
+        writeCmdline("2", "");                                                                      //(kernel thread)
+        procDir.newFolder("921");                                                                   //(exited between listing and reading)
+        writeCmdline("self", "ignored\0");
+
+        final ProcessTable.Snapshot snapshot = new ProcessTable(procDir.getRoot().getPath()).getSnapshot(0);
+
+        assertTrue(snapshot.isRunning("com.messagenetsystems.evolution"));
+        assertEquals(Arrays.asList(812, 813), sorted(snapshot.getPids("com.messagenetsystems.evolution")));
+        assertTrue(snapshot.isRunning("/system/bin/sh"));
+        assertFalse(snapshot.isRunning("com.messagenetsystems.evolutionupdater"));                  //(only argv[0] is the name)
+        assertFalse(snapshot.isRunning("ignored"));
+        assertFalse(snapshot.isRunning(""));
+        assertTrue(snapshot.getPids("com.example").isEmpty());
+    }
+
+    @Test
+    public void longCmdlineIsTruncatedNotMisread() throws IOException {
+        final StringBuilder longName = new StringBuilder();
+        while (longName.length() < 300) {
+            longName.append("x");
+        }
+        writeCmdline("1", "/init\0");
+        writeCmdline("5", longName + "\0");
+
+        final ProcessTable.Snapshot snapshot = new ProcessTable(procDir.getRoot().getPath()).getSnapshot(0);
+
+        assertEquals(Collections.singletonList(5), snapshot.getPids(longName.substring(0, 256)));
+    }
+
+    @Test
+    public void toyboxPsOutput() {
+        final Map<String, List<Integer>> pidsByPackage = new HashMap<>();
+        ProcessTable.parsePsOutput(Arrays.asList(
+                "  PID NAME",
+                "    1 init",
+                "  812 com.messagenetsystems.evolution",
+                "  813 com.messagenetsystems.evolution:remote"), pidsByPackage);
+
+        assertEquals(Arrays.asList(812, 813), sorted(pidsByPackage.get("com.messagenetsystems.evolution")));
+        assertEquals(Collections.singletonList(1), pidsByPackage.get("init"));
+        assertFalse(pidsByPackage.containsKey("NAME"));
+    }
+
+    @Test
+    public void toolboxPsOutputAndDuplicates() {
+        final Map<String, List<Integer>> pidsByPackage = new HashMap<>();
+        ProcessTable.parsePsOutput(Arrays.asList(
+                "  812 com.messagenetsystems.evolution",
+                "USER      PID   PPID  VSIZE  RSS   WCHAN              PC  NAME",
+                "root      1     0     9180   1464  SyS_epoll_ 00000000 S /init",
+                "u0_a61    812   231   1032460 80508 SyS_epoll_ 00000000 S com.messagenetsystems.evolution"), pidsByPackage);
+
+        assertEquals(Collections.singletonList(812), pidsByPackage.get("com.messagenetsystems.evolution"));
+        assertEquals(Collections.singletonList(1), pidsByPackage.get("/init"));
+        assertEquals(2, pidsByPackage.size());
+    }
+
+    private void writeCmdline(String pid, String cmdline) throws IOException {
+        final File dir = new File(procDir.getRoot(), pid);
+        if (!dir.isDirectory() && !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        final FileOutputStream fos = new FileOutputStream(new File(dir, "cmdline"));
+        try {
+            fos.write(cmdline.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static List<Integer> sorted(List<Integer> pids) {
+        final Integer[] ret = pids.toArray(new Integer[pids.size()]);
+        Arrays.sort(ret);
+        return Arrays.asList(ret);
+    }
+}
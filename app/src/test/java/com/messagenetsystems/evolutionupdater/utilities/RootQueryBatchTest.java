@@ -0,0 +1,98 @@
+package com.messagenetsystems.evolutionupdater.utilities;
+
+/** RootQueryBatchTest
+ * How a batch's stdout is split up among its queries by their marker lines.
+ */
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RootQueryBatchTest {
+
+    @Test
+    public void outputIsAssignedToEachQuery() {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final RootQueryBatch.Query first = batch.add("/system/bin/pm path com.example.a");
+        final RootQueryBatch.Query second = batch.add("/system/bin/pm path com.example.b");
+        final String marker = batch.markerPrefix;
+
+        batch.parse(Arrays.asList(
+                marker + "0 BEGIN",
+                "package:/data/app/com.example.a-1/base.apk",
+                marker + "0 END 0",
+                marker + "1 BEGIN",
+                "line one",
+                "line two",
+                marker + "1 END 1"));
+
+        assertTrue(first.isCompleted());
+        assertTrue(first.isSuccess());
+        assertEquals("package:/data/app/com.example.a-1/base.apk", first.getLastStdoutLine());
+        assertTrue(second.isCompleted());
+        assertFalse(second.isSuccess());
+        assertEquals(1, second.getExitCode());
+        assertEquals(Arrays.asList("line one", "line two"), second.getStdout());
+    }
+
+    @Test
+    public void outputWithoutTrailingNewlineIsKept() {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final RootQueryBatch.Query query = batch.add("printf partial");
+
+        batch.parse(Arrays.asList(batch.markerPrefix + "0 BEGIN", "partial" + batch.markerPrefix + "0 END 0"));
+
+        assertTrue(query.isSuccess());
+        assertEquals(Collections.singletonList("partial"), query.getStdout());
+    }
+
+    @Test
+    public void queryWithoutEndMarkerHasFailed() {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final RootQueryBatch.Query finished = batch.add("true");
+        final RootQueryBatch.Query unfinished = batch.add("sleep 100");
+
+        batch.parse(Arrays.asList(batch.markerPrefix + "0 BEGIN", batch.markerPrefix + "0 END 0", batch.markerPrefix + "1 BEGIN", "started"));
+
+        assertTrue(finished.isSuccess());
+        assertFalse(unfinished.isCompleted());
+        assertEquals(RootQueryBatch.EXIT_CODE_FAILED, unfinished.getExitCode());
+    }
+
+    @Test
+    public void markersFromOtherBatchesAndStrayLinesAreNotBoundaries() {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final RootQueryBatch.Query query = batch.add("cat somefile");
+        final String otherMarker = new RootQueryBatch().markerPrefix;
+
+        batch.parse(Arrays.asList(
+                "before any query",
+                batch.markerPrefix + "0 BEGIN",
+                otherMarker + "0 END 0",
+                "@@Q 0 END 0",
+                batch.markerPrefix + "7 END 0",
+                batch.markerPrefix + "0 END x"));
+
+        assertTrue(query.isCompleted());
+        assertEquals(RootQueryBatch.EXIT_CODE_FAILED, query.getExitCode());
+        assertEquals(Arrays.asList(otherMarker + "0 END 0", "@@Q 0 END 0"), query.getStdout());
+    }
+
+    @Test
+    public void queryWithNoOutput() {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final RootQueryBatch.Query query = batch.add("true");
+
+        batch.parse(Arrays.asList(batch.markerPrefix + "0 BEGIN", batch.markerPrefix + "0 END 0"));
+
+        assertTrue(query.isSuccess());
+        assertTrue(query.getStdout().isEmpty());
+        assertNull(query.getLastStdoutLine());
+    }
+}
@@ -0,0 +1,16 @@
+package android.system;
+
+/** ErrnoException
+ * Stand-in for Android's ErrnoException, so the app's shell classes can run on a desktop JVM for benchmarking.
+ */
+
+public final class ErrnoException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public final int errno;
+
+    public ErrnoException(String functionName, int errno) {
+        super(functionName + " failed: errno " + errno);
+        this.errno = errno;
+    }
+}
@@ -0,0 +1,27 @@
+package android.system;
+
+/** Os
+ * Stand-in for Android's Os, so the app's shell classes can run on a desktop JVM for benchmarking.
+ * Only what they use is here; kill is done with the host's kill command (no direct syscall from plain Java).
+ */
+
+import java.io.IOException;
+
+public final class Os {
+    private Os() {
+    }
+
+    public static void kill(int pid, int signal) throws ErrnoException {
+        try {
+            final int exitCode = Runtime.getRuntime().exec(new String[]{"kill", "-" + signal, String.valueOf(pid)}).waitFor();
+            if (exitCode != 0) {
+                throw new ErrnoException("kill", OsConstants.ESRCH);
+            }
+        } catch (IOException e) {
+            throw new ErrnoException("kill", OsConstants.EPERM);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ErrnoException("kill", OsConstants.EINTR);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package android.system;
+
+/** OsConstants
+ * Stand-in for Android's OsConstants (Linux values), so the app's shell classes can run on a desktop JVM for benchmarking.
+ */
+
+public final class OsConstants {
+    public static final int EPERM = 1;
+    public static final int ESRCH = 3;
+    public static final int EINTR = 4;
+
+    public static final int SIGKILL = 9;
+
+    private OsConstants() {
+    }
+}
@@ -0,0 +1,28 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** DigestAlgorithmBenchmark
+ * Whole-file checksum cost for each algorithm, through the same in-process path the app uses
+ * (ChecksumEngine.calculate with a DigestAlgorithm). Compare with DigestSelector's on-device throughput table.
+ */
+
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+import com.messagenetsystems.evolutionupdater.utilities.DigestAlgorithm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+@State(Scope.Benchmark)
+public class DigestAlgorithmBenchmark {
+
+    @Param({"MD5", "SHA256", "SHA512", "CRC32C", "XXH64"})
+    public String algorithm;
+
+    @Benchmark
+    public String checksum(InputFile inputFile) throws IOException {
+        return ChecksumEngine.calculate(inputFile.file, DigestAlgorithm.valueOf(algorithm));
+    }
+}
@@ -0,0 +1,34 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** FingerprintBenchmark
+ * The ways we can tell whether two package files are the same, from cheapest to most thorough:
+ *  apkFingerprint: reads only the tail of the APK (ApkFingerprint)
+ *  treeDigest:     reads everything, but on several cores (TreeHasher)
+ *  fullMD5:        reads everything on one core (the plain checksum everything else is compared to)
+ */
+
+import com.messagenetsystems.evolutionupdater.utilities.ApkFingerprint;
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+import com.messagenetsystems.evolutionupdater.utilities.TreeHasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.io.IOException;
+
+public class FingerprintBenchmark {
+
+    @Benchmark
+    public String apkFingerprint(InputFile inputFile) throws IOException {
+        return ApkFingerprint.calculate(inputFile.file);
+    }
+
+    @Benchmark
+    public String treeDigest(InputFile inputFile) throws IOException {
+        return TreeHasher.calculate(inputFile.file);
+    }
+
+    @Benchmark
+    public String fullMD5(InputFile inputFile) throws IOException {
+        return ChecksumEngine.calculateMD5(inputFile.file);
+    }
+}
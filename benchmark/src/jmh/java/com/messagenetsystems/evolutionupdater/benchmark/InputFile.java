@@ -0,0 +1,111 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** InputFile
+ * The file each benchmark works on, shared by all the benchmark classes.
+ *
+ * The "input" parameter is either:
+ *  "synthetic:<megabytes>"     A generated APK-sized zip (random, incompressible content, like the assets that make our
+ *                              APKs big). Real zip structure, so fingerprinting works on it the same as on an APK.
+ *  "<path>"                    A real file (e.g. an APK sample), see the jmhApkSamples task.
+ *
+ * The file is read once after setup, so every benchmark measures the hot-cache (CPU and syscall) cost. Cold-cache
+ * storage speed is a property of the device, not of these strategies.
+ */
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+@State(Scope.Benchmark)
+public class InputFile {
+    private static final String SYNTHETIC_PREFIX = "synthetic:";
+    private static final int SYNTHETIC_ENTRY_SIZE = 1024 * 1024;
+    private static final long SYNTHETIC_SEED = 20181105L;                                           //fixed, so runs are comparable
+
+    @Param({"synthetic:10", "synthetic:50", "synthetic:100"})
+    public String input;
+
+    public File file;
+    private boolean isSynthetic;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        isSynthetic = input.startsWith(SYNTHETIC_PREFIX);
+
+        if (isSynthetic) {
+            file = File.createTempFile("benchmark-", ".apk");
+            writeSyntheticApk(file, Integer.parseInt(input.substring(SYNTHETIC_PREFIX.length())) * 1024L * 1024L);
+        } else {
+            file = new File(input);
+            if (!file.isFile()) {
+                throw new IOException("Input file does not exist: "+input);
+            }
+        }
+
+        warmPageCache(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (isSynthetic && file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /** Write a zip of roughly the specified size, made of stored (uncompressed) random entries. */
+    private static void writeSyntheticApk(File file, long size) throws IOException {
+        final Random random = new Random(SYNTHETIC_SEED);
+        final byte[] entry = new byte[SYNTHETIC_ENTRY_SIZE];
+        ZipOutputStream zipOutputStream = null;
+
+        try {
+            zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            zipOutputStream.setLevel(Deflater.NO_COMPRESSION);
+
+            zipOutputStream.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zipOutputStream.write(new byte[4096]);
+            zipOutputStream.closeEntry();
+
+            for (long written = 0, i = 0; written < size; written += entry.length, i++) {
+                random.nextBytes(entry);
+                zipOutputStream.putNextEntry(new ZipEntry("assets/blob_"+i+".bin"));
+                zipOutputStream.write(entry, 0, (int) Math.min(entry.length, size - written));
+                zipOutputStream.closeEntry();
+            }
+        } finally {
+            if (zipOutputStream != null) {
+                zipOutputStream.close();
+            }
+        }
+    }
+
+    private static void warmPageCache(File file) throws IOException {
+        final byte[] buffer = new byte[1024 * 1024];
+        InputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(file);
+            while (inputStream.read(buffer) != -1) {
+                //(just reading)
+            }
+        } finally {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** ReadStrategyBenchmark
+ * How the file is read, with the digest (MD5) held constant:
+ *  stream: FileInputStream through buffers of various sizes (ChecksumEngine.MODE_STREAM uses 256 KiB)
+ *  mmap:   FileChannel mapped in windows of various sizes (ChecksumEngine.MODE_MMAP uses 32 MiB)
+ */
+
+import com.messagenetsystems.evolutionupdater.utilities.ChecksumEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ReadStrategyBenchmark {
+
+    @State(Scope.Thread)
+    public static class StreamBuffer {
+        @Param({"4", "16", "64", "256", "1024", "4096"})
+        public int bufferKiB;
+
+        public byte[] buffer;
+
+        @Setup
+        public void setup() {
+            buffer = new byte[bufferKiB * 1024];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MapWindow {
+        @Param({"1", "8", "32", "128"})
+        public int windowMiB;
+    }
+
+    @Benchmark
+    public String stream(InputFile inputFile, StreamBuffer streamBuffer) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest messageDigest = MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);
+        ChecksumEngine.digestStream(inputFile.file, messageDigest, streamBuffer.buffer);
+        return ChecksumEngine.toHex(messageDigest.digest());
+    }
+
+    @Benchmark
+    public String mmap(InputFile inputFile, MapWindow mapWindow) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest messageDigest = MessageDigest.getInstance(ChecksumEngine.ALGORITHM_MD5);
+        ChecksumEngine.digestMapped(inputFile.file, messageDigest, mapWindow.windowMiB * 1024L * 1024L);
+        return ChecksumEngine.toHex(messageDigest.digest());
+    }
+}
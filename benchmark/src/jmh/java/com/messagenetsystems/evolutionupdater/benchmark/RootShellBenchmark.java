@@ -0,0 +1,133 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** RootShellBenchmark
+ * What it costs to answer some number of root queries (the same ones SystemFunctions makes: pm path, ip link, ps and
+ * mount, in turn), each way the app has done it:
+ *  forkPerCall:        the original way; one "su -c" process per query, stdout read to EOF, then waitFor
+ *  forkPerCallDrained: one "su -c" process per query, through ShellExecutor.run (drained concurrently, with a deadline)
+ *  persistentShell:    one round trip per query through the shared RootShell session (ShellExecutor.runAsRoot)
+ *  batched:            all of the queries in a single round trip (RootQueryBatch)
+ *
+ * Runs against the fake su in benchmark/fakesu (see the jmhRootShell task), so no device is needed. The fake answers
+ * from fixtures, so what's measured is the fork/round-trip overhead of each way, not the commands themselves. Set
+ * FAKESU_STARTUP_MS to add what a real su costs to start up (100-300ms on our SuperSU images) to each su process.
+ */
+
+import com.messagenetsystems.evolutionupdater.utilities.RootQueryBatch;
+import com.messagenetsystems.evolutionupdater.utilities.ShellExecutor;
+import com.messagenetsystems.evolutionupdater.utilities.ShellResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+@State(Scope.Benchmark)
+public class RootShellBenchmark {
+    private static final String SU_BINARY = System.getProperty("evolutionupdater.su", "su");
+    private static final long TIMEOUT_MS = 30 * 1000;
+
+    private static final String[] COMMANDS = {
+            "/system/bin/pm path com.messagenetsystems.evolution | /system/bin/cut -d':' -f2",
+            "/system/bin/ip link show | /system/bin/grep \"state UP\"",
+            "/system/bin/ps -A -o PID,NAME 2>/dev/null; /system/bin/ps",
+            "/system/bin/mount"
+    };
+
+    @Param({"1", "4", "16"})
+    public int queries;
+
+    private String[] commands;
+
+    @Setup
+    public void setup() throws IOException {
+        if (!SU_BINARY.startsWith("/")) {
+            throw new IOException("Point -Devolutionupdater.su at the fake su (e.g. run the jmhRootShell task), not the host's own su.");
+        }
+        commands = new String[queries];
+        for (int i = 0; i < queries; i++) {
+            commands[i] = COMMANDS[i % COMMANDS.length];
+        }
+        check(ShellExecutor.runAsRoot(commands[0], TIMEOUT_MS));    //(also starts the shared session, so that isn't measured)
+    }
+
+    @Benchmark
+    public int forkPerCall() throws IOException, InterruptedException {
+        int lines = 0;
+        for (String command : commands) {
+            Process process = null;
+            try {
+                process = Runtime.getRuntime().exec(new String[]{SU_BINARY, "-c", command});
+                process.getOutputStream().close();
+
+                BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                while (br.readLine() != null) {
+                    lines++;
+                }
+                br.close();
+
+                final int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    throw new IOException("\"" + command + "\" exited with " + exitCode);
+                }
+            } finally {
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int forkPerCallDrained() throws IOException {
+        int lines = 0;
+        for (String command : commands) {
+            lines += check(ShellExecutor.run(new String[]{SU_BINARY, "-c", command}, TIMEOUT_MS)).size();
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int persistentShell() throws IOException {
+        int lines = 0;
+        for (String command : commands) {
+            lines += check(ShellExecutor.runAsRoot(command, TIMEOUT_MS)).size();
+        }
+        return lines;
+    }
+
+    @Benchmark
+    public int batched() throws IOException {
+        final RootQueryBatch batch = new RootQueryBatch();
+        final List<RootQueryBatch.Query> batchQueries = new ArrayList<>(commands.length);
+        for (String command : commands) {
+            batchQueries.add(batch.add(command));
+        }
+        batch.execute(TIMEOUT_MS);
+
+        int lines = 0;
+        for (RootQueryBatch.Query query : batchQueries) {
+            if (!query.isSuccess()) {
+                throw new IOException("\"" + query.getCommand() + "\" exited with " + query.getExitCode());
+            }
+            lines += query.getStdout().size();
+        }
+        return lines;
+    }
+
+    /** Returns the result's stdout, or throws if it failed (so a broken setup isn't measured as a fast one). */
+    private static List<String> check(ShellResult result) throws IOException {
+        if (!result.isSuccess()) {
+            throw new IOException("Root command failed: " + result);
+        }
+        return result.stdout;
+    }
+}
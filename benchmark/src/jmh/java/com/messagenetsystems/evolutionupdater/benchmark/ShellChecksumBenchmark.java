@@ -0,0 +1,45 @@
+package com.messagenetsystems.evolutionupdater.benchmark;
+
+/** ShellChecksumBenchmark
+ * The original way of getting a checksum: fork a process running md5sum and parse its output
+ * (on-device that's "su -c md5sum", so real costs there are higher still). This is the baseline the in-process
+ * strategies should be compared against.
+ *
+ * The binary can be changed with -Dbenchmark.md5sum=<path> (e.g. busybox's).
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+public class ShellChecksumBenchmark {
+    private static final String MD5SUM = System.getProperty("benchmark.md5sum", "md5sum");
+
+    @Benchmark
+    public String md5sumProcess(InputFile inputFile) throws IOException, InterruptedException {
+        Process process = null;
+        String line;
+
+        try {
+            process = Runtime.getRuntime().exec(new String[]{MD5SUM, inputFile.file.getPath()});
+            process.getOutputStream().close();
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            line = br.readLine();
+            br.close();
+
+            final int exitCode = process.waitFor();
+            if (exitCode != 0 || line == null || line.length() < 32) {
+                throw new IOException(MD5SUM+" exited with "+exitCode);
+            }
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        return line.substring(0, 32);
+    }
+}